@@ -0,0 +1,19 @@
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+// Only logins slower than the threshold are recorded by default; a recording setting of
+// atm.Authenticate#threshold=0 ms records every one
+@Name("atm.Authenticate")
+@Label("ATM Authenticate")
+@Category({"ATM", "Terminal"})
+@Threshold("1 ms")
+class ATMAuthenticateEvent extends Event {
+    @Label("User ID")
+    String userId;
+    
+    @Label("Succeeded")
+    boolean succeeded;
+}
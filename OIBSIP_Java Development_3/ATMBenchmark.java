@@ -0,0 +1,982 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+// Command-line benchmarks for the ATM data layer.
+// Compile together with the application and pick a suite:
+//   javac ATMInterface.java ATMBenchmark.java
+//   java ATMBenchmark json 10000
+//   java ATMBenchmark history 1000000
+//   java ATMBenchmark ids 1000000
+//   java -Xmx3g ATMBenchmark indexes 1000000
+//   java ATMBenchmark shards 200000
+//   java -Xmx3g ATMBenchmark reconcile 10000000
+//   java -Xmx3g ATMBenchmark micro 1000000
+//   java ATMBenchmark batch 100000
+//   java ATMBenchmark contention 64
+//   java ATMBenchmark stress 1000 2000000
+//   java ATMBenchmark audit 100000
+public class ATMBenchmark {
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+    // Length of each time-boxed iteration in the micro suite (-Dbench.iterationMillis=N)
+    private static final long ITERATION_NANOS = Long.getLong("bench.iterationMillis", 1000) * 1_000_000;
+    private static volatile Object blackhole; // Results land here so the JIT cannot drop the work
+    
+    public static void main(String[] args) throws Exception {
+        String suite = args.length > 0 ? args[0] : "json";
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        
+        switch (suite) {
+            case "json":
+                benchmarkJsonParsing(size);
+                break;
+            case "snapshot":
+                benchmarkSnapshotLoading(size);
+                break;
+            case "history":
+                benchmarkHistory(size);
+                break;
+            case "ids":
+                benchmarkUserIds(size);
+                break;
+            case "indexes":
+                benchmarkIndexes(size);
+                break;
+            case "micro":
+                microBenchmarks(args.length > 1 ? size : 100000);
+                break;
+            case "shards":
+                benchmarkShards(size);
+                break;
+            case "reconcile":
+                benchmarkReconcile(size);
+                break;
+            case "batch":
+                benchmarkBatchTransfer(size);
+                break;
+            case "contention":
+                benchmarkHotAccount(args.length > 1 ? size : 64);
+                break;
+            case "stress":
+                stressTransfers(size, args.length > 2 ? Integer.parseInt(args[2]) : 2000000);
+                break;
+            case "audit":
+                benchmarkAudit(size);
+                break;
+            default:
+                System.err.println("Unknown suite: " + suite + " (available: json, snapshot, history, ids, indexes, shards, reconcile, micro, batch, contention, stress, audit)");
+        }
+    }
+    
+    // Legacy substring-splitting parser vs. the JSONReader tokenizer on the same document
+    private static void benchmarkJsonParsing(int accounts) throws Exception {
+        String document = generateDocument(accounts, 10);
+        System.out.printf("Document: %d accounts, %.1f MB%n", accounts, document.length() / 1048576.0);
+        
+        measure("legacy splitJSON parse", () -> {
+            // The old loadData also joined the file line by line before parsing
+            StringBuilder content = new StringBuilder();
+            BufferedReader reader = new BufferedReader(new StringReader(document));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                content.append(line);
+            }
+            return LegacyParser.parseObject(content.toString()).size();
+        });
+        measure("JSONObject(String) on JSONReader", () -> new JSONObject(document).getJSONArray("accounts").length());
+        measure("JSONReader straight to Account", () -> {
+            int count = 0;
+            JSONReader reader = new JSONReader(new StringReader(document));
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("accounts")) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        new Account(reader);
+                        count++;
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return count;
+        });
+    }
+    
+    // Startup cost of the JSON snapshot vs. the memory-mapped binary snapshot
+    private static void benchmarkSnapshotLoading(int accounts) throws Exception {
+        File jsonFile = File.createTempFile("atm-bench", ".json");
+        File binaryFile = File.createTempFile("atm-bench", ".bin");
+        jsonFile.deleteOnExit();
+        binaryFile.deleteOnExit();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(jsonFile), "UTF-8")) {
+            out.write(generateDocument(accounts, 10));
+        }
+        HashMap<String, Account> source = new HashMap<>();
+        ATMManager.readJsonSnapshot(jsonFile, source);
+        BinarySnapshot.write(binaryFile, 0, source.values());
+        System.out.printf("Snapshot: %d accounts, JSON %.1f MB, binary %.1f MB%n", accounts,
+                jsonFile.length() / 1048576.0, binaryFile.length() / 1048576.0);
+        
+        measure("load JSON snapshot", () -> ATMManager.readJsonSnapshot(jsonFile, new HashMap<>()));
+        measure("load binary snapshot (index only)", () -> BinarySnapshot.read(binaryFile, new HashMap<>()));
+        measure("load binary + decode every history", () -> {
+            HashMap<String, Account> loaded = new HashMap<>();
+            BinarySnapshot.read(binaryFile, loaded);
+            for (Account account : loaded.values()) {
+                account.getTransactionHistory();
+            }
+            return loaded.size();
+        });
+    }
+    
+    // Retained heap and per-transaction allocation of formatted String history vs. TransactionHistory
+    private static void benchmarkHistory(int entries) throws Exception {
+        long before = usedHeap();
+        ArrayList<String> strings = new ArrayList<>(entries);
+        java.text.SimpleDateFormat format = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        for (int i = 0; i < entries; i++) {
+            strings.add(format.format(new Date(1762856636000L + i * 1000L)) + " - Deposit: +$" + (i % 500 + 0.25) + " | Balance: $" + (1000.0 + i));
+        }
+        long stringBytes = usedHeap() - before;
+        
+        before = usedHeap();
+        TransactionHistory history = new TransactionHistory();
+        for (int i = 0; i < entries; i++) {
+            history.add(1762856636000L + i * 1000L, TransactionHistory.DEPOSIT, i % 500 * 100 + 25, 100000L + i * 100L, null);
+        }
+        long columnBytes = usedHeap() - before;
+        System.out.printf("%d entries: Strings %.1f MB (%.0f B/entry), columns %.1f MB (%.0f B/entry)%n", entries,
+                stringBytes / 1048576.0, (double) stringBytes / entries, columnBytes / 1048576.0, (double) columnBytes / entries);
+        if (strings.size() + history.size() == 0) {
+            System.out.println(); // Keeps both histories reachable until measured
+        }
+        
+        Account account = new Account("USER100000", "0000", "Customer", 1000.0);
+        measure("10000 deposits (structured history)", () -> {
+            for (int i = 0; i < 10000; i++) {
+                account.deposit(1.25);
+            }
+            return account.getTransactionCount();
+        });
+        measure("render 10000 entries as text", () -> {
+            TransactionHistory recorded = account.getHistory();
+            int length = 0;
+            for (int i = 0; i < 10000; i++) {
+                length += recorded.format(i, null).length();
+            }
+            return length;
+        });
+    }
+    
+    static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+    
+    // The old random-probe ID loop against UserIdAllocator, then bulk onboarding through ATMManager
+    private static void benchmarkUserIds(int accounts) throws Exception {
+        Random random = new Random();
+        HashSet<String> taken = new HashSet<>();
+        long probes = 0;
+        long lastProbes = 0;
+        for (int i = 0; i < 8900; i++) {
+            String userId;
+            do {
+                userId = "USER" + (1000 + random.nextInt(9000));
+                probes++;
+                if (i >= 8800) {
+                    lastProbes++;
+                }
+            } while (!taken.add(userId));
+        }
+        System.out.printf("Random probe: 8900 of 9000 IDs took %d probes; the last 100 took %.0f probes each (and 9001 never finish)%n",
+                probes, lastProbes / 100.0);
+        
+        measure("allocate " + accounts + " IDs", () -> {
+            UserIdAllocator allocator = new UserIdAllocator();
+            HashSet<String> ids = new HashSet<>(accounts * 2);
+            for (int i = 0; i < accounts; i++) {
+                if (!ids.add(allocator.nextUserId())) {
+                    throw new IllegalStateException("Duplicate user ID after " + i);
+                }
+            }
+            return ids.size();
+        });
+        
+        File directory = java.nio.file.Files.createTempDirectory("atm-ids").toFile();
+        ArrayList<String> names = new ArrayList<>(accounts);
+        for (int i = 0; i < accounts; i++) {
+            names.add("Customer " + i);
+        }
+        ATMManager manager = new ATMManager(new File(directory, "atm_data.json").getPath());
+        long start = System.nanoTime();
+        manager.createAccounts(names, 100.0);
+        long created = System.nanoTime() - start;
+        start = System.nanoTime();
+        manager.shutdown();
+        long saved = System.nanoTime() - start;
+        System.out.printf("createAccounts: %d accounts in %.2f s (%.0f ns/account), final snapshot %.2f s%n",
+                accounts, created / 1e9, (double) created / accounts, saved / 1e9);
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+    
+    // Startup, a save after a single change, and transfer latency with 1, 4 and 8 shards
+    private static void benchmarkShards(int accounts) throws Exception {
+        ArrayList<String> names = new ArrayList<>(accounts);
+        for (int i = 0; i < accounts; i++) {
+            names.add("Customer " + i);
+        }
+        for (int shardCount : new int[] {1, 4, 8}) {
+            File directory = java.nio.file.Files.createTempDirectory("atm-shards").toFile();
+            String dataFile = new File(directory, "atm_data.json").getPath();
+            ATMManager manager = new ATMManager(dataFile, shardCount);
+            manager.createAccounts(names, 100.0);
+            manager.shutdown();
+            
+            long start = System.nanoTime();
+            manager = new ATMManager(dataFile, shardCount);
+            long loaded = System.nanoTime() - start;
+            
+            ArrayList<Account> all = new ArrayList<>(manager.getAllAccounts().values());
+            Account first = all.get(0);
+            first.deposit(1.0);
+            start = System.nanoTime();
+            manager.saveData();
+            long saved = System.nanoTime() - start;
+            
+            // Pairs within one shard only append to its ledger; pairs across shards run the two-phase commit
+            ArrayList<Account[]> sameShard = new ArrayList<>();
+            ArrayList<Account[]> crossShard = new ArrayList<>();
+            for (int i = 1; i < all.size() && (sameShard.size() < 1000 || crossShard.size() < 1000); i++) {
+                Account other = all.get(i);
+                boolean same = manager.shardIndexOf(first.getUserId()) == manager.shardIndexOf(other.getUserId());
+                ArrayList<Account[]> pairs = same ? sameShard : crossShard;
+                if (pairs.size() < 1000) {
+                    pairs.add(new Account[] {first, other});
+                }
+            }
+            String transfers = "";
+            for (ArrayList<Account[]> pairs : Arrays.asList(sameShard, crossShard)) {
+                if (pairs.isEmpty()) {
+                    continue;
+                }
+                start = System.nanoTime();
+                for (Account[] pair : pairs) {
+                    pair[0].transfer(pair[1], 0.01);
+                }
+                manager.commit();
+                long elapsed = System.nanoTime() - start;
+                transfers += String.format(", %s transfer %.1f us", pairs == sameShard ? "same-shard" : "cross-shard",
+                        elapsed / 1000.0 / pairs.size());
+            }
+            manager.shutdown();
+            System.out.printf("%d shard(s): load %d accounts %.0f ms, save after one deposit %.0f ms%s%n",
+                    shardCount, accounts, loaded / 1e6, saved / 1e6, transfers);
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+    
+    // A payroll run of one employer paying every other account: one durable transfer at a time
+    // (timed on a sample, since each waits for its own fsync), against a single transferBatch
+    private static void benchmarkBatchTransfer(int payments) throws Exception {
+        ArrayList<String> names = new ArrayList<>(payments + 1);
+        for (int i = 0; i <= payments; i++) {
+            names.add("Employee " + i);
+        }
+        int sample = Math.min(payments, 1000);
+        for (int shardCount : new int[] {1, 4}) {
+            File directory = java.nio.file.Files.createTempDirectory("atm-batch").toFile();
+            ATMManager manager = new ATMManager(new File(directory, "atm_data.json").getPath(), shardCount);
+            ArrayList<Account> all = manager.createAccounts(names, 0.0);
+            Account employer = all.get(0);
+            employer.deposit(payments * 2500.0 + sample);
+            manager.commit();
+            
+            long start = System.nanoTime();
+            for (int i = 1; i <= sample; i++) {
+                employer.transfer(all.get(i), 1.0);
+                manager.commit();
+            }
+            double singleMicros = (System.nanoTime() - start) / 1000.0 / sample;
+            
+            BatchTransfer payroll = new BatchTransfer();
+            for (int i = 1; i <= payments; i++) {
+                payroll.add(all.get(i).getUserId(), 2500.0);
+            }
+            long before = employer.getBalanceCents();
+            start = System.nanoTime();
+            boolean applied = manager.transferBatch(employer, payroll);
+            long batchNanos = System.nanoTime() - start;
+            boolean paid = applied && before - employer.getBalanceCents() == payments * 250000L;
+            
+            start = System.nanoTime();
+            ReconciliationReport report = manager.reconcile();
+            long reconcileNanos = System.nanoTime() - start;
+            manager.shutdown();
+            System.out.printf("%d shard(s): one at a time %.1f us per transfer (%.1f s for %d); batch of %d %.0f ms (%.2f us per transfer)%n",
+                    shardCount, singleMicros, singleMicros * payments / 1e6, payments, payments, batchNanos / 1e6, batchNanos / 1000.0 / payments);
+            
+            // The batch must come back from the ledger on restart, whole
+            manager = new ATMManager(new File(directory, "atm_data.json").getPath(), shardCount);
+            boolean reloaded = manager.getAccountByUserId(employer.getUserId()).getBalanceCents() == employer.getBalanceCents();
+            manager.shutdown();
+            System.out.printf("  applied %s, reconcile %s in %.0f ms, reloaded %s%n", paid ? "OK" : "FAILED",
+                    report.isClean() ? "clean" : report.getDiscrepancyCount() + " discrepancies", reconcileNanos / 1e6, reloaded ? "OK" : "FAILED");
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+            if (!paid || !reloaded || !report.isClean()) {
+                System.exit(1);
+            }
+        }
+    }
+    
+    // Every terminal paying the same merchant, from 1 terminal up to the given number: transfers
+    // through the combining path against the plain path that queues on the merchant's lock
+    private static void benchmarkHotAccount(int maxTerminals) throws Exception {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        System.out.println(cpus + " CPU(s)" + (cpus == 1 ? "; on one CPU credits queue on the lock, so both paths should match" : ""));
+        System.out.printf("%-10s %18s %18s%n", "terminals", "combining tx/s", "plain lock tx/s");
+        for (int terminals = 1; terminals <= maxTerminals; terminals *= 2) {
+            double[] rates = new double[2];
+            for (int mode = 0; mode < 2; mode++) {
+                boolean combining = mode == 0;
+                // The merchant sorts between the terminals, so both lock orders are exercised
+                Account merchant = new Account("USER500000", "0000", "Merchant", 0.0);
+                Account[] payers = new Account[terminals];
+                for (int i = 0; i < terminals; i++) {
+                    payers[i] = new Account("USER" + (i % 2 == 0 ? 400000 + i : 600000 + i), "0000", "Terminal " + i, 1e9);
+                }
+                java.util.concurrent.atomic.AtomicBoolean running = new java.util.concurrent.atomic.AtomicBoolean(true);
+                java.util.concurrent.atomic.LongAdder transfers = new java.util.concurrent.atomic.LongAdder();
+                Thread[] workers = new Thread[terminals];
+                for (int t = 0; t < terminals; t++) {
+                    Account payer = payers[t];
+                    workers[t] = new Thread(() -> {
+                        while (running.get()) {
+                            if (combining ? payer.transfer(merchant, 0.01) : payer.transferBlocking(merchant, 0.01)) {
+                                transfers.increment();
+                            }
+                        }
+                    });
+                }
+                for (Thread worker : workers) {
+                    worker.start();
+                }
+                Thread.sleep(500); // Warmup
+                long before = transfers.sum();
+                long start = System.nanoTime();
+                Thread.sleep(2000);
+                long counted = transfers.sum() - before;
+                long elapsed = System.nanoTime() - start;
+                running.set(false);
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+                if (merchant.getBalanceCents() != transfers.sum() || merchant.getTransactionCount() != transfers.sum() + 1) {
+                    System.err.println("FAILED: the merchant's balance does not match the transfers made");
+                    System.exit(1);
+                }
+                rates[mode] = counted / (elapsed / 1e9);
+            }
+            System.out.printf("%-10d %18.0f %18.0f%n", terminals, rates[0], rates[1]);
+        }
+    }
+    
+    // AccountIndexes queries against the full scan of getAllAccounts() they replace
+    private static void benchmarkIndexes(int accountCount) throws Exception {
+        String[] firstNames = {"Alice", "Bob", "Carol", "David", "Erin", "Frank", "Grace", "Heidi", "Ivan", "Judy"};
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        long day = 86400000L;
+        AccountStore store = new AccountStore();
+        for (int i = 0; i < accountCount; i++) {
+            String name = firstNames[random.nextInt(firstNames.length)] + " " + Integer.toString(random.nextInt(1 << 20), 36);
+            long created = now - random.nextInt(365) * day;
+            store.putIfAbsent(new Account(new LedgerRecord(0, created, LedgerRecord.CREATE, "USER" + (100000000 + i), "",
+                    random.nextInt(10000000), name, "0000")));
+        }
+        Collection<Account> all = store.asMap().values();
+        long start = System.nanoTime();
+        AccountIndexes indexes = new AccountIndexes(store);
+        System.out.printf("%d accounts, indexes built in %.2f s%n", accountCount, (System.nanoTime() - start) / 1e9);
+        
+        long inactiveBefore = now - 90 * day;
+        measure("balance $50000-$50100, index", () -> indexes.balanceBetween(5000000, 5010000, 0, 50).size());
+        measure("balance $50000-$50100, full scan", () -> scanPage(all, a -> a.getBalanceCents() >= 5000000 && a.getBalanceCents() <= 5010000,
+                Comparator.comparingLong(Account::getBalanceCents)).size());
+        measure("name prefix \"grace a\", index", () -> indexes.namePrefix("grace a", 0, 50).size());
+        measure("name prefix \"grace a\", full scan", () -> scanPage(all, a -> a.getName().toLowerCase().startsWith("grace a"),
+                Comparator.comparing(Account::getName)).size());
+        measure("inactive 90 days, page 2, index", () -> indexes.inactiveSince(inactiveBefore, 50, 50).size());
+        measure("inactive 90 days, page 2, full scan", () -> scanPage(all, a -> a.getLastActivity() < inactiveBefore,
+                Comparator.comparingLong(Account::getLastActivity)).size());
+        
+        Account[] accounts = all.toArray(new Account[0]);
+        measure("100000 deposits, no index upkeep", () -> {
+            for (int i = 0; i < 100000; i++) {
+                accounts[random.nextInt(accounts.length)].deposit(1.0);
+            }
+            return 100000;
+        });
+        measure("100000 deposits + index update", () -> {
+            for (int i = 0; i < 100000; i++) {
+                Account account = accounts[random.nextInt(accounts.length)];
+                account.deposit(1.0);
+                indexes.update(account);
+            }
+            return 100000;
+        });
+    }
+    
+    // BalanceReconciler over a ledger of the given number of history entries (100 per account):
+    // a quiet store, the same store while terminals keep transferring, and one injected fault
+    private static void benchmarkReconcile(int entries) throws Exception {
+        int accountCount = Math.max(1000, entries / 100);
+        AccountStore store = new AccountStore();
+        Account[] accounts = new Account[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            accounts[i] = new Account("USER" + (100000000 + i), "0000", "Customer " + i, 1000.0);
+            store.putIfAbsent(accounts[i]);
+        }
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        for (long made = accountCount; made < entries; ) {
+            Account account = accounts[random.nextInt(accountCount)];
+            switch (random.nextInt(4)) {
+                case 0:
+                    account.deposit(random.nextInt(1, 10000) / 100.0);
+                    made++;
+                    break;
+                case 1:
+                    made += account.withdraw(random.nextInt(1, 10000) / 100.0) ? 1 : 0;
+                    break;
+                default:
+                    Account to = accounts[random.nextInt(accountCount)];
+                    made += to != account && account.transfer(to, random.nextInt(1, 10000) / 100.0) ? 2 : 0;
+            }
+        }
+        System.out.printf("%d accounts, %d history entries built in %.1f s, %d fork-join workers%n", accountCount, entries,
+                (System.nanoTime() - start) / 1e9, java.util.concurrent.ForkJoinPool.getCommonPoolParallelism());
+        
+        BalanceReconciler reconciler = new BalanceReconciler(store.asMap());
+        measure("reconcile, quiet", () -> reconciler.run().getDiscrepancyCount() + " discrepancies");
+        
+        // Terminals keep transferring; nothing in flight may be reported as a discrepancy
+        java.util.concurrent.atomic.AtomicBoolean running = new java.util.concurrent.atomic.AtomicBoolean(true);
+        Thread terminal = new Thread(() -> {
+            java.util.concurrent.ThreadLocalRandom r = java.util.concurrent.ThreadLocalRandom.current();
+            while (running.get()) {
+                Account from = accounts[r.nextInt(accountCount)];
+                Account to = accounts[r.nextInt(accountCount)];
+                if (from != to) {
+                    from.transfer(to, r.nextInt(1, 1000) / 100.0);
+                }
+            }
+        });
+        terminal.start();
+        measure("reconcile, terminals transferring", () -> reconciler.run().getDiscrepancyCount() + " discrepancies");
+        running.set(false);
+        terminal.join();
+        
+        // A credit whose debit never happened; the recipient's own history stays consistent
+        accounts[1].applyTransferIn(new LedgerRecord(0, System.currentTimeMillis() - 1000, LedgerRecord.TRANSFER,
+                accounts[0].getUserId(), accounts[1].getUserId(), 500, "", ""));
+        ReconciliationReport report = reconciler.run();
+        System.out.print(report);
+        if (report.getDiscrepancyCount() != 1 || report.listed.get(0).kind != ReconciliationReport.Kind.MISSING_TRANSFER_OUT) {
+            System.err.println("FAILED: expected the injected fault to be found");
+            System.exit(1);
+        }
+    }
+    
+    // What an admin search had to do without indexes: filter everything, sort, take a page
+    private static ArrayList<Account> scanPage(Collection<Account> all, java.util.function.Predicate<Account> filter, Comparator<Account> order) {
+        ArrayList<Account> matches = new ArrayList<>();
+        for (Account account : all) {
+            if (filter.test(account)) {
+                matches.add(account);
+            }
+        }
+        matches.sort(order);
+        return new ArrayList<>(matches.subList(0, Math.min(50, matches.size())));
+    }
+    
+    // Audit log: an incremental audit after the given number of transactions, then inclusion proofs
+    // for a sample of them, each checked against the audit's root. A proof must also fail once
+    // its entry is changed, or against the root from before the last transactions.
+    private static void benchmarkAudit(int transactions) throws Exception {
+        ArrayList<String> names = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            names.add("Customer " + i);
+        }
+        for (int shardCount : new int[] {1, 4}) {
+            File directory = java.nio.file.Files.createTempDirectory("atm-audit").toFile();
+            ATMManager manager = new ATMManager(new File(directory, "atm_data.json").getPath(), shardCount);
+            ATMService service = new ATMService(manager);
+            ArrayList<Account> all = manager.createAccounts(names, 1000.0);
+            Random random = new Random(42);
+            for (int i = 0; i < transactions; i++) {
+                Account account = all.get(random.nextInt(all.size()));
+                switch (i % 3) {
+                    case 0:
+                        service.deposit(account, 1);
+                        break;
+                    case 1:
+                        service.withdraw(account, 1);
+                        break;
+                    default:
+                        service.transfer(account, all.get(random.nextInt(all.size())).getUserId(), 1);
+                }
+            }
+            service.commitAsync().join();
+            AuditReport full = manager.audit();
+            Account last = all.get(0);
+            service.deposit(last, 1);
+            service.commitAsync().join();
+            AuditReport report = manager.audit();
+            
+            int sample = Math.min(transactions, 1000);
+            int proven = 0;
+            int rejected = 0;
+            long proveNanos = 0;
+            for (int i = 0; i < sample; i++) {
+                Account account = all.get(random.nextInt(all.size()));
+                TransactionHistory history = account.getHistory();
+                long time = history.getTime(random.nextInt(history.size()));
+                long start = System.nanoTime();
+                AuditProof proof = manager.proveTransaction(account.getUserId(), time);
+                proveNanos += System.nanoTime() - start;
+                if (proof != null && proof.verify(report.root)) {
+                    proven++;
+                }
+                if (proof != null) {
+                    byte[] changed = proof.entry.clone();
+                    changed[changed.length - 1] ^= 1;
+                    AuditProof forged = new AuditProof(changed, proof.entryIndex, proof.blockSize, proof.entryPath, proof.chain,
+                            proof.blockIndex, proof.blockCount, proof.blockPath, proof.root);
+                    if (!forged.verify(report.root)) {
+                        rejected++;
+                    }
+                }
+            }
+            AuditProof newest = manager.proveTransaction(last.getUserId(), last.getHistory().getLastTime());
+            boolean newestProven = newest != null && newest.verify(report.root) && !newest.verify(full.root);
+            manager.shutdown();
+            System.out.printf("%d shard(s): full audit of %d entries %.0f ms, incremental audit of %d %.1f ms; proof %.0f us average%n",
+                    shardCount, full.entriesChecked, full.elapsedNanos / 1e6, report.entriesChecked, report.elapsedNanos / 1e6, proveNanos / 1000.0 / sample);
+            boolean ok = full.isClean() && report.isClean() && proven == sample && rejected == sample && newestProven;
+            System.out.printf("  %d/%d proofs verified, %d/%d changed entries rejected, newest transaction %s: %s%n",
+                    proven, sample, rejected, sample, newestProven ? "proven" : "NOT proven", ok ? "OK" : "FAILED");
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+            if (!ok) {
+                System.exit(1);
+            }
+        }
+    }
+    
+    // Random transfers from many threads while readers poll balances; afterwards the total
+    // money must be unchanged, no balance negative and every history entry accounted for
+    private static void stressTransfers(int accountCount, int transfers) throws Exception {
+        Account[] accounts = new Account[accountCount];
+        long initialTotal = 0;
+        for (int i = 0; i < accountCount; i++) {
+            accounts[i] = new Account("USER" + (100000 + i), "0000", "Customer " + i, 1000.0);
+            initialTotal += accounts[i].getBalanceCents();
+        }
+        
+        int threads = Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
+        int perThread = transfers / threads;
+        java.util.concurrent.atomic.AtomicLong succeeded = new java.util.concurrent.atomic.AtomicLong();
+        java.util.concurrent.atomic.AtomicLong reads = new java.util.concurrent.atomic.AtomicLong();
+        java.util.concurrent.atomic.AtomicBoolean running = new java.util.concurrent.atomic.AtomicBoolean(true);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                java.util.concurrent.ThreadLocalRandom random = java.util.concurrent.ThreadLocalRandom.current();
+                for (int i = 0; i < perThread; i++) {
+                    Account from = accounts[random.nextInt(accountCount)];
+                    Account to = accounts[random.nextInt(accountCount)];
+                    if (from != to && from.transfer(to, random.nextInt(1, 20000) / 100.0)) {
+                        succeeded.incrementAndGet();
+                    }
+                }
+            });
+        }
+        Thread reader = new Thread(() -> {
+            java.util.concurrent.ThreadLocalRandom random = java.util.concurrent.ThreadLocalRandom.current();
+            while (running.get()) {
+                if (accounts[random.nextInt(accountCount)].getBalance() < 0) {
+                    System.err.println("Negative balance observed");
+                }
+                reads.incrementAndGet();
+            }
+        });
+        
+        long start = System.nanoTime();
+        reader.start();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        running.set(false);
+        reader.join();
+        
+        long finalTotal = 0;
+        long historyEntries = 0;
+        boolean negative = false;
+        for (Account account : accounts) {
+            finalTotal += account.getBalanceCents();
+            historyEntries += account.getTransactionCount();
+            negative |= account.getBalanceCents() < 0;
+        }
+        long expectedEntries = accountCount + 2 * succeeded.get();
+        System.out.printf("%d threads, %d transfer attempts, %d succeeded in %.2f s (%.0f transfers/s), %d concurrent balance reads%n",
+                threads, (long) perThread * threads, succeeded.get(), elapsed / 1e9, perThread * threads / (elapsed / 1e9), reads.get());
+        System.out.printf("Total money: before %d cents, after %d cents; history entries %d (expected %d)%n",
+                initialTotal, finalTotal, historyEntries, expectedEntries);
+        if (finalTotal != initialTotal || negative || historyEntries != expectedEntries) {
+            System.err.println("FAILED: money was not conserved");
+            System.exit(1);
+        }
+        System.out.println("OK: money conserved");
+    }
+    
+    static String generateDocument(int accounts, int historyPerAccount) {
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < accounts; i++) {
+            JSONObject account = new JSONObject();
+            account.put("userId", "USER" + (100000 + i));
+            account.put("pin", String.format("%04d", i % 10000));
+            account.put("name", "Customer " + i);
+            account.put("balance", 1000.0 + i);
+            account.put("lastSequence", i);
+            JSONArray history = new JSONArray();
+            for (int h = 0; h < historyPerAccount; h++) {
+                JSONArray entry = new JSONArray();
+                entry.put(1762856667000L + h);
+                entry.put("DEPOSIT");
+                entry.put(h * 1000L);
+                entry.put(100000L + h * 100L);
+                history.put(entry);
+            }
+            account.put("history", history);
+            array.put(account);
+        }
+        JSONObject main = new JSONObject();
+        main.put("accounts", array);
+        main.put("ledgerSequence", accounts);
+        main.put("lastUpdated", "2025-11-11 10:32:09");
+        return main.toString(4);
+    }
+    
+    // JMH-style suite with GC profiling: the JSON codec at several document sizes, Account
+    // operations including the history append, and ATMManager load, save and authenticate at
+    // 1k, 100k and 1M accounts (up to maxAccounts). Time-boxed operations report the mean and
+    // spread over the measured iterations; whole loads and saves run once per iteration.
+    private static void microBenchmarks(int maxAccounts) throws Exception {
+        System.out.printf("%-26s %-16s %4s %16s %14s %6s %14s %9s %9s%n",
+                "Benchmark", "Param", "Mode", "Score", "Error", "Units", "alloc B/op", "gc.count", "gc.ms");
+        for (int accounts : new int[] {10, 1000, 10000}) {
+            String document = generateDocument(accounts, 10);
+            JSONObject parsed = new JSONObject(document);
+            JSONArray accountArray = parsed.getJSONArray("accounts");
+            String arrayDocument = accountArray.toString(4);
+            String param = accounts + " accounts";
+            timed("JSONObject(String)", param, 1, () -> new JSONObject(document));
+            timed("JSONObject.toString(4)", param, 1, () -> parsed.toString(4));
+            timed("JSONArray(String)", param, 1, () -> new JSONArray(arrayDocument));
+            timed("JSONArray.toString(4)", param, 1, () -> accountArray.toString(4));
+        }
+        
+        // A fresh account per 1000 operations, so the history grows as it does in service
+        timed("Account.deposit", "", 1000, () -> {
+            Account account = new Account("USER100000", "0000", "Customer", 1000.0);
+            for (int i = 0; i < 1000; i++) {
+                account.deposit(1.25);
+            }
+            return account;
+        });
+        timed("Account.withdraw", "", 1000, () -> {
+            Account account = new Account("USER100000", "0000", "Customer", 1000.0);
+            for (int i = 0; i < 1000; i++) {
+                account.withdraw(0.25);
+            }
+            return account;
+        });
+        timed("Account.transfer", "", 1000, () -> {
+            Account from = new Account("USER100000", "0000", "Customer", 1000.0);
+            Account to = new Account("USER100001", "0001", "Customer", 1000.0);
+            for (int i = 0; i < 1000; i++) {
+                from.transfer(to, 0.25);
+            }
+            return to;
+        });
+        
+        for (int accounts : new int[] {1000, 100000, 1000000}) {
+            if (accounts > maxAccounts) {
+                break;
+            }
+            File directory = java.nio.file.Files.createTempDirectory("atm-micro").toFile();
+            String dataFile = new File(directory, "atm_data.json").getPath();
+            ArrayList<String> names = new ArrayList<>(accounts);
+            for (int i = 0; i < accounts; i++) {
+                names.add("Customer " + i);
+            }
+            ATMManager manager = quietly(() -> new ATMManager(dataFile));
+            ArrayList<Account> created = manager.createAccounts(names, 100.0);
+            quietly(() -> {
+                manager.shutdown();
+                return null;
+            });
+            String param = accounts + " accounts";
+            
+            singleShot("ATMManager.loadData", param, () -> {
+                ATMManager loaded = new ATMManager(dataFile);
+                loaded.shutdown();
+                return loaded;
+            });
+            ATMManager loaded = quietly(() -> new ATMManager(dataFile));
+            Account first = loaded.getAccountByUserId(created.get(0).getUserId());
+            singleShot("ATMManager.saveData", param, () -> {
+                first.deposit(0.01); // Something to save
+                loaded.saveData();
+                return first;
+            });
+            
+            String[] userIds = new String[created.size()];
+            String[] pins = new String[created.size()];
+            for (int i = 0; i < userIds.length; i++) {
+                userIds[i] = created.get(i).getUserId();
+                pins[i] = created.get(i).getPin();
+            }
+            int[] next = {0};
+            timed("ATMManager.authenticate", param, 1, () -> {
+                int i = next[0] = (next[0] + 7919) % userIds.length; // Strides across the table, not one hot entry
+                return loaded.authenticate(userIds[i], pins[i]);
+            });
+            quietly(() -> {
+                loaded.shutdown();
+                return null;
+            });
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+    
+    // Repeats the operation for ITERATION_NANOS per iteration, over warmup and measured iterations
+    private static void timed(String name, String param, int operationsPerCall, Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            long end = System.nanoTime() + ITERATION_NANOS;
+            while (System.nanoTime() < end) {
+                blackhole = operation.run();
+            }
+        }
+        double[] scores = new double[MEASURED_ITERATIONS];
+        long operations = 0;
+        long bytes = 0;
+        long[] gcBefore = gcTotals();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long calls = 0;
+            long bytesBefore = allocatedBytes();
+            long start = System.nanoTime();
+            long end = start + ITERATION_NANOS;
+            long now;
+            do {
+                blackhole = operation.run();
+                calls++;
+            } while ((now = System.nanoTime()) < end);
+            bytes += allocatedBytes() - bytesBefore;
+            operations += calls * operationsPerCall;
+            scores[i] = (double) (now - start) / (calls * operationsPerCall);
+        }
+        report(name, param, "avgt", scores, "ns/op", (double) bytes / operations, gcBefore);
+    }
+    
+    // One call per iteration, for operations too long to repeat within one
+    private static void singleShot(String name, String param, Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            blackhole = quietly(operation);
+        }
+        double[] scores = new double[MEASURED_ITERATIONS];
+        long bytes = 0;
+        long[] gcBefore = gcTotals();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long bytesBefore = allocatedBytes();
+            long start = System.nanoTime();
+            blackhole = quietly(operation);
+            scores[i] = (System.nanoTime() - start) / 1e6;
+            bytes += allocatedBytes() - bytesBefore;
+        }
+        report(name, param, "ss", scores, "ms/op", (double) bytes / MEASURED_ITERATIONS, gcBefore);
+    }
+    
+    private static void report(String name, String param, String mode, double[] scores, String units, double bytesPerOperation, long[] gcBefore) {
+        long[] gcAfter = gcTotals();
+        double mean = Arrays.stream(scores).average().orElse(0);
+        double variance = Arrays.stream(scores).map(score -> (score - mean) * (score - mean)).sum() / Math.max(1, scores.length - 1);
+        System.out.printf("%-26s %-16s %4s %16.3f %14.3f %6s %14.1f %9d %9d%n", name, param, mode, mean,
+                Math.sqrt(variance), units, bytesPerOperation, gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]);
+    }
+    
+    // Collections and milliseconds spent collecting so far, over all collectors
+    private static long[] gcTotals() {
+        long[] totals = new long[2];
+        for (java.lang.management.GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals[0] += Math.max(0, collector.getCollectionCount());
+            totals[1] += Math.max(0, collector.getCollectionTime());
+        }
+        return totals;
+    }
+    
+    // Runs the operation with the ATM's progress messages on System.out suppressed
+    private static <T> T quietly(Operation operation) throws Exception {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            @SuppressWarnings("unchecked")
+            T result = (T) operation.run();
+            return result;
+        } finally {
+            System.setOut(out);
+        }
+    }
+    
+    interface Operation {
+        Object run() throws Exception;
+    }
+    
+    // Runs warmup and measured iterations, reporting mean time and bytes allocated per operation
+    static void measure(String name, Operation operation) throws Exception {
+        Object sink = null;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink = operation.run();
+        }
+        long totalNanos = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long bytesBefore = allocatedBytes();
+            long start = System.nanoTime();
+            sink = operation.run();
+            totalNanos += System.nanoTime() - start;
+            totalBytes += allocatedBytes() - bytesBefore;
+        }
+        System.out.printf("%-40s %10.2f ms/op %10.1f MB alloc/op   (%s)%n", name,
+                totalNanos / 1e6 / MEASURED_ITERATIONS, totalBytes / 1048576.0 / MEASURED_ITERATIONS, sink);
+    }
+    
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+    
+    // The recursive substring-splitting parser that JSONReader replaced, kept as a baseline
+    static class LegacyParser {
+        static HashMap<String, Object> parseObject(String json) {
+            HashMap<String, Object> map = new HashMap<>();
+            json = json.trim();
+            if (json.startsWith("{") && json.endsWith("}")) {
+                for (String pair : split(json.substring(1, json.length() - 1))) {
+                    int colonIndex = pair.indexOf(":");
+                    if (colonIndex > 0) {
+                        String key = pair.substring(0, colonIndex).trim().replace("\"", "");
+                        map.put(key, parseValue(pair.substring(colonIndex + 1).trim()));
+                    }
+                }
+            }
+            return map;
+        }
+        
+        static ArrayList<Object> parseArray(String json) {
+            ArrayList<Object> list = new ArrayList<>();
+            json = json.trim();
+            if (json.startsWith("[") && json.endsWith("]")) {
+                json = json.substring(1, json.length() - 1);
+                if (json.trim().isEmpty()) return list;
+                for (String element : split(json)) {
+                    list.add(parseValue(element.trim()));
+                }
+            }
+            return list;
+        }
+        
+        private static Object parseValue(String value) {
+            if (value.startsWith("[")) {
+                return parseArray(value);
+            } else if (value.startsWith("{")) {
+                return parseObject(value);
+            } else if (value.startsWith("\"")) {
+                return value.substring(1, value.length() - 1);
+            } else if (value.contains(".")) {
+                return Double.parseDouble(value);
+            }
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                return value;
+            }
+        }
+        
+        private static String[] split(String json) {
+            ArrayList<String> parts = new ArrayList<>();
+            int braceCount = 0;
+            int bracketCount = 0;
+            StringBuilder current = new StringBuilder();
+            boolean inString = false;
+            
+            for (int i = 0; i < json.length(); i++) {
+                char c = json.charAt(i);
+                
+                if (c == '"' && (i == 0 || json.charAt(i - 1) != '\\')) {
+                    inString = !inString;
+                }
+                
+                if (!inString) {
+                    if (c == '{') braceCount++;
+                    else if (c == '}') braceCount--;
+                    else if (c == '[') bracketCount++;
+                    else if (c == ']') bracketCount--;
+                    
+                    if (c == ',' && braceCount == 0 && bracketCount == 0) {
+                        parts.add(current.toString().trim());
+                        current = new StringBuilder();
+                        continue;
+                    }
+                }
+                
+                current.append(c);
+            }
+            
+            if (current.length() > 0) {
+                parts.add(current.toString().trim());
+            }
+            
+            return parts.toArray(new String[0]);
+        }
+    }
+}
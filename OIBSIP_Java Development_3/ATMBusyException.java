@@ -0,0 +1,16 @@
+import java.util.concurrent.*;
+
+// A request ATMDispatcher turned away, with how long the caller should wait before retrying
+class ATMBusyException extends RejectedExecutionException {
+    private static final long serialVersionUID = 1L;
+    private final long retryAfterMillis;
+    
+    ATMBusyException(String message, long retryAfterMillis) {
+        super(message + "; retry after " + retryAfterMillis + " ms");
+        this.retryAfterMillis = retryAfterMillis;
+    }
+    
+    long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
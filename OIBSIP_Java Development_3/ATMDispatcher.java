@@ -0,0 +1,201 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.io.*;
+
+// Bounded, prioritised queue in front of ATMService for bursts of load. Requests wait in one
+// queue per priority (-Datm.dispatch.queueSize each, default 10,000) for a fixed pool of
+// -Datm.dispatch.workers (default four per CPU); -Datm.dispatch.threads=virtual runs the workers
+// on virtual threads where the JVM has them. Workers always take the highest priority waiting,
+// so balance checks and logins stay quick while history pages queue behind. A full queue
+// refuses at once with ATMBusyException, whose retry-after hint is the estimated time to
+// clear the requests ahead, instead of tying up another thread.
+class ATMDispatcher implements Closeable {
+    enum Priority {
+        HIGH("High"),
+        NORMAL("Normal"),
+        LOW("Low");
+        
+        final String label;
+        
+        Priority(String label) {
+            this.label = label;
+        }
+    }
+    
+    static final int WORKERS = Integer.getInteger("atm.dispatch.workers", 4 * Runtime.getRuntime().availableProcessors());
+    static final int QUEUE_SIZE = Integer.getInteger("atm.dispatch.queueSize", 10000);
+    static final boolean VIRTUAL_THREADS = "virtual".equals(System.getProperty("atm.dispatch.threads"));
+    private static final long MIN_RETRY_MILLIS = 10;
+    private static final long MAX_RETRY_MILLIS = 10000;
+    private static final ATMMetrics metrics = ATMMetrics.get();
+    
+    private static final class Task<T> {
+        final Priority priority;
+        final java.util.function.Supplier<T> work;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final long queuedAt = System.nanoTime();
+        
+        Task(Priority priority, java.util.function.Supplier<T> work) {
+            this.priority = priority;
+            this.work = work;
+        }
+        
+        void run() {
+            metrics.dequeued(priority, System.nanoTime() - queuedAt);
+            if (result.isDone()) {
+                return; // Cancelled by the caller while it waited
+            }
+            try {
+                result.complete(work.get());
+            } catch (RuntimeException | Error e) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+    
+    private final ATMService service;
+    private final ArrayBlockingQueue<Task<?>>[] queues;
+    private final Semaphore waiting = new Semaphore(0); // One permit per queued task, plus one per worker on close
+    private final ArrayList<Thread> workers = new ArrayList<>();
+    private final LongAdder serviceNanos = new LongAdder();
+    private final LongAdder served = new LongAdder();
+    private volatile boolean closed;
+    
+    ATMDispatcher(ATMService service) {
+        this(service, WORKERS, QUEUE_SIZE, VIRTUAL_THREADS);
+    }
+    
+    @SuppressWarnings({"unchecked", "rawtypes"}) // Arrays of a generic type can only be created raw
+    ATMDispatcher(ATMService service, int workerCount, int queueSize, boolean virtualThreads) {
+        if (workerCount < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("A dispatcher needs at least one worker and one queue slot");
+        }
+        this.service = service;
+        queues = new ArrayBlockingQueue[Priority.values().length];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ArrayBlockingQueue<>(queueSize);
+        }
+        ThreadFactory factory = virtualThreads ? virtualThreadFactory() : null;
+        if (factory == null) {
+            factory = Thread::new;
+        }
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = factory.newThread(this::work);
+            worker.setName("atm-dispatch-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+    
+    // Thread.ofVirtual().factory(), looked up reflectively so this still compiles and runs on
+    // JVMs without virtual threads; returns null there
+    static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+    
+    public CompletableFuture<Account> authenticate(String userId, String pin) {
+        return submit(Priority.HIGH, () -> service.authenticate(userId, pin));
+    }
+    
+    public CompletableFuture<Double> balance(Account account) {
+        return submit(Priority.HIGH, () -> service.balance(account));
+    }
+    
+    public CompletableFuture<ATMService.Result> deposit(Account account, double amount, String requestId) {
+        return submit(Priority.NORMAL, () -> service.deposit(account, amount, requestId));
+    }
+    
+    public CompletableFuture<ATMService.Result> withdraw(Account account, double amount, String requestId) {
+        return submit(Priority.NORMAL, () -> service.withdraw(account, amount, requestId));
+    }
+    
+    public CompletableFuture<ATMService.Result> transfer(Account from, String recipientId, double amount, String requestId) {
+        return submit(Priority.NORMAL, () -> service.transfer(from, recipientId, amount, requestId));
+    }
+    
+    public CompletableFuture<ArrayList<String>> history(Account account, int offset, int limit, boolean newestFirst) {
+        return submit(Priority.LOW, () -> service.history(account, offset, limit, newestFirst));
+    }
+    
+    // Queues any other work; the future fails with ATMBusyException if the queue is full
+    <T> CompletableFuture<T> submit(Priority priority, java.util.function.Supplier<T> work) {
+        Task<T> task = new Task<>(priority, work);
+        if (closed || !queues[priority.ordinal()].offer(task)) {
+            metrics.dispatchRejected(priority);
+            String reason = closed ? "The ATM is shutting down" : "The ATM is busy";
+            return CompletableFuture.failedFuture(new ATMBusyException(reason, retryAfterMillis(priority)));
+        }
+        metrics.enqueued(priority);
+        waiting.release();
+        return task.result;
+    }
+    
+    int getQueueDepth(Priority priority) {
+        return queues[priority.ordinal()].size();
+    }
+    
+    // Time for the workers to get through everything ahead of a request of this priority, at the
+    // mean service time so far
+    long retryAfterMillis(Priority priority) {
+        long ahead = 0;
+        for (int i = 0; i <= priority.ordinal(); i++) {
+            ahead += queues[i].size();
+        }
+        long count = served.sum();
+        double meanNanos = count > 0 ? (double) serviceNanos.sum() / count : 0;
+        long millis = (long) (ahead * meanNanos / workers.size() / 1e6);
+        return Math.max(MIN_RETRY_MILLIS, Math.min(MAX_RETRY_MILLIS, millis));
+    }
+    
+    private void work() {
+        while (true) {
+            waiting.acquireUninterruptibly();
+            Task<?> task = next();
+            if (task == null) {
+                return; // Only happens once closed and drained
+            }
+            long start = System.nanoTime();
+            task.run();
+            serviceNanos.add(System.nanoTime() - start);
+            served.increment();
+        }
+    }
+    
+    private Task<?> next() {
+        for (ArrayBlockingQueue<Task<?>> queue : queues) {
+            Task<?> task = queue.poll();
+            if (task != null) {
+                return task;
+            }
+        }
+        return null;
+    }
+    
+    // Stops taking requests and waits for the workers to finish the ones already queued
+    @Override
+    public void close() {
+        closed = true;
+        waiting.release(workers.size());
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        // A request queued as the dispatcher closed may have missed the workers
+        Task<?> task;
+        while ((task = next()) != null) {
+            metrics.dequeued(task.priority, System.nanoTime() - task.queuedAt);
+            task.result.completeExceptionally(new ATMBusyException("The ATM is shutting down", MAX_RETRY_MILLIS));
+        }
+    }
+}
@@ -1,474 +1,15 @@
 import javax.swing.*;
+import javax.swing.table.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
-// Account class to store user account information
-class Account {
-    private String userId;
-    private String pin;
-    private String name;
-    private double balance;
-    private ArrayList<String> transactionHistory;
-    
-    public Account(String userId, String pin, String name, double initialBalance) {
-        this.userId = userId;
-        this.pin = pin;
-        this.name = name;
-        this.balance = initialBalance;
-        this.transactionHistory = new ArrayList<>();
-        addTransaction("Account created with initial balance: $" + initialBalance);
-    }
-    
-    public Account(JSONObject json) {
-        this.userId = json.getString("userId");
-        this.pin = json.getString("pin");
-        this.name = json.getString("name");
-        this.balance = json.getDouble("balance");
-        this.transactionHistory = new ArrayList<>();
-        JSONArray history = json.getJSONArray("transactionHistory");
-        for (int i = 0; i < history.length(); i++) {
-            this.transactionHistory.add(history.getString(i));
-        }
-    }
-    
-    public JSONObject toJSON() {
-        JSONObject json = new JSONObject();
-        json.put("userId", userId);
-        json.put("pin", pin);
-        json.put("name", name);
-        json.put("balance", balance);
-        json.put("transactionHistory", new JSONArray(transactionHistory));
-        return json;
-    }
-    
-    public String getUserId() {
-        return userId;
-    }
-    
-    public String getPin() {
-        return pin;
-    }
-    
-    public String getName() {
-        return name;
-    }
-    
-    public double getBalance() {
-        return balance;
-    }
-    
-    public void deposit(double amount) {
-        balance += amount;
-        addTransaction("Deposit: +$" + amount + " | Balance: $" + balance);
-    }
-    
-    public boolean withdraw(double amount) {
-        if (amount > balance) {
-            return false;
-        }
-        balance -= amount;
-        addTransaction("Withdrawal: -$" + amount + " | Balance: $" + balance);
-        return true;
-    }
-    
-    public boolean transfer(Account recipient, double amount) {
-        if (amount > balance) {
-            return false;
-        }
-        balance -= amount;
-        recipient.deposit(amount);
-        addTransaction("Transfer: -$" + amount + " to " + recipient.getName() + " | Balance: $" + balance);
-        return true;
-    }
-    
-    public ArrayList<String> getTransactionHistory() {
-        return transactionHistory;
-    }
-    
-    private void addTransaction(String transaction) {
-        String timestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
-        transactionHistory.add(timestamp + " - " + transaction);
-    }
-}
-
-// ATM Manager class to handle all accounts
-class ATMManager {
-    private HashMap<String, Account> accounts;
-    private Random random;
-    private static final String DATA_FILE = "atm_data.json";
-    private static final String ADMIN_PASSWORD = "admin123"; // Admin password
-    
-    public ATMManager() {
-        random = new Random();
-        loadData();
-    }
-    
-    public String createAccount(String name, double initialBalance) {
-        String userId = generateUserId();
-        String pin = generatePin();
-        Account account = new Account(userId, pin, name, initialBalance);
-        accounts.put(userId, account);
-        saveData();
-        return "Account Created!\nUser ID: " + userId + "\nPIN: " + pin + "\nPlease save these credentials.";
-    }
-    
-    private String generateUserId() {
-        String userId;
-        do {
-            userId = "USER" + (1000 + random.nextInt(9000));
-        } while (accounts.containsKey(userId));
-        return userId;
-    }
-    
-    private String generatePin() {
-        return String.format("%04d", random.nextInt(10000));
-    }
-    
-    public Account authenticate(String userId, String pin) {
-        Account account = accounts.get(userId);
-        if (account != null && account.getPin().equals(pin)) {
-            return account;
-        }
-        return null;
-    }
-    
-    public boolean authenticateAdmin(String password) {
-        return ADMIN_PASSWORD.equals(password);
-    }
-    
-    public Account getAccountByUserId(String userId) {
-        return accounts.get(userId);
-    }
-    
-    public ArrayList<String> getAllUserIds() {
-        return new ArrayList<>(accounts.keySet());
-    }
-    
-    public HashMap<String, Account> getAllAccounts() {
-        return accounts;
-    }
-    
-    public void saveData() {
-        try {
-            JSONObject mainObj = new JSONObject();
-            JSONArray accountsArray = new JSONArray();
-            
-            for (Account account : accounts.values()) {
-                accountsArray.put(account.toJSON());
-            }
-            
-            mainObj.put("accounts", accountsArray);
-            mainObj.put("lastUpdated", new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
-            
-            FileWriter file = new FileWriter(DATA_FILE);
-            file.write(mainObj.toString(4)); // Pretty print with 4 spaces indentation
-            file.close();
-            
-            System.out.println("Data saved successfully to " + DATA_FILE);
-        } catch (IOException e) {
-            System.err.println("Error saving data: " + e.getMessage());
-        }
-    }
-    
-    private void loadData() {
-        File file = new File(DATA_FILE);
-        if (file.exists()) {
-            try {
-                StringBuilder content = new StringBuilder();
-                BufferedReader reader = new BufferedReader(new FileReader(DATA_FILE));
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    content.append(line);
-                }
-                reader.close();
-                
-                JSONObject mainObj = new JSONObject(content.toString());
-                JSONArray accountsArray = mainObj.getJSONArray("accounts");
-                
-                accounts = new HashMap<>();
-                for (int i = 0; i < accountsArray.length(); i++) {
-                    JSONObject accountJson = accountsArray.getJSONObject(i);
-                    Account account = new Account(accountJson);
-                    accounts.put(account.getUserId(), account);
-                }
-                
-                System.out.println("Data loaded successfully! " + accounts.size() + " accounts found.");
-            } catch (Exception e) {
-                System.err.println("Error loading data: " + e.getMessage());
-                accounts = new HashMap<>();
-            }
-        } else {
-            accounts = new HashMap<>();
-            System.out.println("No existing data found. Starting fresh.");
-        }
-    }
-}
-
-// JSON library - minimal implementation
-class JSONObject {
-    private HashMap<String, Object> map;
-    
-    public JSONObject() {
-        map = new HashMap<>();
-    }
-    
-    public JSONObject(String jsonString) {
-        map = new HashMap<>();
-        parseJSON(jsonString);
-    }
-    
-    private void parseJSON(String json) {
-        json = json.trim();
-        if (json.startsWith("{") && json.endsWith("}")) {
-            json = json.substring(1, json.length() - 1);
-            String[] pairs = splitJSON(json);
-            for (String pair : pairs) {
-                int colonIndex = pair.indexOf(":");
-                if (colonIndex > 0) {
-                    String key = pair.substring(0, colonIndex).trim().replace("\"", "");
-                    String value = pair.substring(colonIndex + 1).trim();
-                    
-                    if (value.startsWith("[")) {
-                        map.put(key, new JSONArray(value));
-                    } else if (value.startsWith("{")) {
-                        map.put(key, new JSONObject(value));
-                    } else if (value.startsWith("\"")) {
-                        map.put(key, value.substring(1, value.length() - 1));
-                    } else if (value.contains(".")) {
-                        map.put(key, Double.parseDouble(value));
-                    } else {
-                        try {
-                            map.put(key, Integer.parseInt(value));
-                        } catch (NumberFormatException e) {
-                            map.put(key, value);
-                        }
-                    }
-                }
-            }
-        }
-    }
-    
-    private String[] splitJSON(String json) {
-        ArrayList<String> parts = new ArrayList<>();
-        int braceCount = 0;
-        int bracketCount = 0;
-        StringBuilder current = new StringBuilder();
-        boolean inString = false;
-        
-        for (int i = 0; i < json.length(); i++) {
-            char c = json.charAt(i);
-            
-            if (c == '"' && (i == 0 || json.charAt(i - 1) != '\\')) {
-                inString = !inString;
-            }
-            
-            if (!inString) {
-                if (c == '{') braceCount++;
-                else if (c == '}') braceCount--;
-                else if (c == '[') bracketCount++;
-                else if (c == ']') bracketCount--;
-                
-                if (c == ',' && braceCount == 0 && bracketCount == 0) {
-                    parts.add(current.toString().trim());
-                    current = new StringBuilder();
-                    continue;
-                }
-            }
-            
-            current.append(c);
-        }
-        
-        if (current.length() > 0) {
-            parts.add(current.toString().trim());
-        }
-        
-        return parts.toArray(new String[0]);
-    }
-    
-    public void put(String key, Object value) {
-        map.put(key, value);
-    }
-    
-    public String getString(String key) {
-        Object value = map.get(key);
-        return value != null ? value.toString() : null;
-    }
-    
-    public double getDouble(String key) {
-        Object value = map.get(key);
-        if (value instanceof Number) {
-            return ((Number) value).doubleValue();
-        }
-        return Double.parseDouble(value.toString());
-    }
-    
-    public JSONArray getJSONArray(String key) {
-        return (JSONArray) map.get(key);
-    }
-    
-    public String toString(int indent) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\n");
-        String indentStr = " ".repeat(indent);
-        
-        int count = 0;
-        for (Map.Entry<String, Object> entry : map.entrySet()) {
-            sb.append(indentStr).append("\"").append(entry.getKey()).append("\": ");
-            Object value = entry.getValue();
-            
-            if (value instanceof String) {
-                sb.append("\"").append(value).append("\"");
-            } else if (value instanceof JSONArray) {
-                sb.append(((JSONArray) value).toString(indent));
-            } else if (value instanceof JSONObject) {
-                sb.append(((JSONObject) value).toString(indent));
-            } else {
-                sb.append(value);
-            }
-            
-            if (count < map.size() - 1) {
-                sb.append(",");
-            }
-            sb.append("\n");
-            count++;
-        }
-        
-        sb.append("}");
-        return sb.toString();
-    }
-}
-
-class JSONArray {
-    private ArrayList<Object> list;
-    
-    public JSONArray() {
-        list = new ArrayList<>();
-    }
-    
-    public JSONArray(ArrayList<?> arrayList) {
-        list = new ArrayList<>(arrayList);
-    }
-    
-    public JSONArray(String jsonString) {
-        list = new ArrayList<>();
-        parseArray(jsonString);
-    }
-    
-    private void parseArray(String json) {
-        json = json.trim();
-        if (json.startsWith("[") && json.endsWith("]")) {
-            json = json.substring(1, json.length() - 1);
-            if (json.trim().isEmpty()) return;
-            
-            String[] elements = splitArrayJSON(json);
-            for (String element : elements) {
-                element = element.trim();
-                if (element.startsWith("\"")) {
-                    list.add(element.substring(1, element.length() - 1));
-                } else if (element.startsWith("{")) {
-                    list.add(new JSONObject(element));
-                } else if (element.contains(".")) {
-                    list.add(Double.parseDouble(element));
-                } else {
-                    try {
-                        list.add(Integer.parseInt(element));
-                    } catch (NumberFormatException e) {
-                        list.add(element);
-                    }
-                }
-            }
-        }
-    }
-    
-    private String[] splitArrayJSON(String json) {
-        ArrayList<String> parts = new ArrayList<>();
-        int braceCount = 0;
-        int bracketCount = 0;
-        StringBuilder current = new StringBuilder();
-        boolean inString = false;
-        
-        for (int i = 0; i < json.length(); i++) {
-            char c = json.charAt(i);
-            
-            if (c == '"' && (i == 0 || json.charAt(i - 1) != '\\')) {
-                inString = !inString;
-            }
-            
-            if (!inString) {
-                if (c == '{') braceCount++;
-                else if (c == '}') braceCount--;
-                else if (c == '[') bracketCount++;
-                else if (c == ']') bracketCount--;
-                
-                if (c == ',' && braceCount == 0 && bracketCount == 0) {
-                    parts.add(current.toString().trim());
-                    current = new StringBuilder();
-                    continue;
-                }
-            }
-            
-            current.append(c);
-        }
-        
-        if (current.length() > 0) {
-            parts.add(current.toString().trim());
-        }
-        
-        return parts.toArray(new String[0]);
-    }
-    
-    public void put(Object value) {
-        list.add(value);
-    }
-    
-    public String getString(int index) {
-        return list.get(index).toString();
-    }
-    
-    public JSONObject getJSONObject(int index) {
-        return (JSONObject) list.get(index);
-    }
-    
-    public int length() {
-        return list.size();
-    }
-    
-    public String toString(int indent) {
-        if (list.isEmpty()) return "[]";
-        
-        StringBuilder sb = new StringBuilder();
-        sb.append("[\n");
-        String indentStr = " ".repeat(indent);
-        
-        for (int i = 0; i < list.size(); i++) {
-            Object value = list.get(i);
-            sb.append(indentStr);
-            
-            if (value instanceof String) {
-                sb.append("\"").append(value).append("\"");
-            } else if (value instanceof JSONObject) {
-                sb.append(((JSONObject) value).toString(indent));
-            } else {
-                sb.append(value);
-            }
-            
-            if (i < list.size() - 1) {
-                sb.append(",");
-            }
-            sb.append("\n");
-        }
-        
-        sb.append(" ".repeat(indent - 4)).append("]");
-        return sb.toString();
-    }
-}
-
 // Main ATM Interface GUI
 public class ATMInterface extends JFrame {
     private ATMManager atmManager;
+    private ATMService atmService;
     private Account currentAccount;
     private CardLayout cardLayout;
     private JPanel mainPanel;
@@ -478,22 +19,26 @@ public class ATMInterface extends JFrame {
     private JPanel loginPanel;
     private JPanel menuPanel;
     private JPanel createAccountPanel;
+    private JLabel saveStatusLabel; // Shows whether the last transaction is on disk yet
     
     public ATMInterface() {
-        atmManager = new ATMManager();
+        this(new ATMManager());
+    }
+    
+    // Opens on data that is already loaded, such as a standby taking over
+    public ATMInterface(ATMManager manager) {
+        atmManager = manager;
+        atmService = new ATMService(atmManager);
         
         setTitle("ATM System");
         setSize(600, 500);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLocationRelativeTo(null);
         
-        // Add window listener to save data on close
-        addWindowListener(new WindowAdapter() {
-            @Override
-            public void windowClosing(WindowEvent e) {
-                atmManager.saveData();
-            }
-        });
+        // Data is flushed on close by the shutdown hook ATMManager registers, not on the event thread
+        saveStatusLabel = new JLabel(" ", SwingConstants.CENTER);
+        saveStatusLabel.setFont(new Font("Arial", Font.PLAIN, 12));
+        saveStatusLabel.setBorder(BorderFactory.createEmptyBorder(0, 0, 8, 0));
         
         cardLayout = new CardLayout();
         mainPanel = new JPanel(cardLayout);
@@ -579,58 +124,140 @@ public class ATMInterface extends JFrame {
         adminDialog.setSize(800, 600);
         adminDialog.setLocationRelativeTo(this);
         
-        JTextArea textArea = new JTextArea();
-        textArea.setEditable(false);
-        textArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
-        
-        StringBuilder sb = new StringBuilder();
-        sb.append("-----------------------------------------------------------------------------\n");
-        sb.append("                          ALL ACCOUNTS INFORMATION\n");
-        sb.append("---------------------------------------------------------------------------\n\n");
-        
-        HashMap<String, Account> allAccounts = atmManager.getAllAccounts();
-        
-        if (allAccounts.isEmpty()) {
-            sb.append("No accounts found in the system.\n");
-        } else {
-            int count = 1;
-            for (Account account : allAccounts.values()) {
-                sb.append("Account #").append(count++).append("\n");
-                sb.append("***********************************************************************\n");
-                sb.append("User ID      : ").append(account.getUserId()).append("\n");
-                sb.append("PIN          : ").append(account.getPin()).append("\n");
-                sb.append("Name         : ").append(account.getName()).append("\n");
-                sb.append("Balance      : $").append(String.format("%.2f", account.getBalance())).append("\n");
-                sb.append("Transactions : ").append(account.getTransactionHistory().size()).append(" total\n");
-                sb.append("\n");
+        // The table only renders the rows in view, however many accounts there are
+        AccountTableModel model = new AccountTableModel(atmManager);
+        JTable table = new JTable(model);
+        table.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        table.setRowHeight(20);
+        table.setFillsViewportHeight(true);
+        table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        table.getColumnModel().getColumn(0).setPreferredWidth(50);
+        table.getColumnModel().getColumn(3).setPreferredWidth(200);
+        DefaultTableCellRenderer rightAligned = new DefaultTableCellRenderer();
+        rightAligned.setHorizontalAlignment(SwingConstants.RIGHT);
+        table.getColumnModel().getColumn(AccountTableModel.BALANCE_COLUMN).setCellRenderer(rightAligned);
+        table.getTableHeader().setReorderingAllowed(false);
+        table.getTableHeader().addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int column = table.columnAtPoint(e.getPoint());
+                if (column >= 0) {
+                    model.sortBy(table.convertColumnIndexToModel(column));
+                    for (int i = 0; i < table.getColumnCount(); i++) {
+                        table.getColumnModel().getColumn(i).setHeaderValue(model.getColumnName(i)); // Moves the sort arrow
+                    }
+                    table.getTableHeader().repaint();
+                }
+            }
+        });
+        
+        JLabel totalLabel = new JLabel();
+        Runnable updateTotal = () -> totalLabel.setText("Showing " + model.getRowCount() + " of " + model.getTotalAccounts() + " accounts");
+        updateTotal.run();
+        model.addTableModelListener(e -> updateTotal.run());
+        
+        JTextField filterField = new JTextField(20);
+        filterField.addActionListener(e -> model.setFilter(filterField.getText()));
+        filterField.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+            @Override
+            public void insertUpdate(javax.swing.event.DocumentEvent e) {
+                model.setFilter(filterField.getText());
             }
             
-            sb.append("***************************************************************************\n");
-            sb.append("Total Accounts: ").append(allAccounts.size()).append("\n");
-            sb.append("Data File: atm_data.json (You can open this file in any text editor)\n");
-            sb.append("***************************************************************************\n");
-        }
+            @Override
+            public void removeUpdate(javax.swing.event.DocumentEvent e) {
+                model.setFilter(filterField.getText());
+            }
+            
+            @Override
+            public void changedUpdate(javax.swing.event.DocumentEvent e) {
+            }
+        });
+        
+        JPanel filterPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        filterPanel.add(new JLabel("Filter by User ID or name:"));
+        filterPanel.add(filterField);
+        filterPanel.add(totalLabel);
+        adminDialog.add(filterPanel, BorderLayout.NORTH);
         
-        textArea.setText(sb.toString());
-        textArea.setCaretPosition(0);
+        adminDialog.add(new JScrollPane(table), BorderLayout.CENTER);
         
-        JScrollPane scrollPane = new JScrollPane(textArea);
-        adminDialog.add(scrollPane, BorderLayout.CENTER);
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        JLabel fileLabel = new JLabel("Data File: atm_data.json (changes made outside the ATM are caught by Audit)");
+        fileLabel.setBorder(BorderFactory.createEmptyBorder(0, 10, 0, 0));
+        bottomPanel.add(fileLabel, BorderLayout.WEST);
         
         JPanel buttonPanel = new JPanel();
         
-        JButton refreshBtn = new JButton("Refresh");
-        refreshBtn.addActionListener(e -> {
-            adminDialog.dispose();
-            showAdminPanel();
+        // Runs on the fork-join pool while terminals keep working; the report opens when it is done
+        JButton reconcileBtn = new JButton("Reconcile");
+        reconcileBtn.addActionListener(e -> {
+            reconcileBtn.setEnabled(false);
+            CompletableFuture.supplyAsync(atmManager::reconcile).whenComplete((report, error) -> SwingUtilities.invokeLater(() -> {
+                reconcileBtn.setEnabled(true);
+                if (error != null) {
+                    JOptionPane.showMessageDialog(adminDialog, "Reconciliation failed: " + error.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                JTextArea reportArea = new JTextArea(report.toString(), 20, 70);
+                reportArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
+                reportArea.setEditable(false);
+                JOptionPane.showMessageDialog(adminDialog, new JScrollPane(reportArea), "Reconciliation Report",
+                        report.isClean() ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.WARNING_MESSAGE);
+            }));
+        });
+        buttonPanel.add(reconcileBtn);
+        
+        // Checks what the audit log gained since the last audit, off the event thread
+        JButton auditBtn = new JButton("Audit");
+        auditBtn.addActionListener(e -> {
+            auditBtn.setEnabled(false);
+            CompletableFuture.supplyAsync(atmManager::audit).whenComplete((report, error) -> SwingUtilities.invokeLater(() -> {
+                auditBtn.setEnabled(true);
+                if (error != null) {
+                    JOptionPane.showMessageDialog(adminDialog, "Audit failed: " + error.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                JTextArea reportArea = new JTextArea(report.toString(), 12, 70);
+                reportArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
+                reportArea.setEditable(false);
+                JOptionPane.showMessageDialog(adminDialog, new JScrollPane(reportArea), "Audit Report",
+                        report.isClean() ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.WARNING_MESSAGE);
+            }));
         });
+        buttonPanel.add(auditBtn);
+        
+        JButton timelineBtn = new JButton("Balance History");
+        timelineBtn.addActionListener(e -> {
+            int row = table.getSelectedRow();
+            if (row < 0) {
+                JOptionPane.showMessageDialog(adminDialog, "Select an account first!", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            showBalanceHistory(adminDialog, model.getAccountAt(table.convertRowIndexToModel(row)));
+        });
+        buttonPanel.add(timelineBtn);
+        
+        JButton refreshBtn = new JButton("Refresh");
+        refreshBtn.addActionListener(e -> model.reload());
         buttonPanel.add(refreshBtn);
         
         JButton closeBtn = new JButton("Close");
         closeBtn.addActionListener(e -> adminDialog.dispose());
         buttonPanel.add(closeBtn);
+        bottomPanel.add(buttonPanel, BorderLayout.EAST);
         
-        adminDialog.add(buttonPanel, BorderLayout.SOUTH);
+        adminDialog.add(bottomPanel, BorderLayout.SOUTH);
+        
+        // Rows update live while the dialog is open
+        atmManager.addAccountListener(model);
+        adminDialog.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                atmManager.removeAccountListener(model);
+            }
+        });
+        adminDialog.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
         adminDialog.setVisible(true);
     }
     
@@ -681,7 +308,7 @@ public class ATMInterface extends JFrame {
             String userId = userIdField.getText();
             String pin = new String(pinField.getPassword());
             
-            Account account = atmManager.authenticate(userId, pin);
+            Account account = atmService.authenticate(userId, pin);
             if (account != null) {
                 currentAccount = account;
                 updateMenuPanel();
@@ -822,7 +449,7 @@ public class ATMInterface extends JFrame {
         welcomeLabel.setForeground(Color.WHITE);
         topPanel.add(welcomeLabel, BorderLayout.WEST);
         
-        JLabel balanceLabel = new JLabel("Balance: $" + String.format("%.2f", currentAccount.getBalance()));
+        JLabel balanceLabel = new JLabel("Balance: $" + String.format("%.2f", atmService.balance(currentAccount)));
         balanceLabel.setFont(new Font("Arial", Font.BOLD, 22));
         balanceLabel.setForeground(Color.WHITE);
         topPanel.add(balanceLabel, BorderLayout.EAST);
@@ -855,17 +482,32 @@ public class ATMInterface extends JFrame {
         
         JButton quitBtn = createMenuButton("Logout", new Color(204, 0, 0));
         quitBtn.addActionListener(e -> {
-            atmManager.saveData();
+            persistChanges();
             currentAccount = null;
             cardLayout.show(mainPanel, "welcome");
         });
         buttonPanel.add(quitBtn);
         
         menuPanel.add(buttonPanel, BorderLayout.CENTER);
+        menuPanel.add(saveStatusLabel, BorderLayout.SOUTH);
         menuPanel.revalidate();
         menuPanel.repaint();
     }
     
+    // Saves in the background so the confirmation appears at once; the status line
+    // reports when the change is durable, and a failed save is shown as an error
+    private void persistChanges() {
+        saveStatusLabel.setText("Saving...");
+        atmService.commitAsync().whenComplete((ignored, error) -> SwingUtilities.invokeLater(() -> {
+            if (error == null) {
+                saveStatusLabel.setText("All changes saved");
+            } else {
+                saveStatusLabel.setText("Changes not saved");
+                JOptionPane.showMessageDialog(this, "Your transaction could not be saved:\n" + error.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }));
+    }
+    
     private JButton createMenuButton(String text, Color bgColor) {
         JButton button = new JButton(text);
         button.setFont(new Font("Arial", Font.BOLD, 18));
@@ -878,19 +520,60 @@ public class ATMInterface extends JFrame {
     
     private void showTransactionHistory() {
         JDialog dialog = new JDialog(this, "Transaction History", true);
-        dialog.setSize(600, 400);
+        dialog.setSize(700, 450);
         dialog.setLocationRelativeTo(this);
         
-        JTextArea textArea = new JTextArea();
-        textArea.setEditable(false);
-        textArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
-        
-        ArrayList<String> history = currentAccount.getTransactionHistory();
-        for (String transaction : history) {
-            textArea.append(transaction + "\n");
-        }
+        // Rows are formatted only as they scroll into view, however long the history is
+        TransactionHistoryListModel model = new TransactionHistoryListModel(currentAccount, atmService::accountName);
+        JList<String> list = new JList<>(model);
+        list.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        list.setFixedCellHeight(18); // Fixed sizes stop JList from measuring every row
+        list.setFixedCellWidth(900);
+        
+        JTextField fromField = new JTextField(8);
+        JTextField toField = new JTextField(8);
+        String[] typeNames = {"All", "Deposits", "Withdrawals", "Transfers in", "Transfers out"};
+        int[] typeMasks = {TransactionHistoryListModel.ALL_TYPES,
+            1 << TransactionHistory.DEPOSIT, 1 << TransactionHistory.WITHDRAWAL,
+            1 << TransactionHistory.TRANSFER_IN, 1 << TransactionHistory.TRANSFER_OUT};
+        JComboBox<String> typeBox = new JComboBox<>(typeNames);
+        JCheckBox newestFirstBox = new JCheckBox("Newest first", true);
+        JLabel countLabel = new JLabel();
+        Runnable updateCount = () -> countLabel.setText(model.getSize() + " of " + model.getTotalSize() + " entries");
+        updateCount.run();
+        
+        JButton applyBtn = new JButton("Apply");
+        applyBtn.addActionListener(e -> {
+            try {
+                // Dates are yyyy-MM-dd; an empty field leaves that end open, and the To date is inclusive
+                long from = fromField.getText().trim().isEmpty() ? Long.MIN_VALUE
+                        : startOfDay(java.time.LocalDate.parse(fromField.getText().trim()));
+                long to = toField.getText().trim().isEmpty() ? Long.MAX_VALUE
+                        : startOfDay(java.time.LocalDate.parse(toField.getText().trim()).plusDays(1));
+                model.setFilter(from, to, typeMasks[typeBox.getSelectedIndex()]);
+                updateCount.run();
+                list.ensureIndexIsVisible(0);
+            } catch (java.time.format.DateTimeParseException ex) {
+                JOptionPane.showMessageDialog(dialog, "Dates must be in yyyy-MM-dd format!", "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        });
+        newestFirstBox.addActionListener(e -> {
+            model.setNewestFirst(newestFirstBox.isSelected());
+            list.ensureIndexIsVisible(0);
+        });
         
-        JScrollPane scrollPane = new JScrollPane(textArea);
+        JPanel filterPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        filterPanel.add(new JLabel("From:"));
+        filterPanel.add(fromField);
+        filterPanel.add(new JLabel("To:"));
+        filterPanel.add(toField);
+        filterPanel.add(typeBox);
+        filterPanel.add(applyBtn);
+        filterPanel.add(newestFirstBox);
+        filterPanel.add(countLabel);
+        dialog.add(filterPanel, BorderLayout.NORTH);
+        
+        JScrollPane scrollPane = new JScrollPane(list);
         dialog.add(scrollPane, BorderLayout.CENTER);
         
         JButton closeBtn = new JButton("Close");
@@ -902,22 +585,87 @@ public class ATMInterface extends JFrame {
         dialog.setVisible(true);
     }
     
+    // Admin view of one account over a period: its balance at the start and end of the period and
+    // the transactions in between, all found by binary search on the history's timestamps
+    private void showBalanceHistory(JDialog owner, Account account) {
+        JDialog dialog = new JDialog(owner, "Balance History - " + account.getUserId() + " (" + account.getName() + ")", true);
+        dialog.setSize(700, 450);
+        dialog.setLocationRelativeTo(owner);
+        
+        TransactionHistoryListModel model = new TransactionHistoryListModel(account, atmManager::getAccountName);
+        model.setNewestFirst(false);
+        JList<String> list = new JList<>(model);
+        list.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        list.setFixedCellHeight(18);
+        list.setFixedCellWidth(900);
+        
+        String today = java.time.LocalDate.now().toString();
+        JTextField fromField = new JTextField(today, 8);
+        JTextField toField = new JTextField(today, 8);
+        JLabel openingLabel = new JLabel();
+        JLabel closingLabel = new JLabel();
+        
+        Runnable apply = () -> {
+            try {
+                // Dates are yyyy-MM-dd and both days are included
+                java.time.LocalDate fromDate = java.time.LocalDate.parse(fromField.getText().trim());
+                java.time.LocalDate toDate = java.time.LocalDate.parse(toField.getText().trim());
+                long from = startOfDay(fromDate);
+                long to = startOfDay(toDate.plusDays(1));
+                model.setFilter(from, to, TransactionHistoryListModel.ALL_TYPES);
+                openingLabel.setText(String.format("Balance at start of %s: $%.2f", fromDate,
+                        account.balanceAt(java.time.Instant.ofEpochMilli(from - 1))));
+                closingLabel.setText(String.format("Balance at end of %s: $%.2f   (%d transactions)", toDate,
+                        account.balanceAt(java.time.Instant.ofEpochMilli(to - 1)), model.getSize()));
+                list.ensureIndexIsVisible(0);
+            } catch (java.time.format.DateTimeParseException ex) {
+                JOptionPane.showMessageDialog(dialog, "Dates must be in yyyy-MM-dd format!", "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        };
+        JButton showBtn = new JButton("Show");
+        showBtn.addActionListener(e -> apply.run());
+        
+        JPanel filterPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        filterPanel.add(new JLabel("From:"));
+        filterPanel.add(fromField);
+        filterPanel.add(new JLabel("To:"));
+        filterPanel.add(toField);
+        filterPanel.add(showBtn);
+        filterPanel.add(openingLabel);
+        dialog.add(filterPanel, BorderLayout.NORTH);
+        
+        dialog.add(new JScrollPane(list), BorderLayout.CENTER);
+        
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        closingLabel.setBorder(BorderFactory.createEmptyBorder(0, 10, 0, 0));
+        bottomPanel.add(closingLabel, BorderLayout.WEST);
+        JButton closeBtn = new JButton("Close");
+        closeBtn.addActionListener(e -> dialog.dispose());
+        JPanel buttonPanel = new JPanel();
+        buttonPanel.add(closeBtn);
+        bottomPanel.add(buttonPanel, BorderLayout.EAST);
+        dialog.add(bottomPanel, BorderLayout.SOUTH);
+        
+        apply.run();
+        dialog.setVisible(true);
+    }
+    
+    private static long startOfDay(java.time.LocalDate date) {
+        return date.atStartOfDay(java.time.ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+    
     private void showWithdrawDialog() {
         String input = JOptionPane.showInputDialog(this, "Enter amount to withdraw:");
         if (input != null && !input.isEmpty()) {
             try {
                 double amount = Double.parseDouble(input);
-                if (amount <= 0) {
-                    JOptionPane.showMessageDialog(this, "Amount must be positive!", "Error", JOptionPane.ERROR_MESSAGE);
-                    return;
-                }
-                
-                if (currentAccount.withdraw(amount)) {
-                    atmManager.saveData();
-                    JOptionPane.showMessageDialog(this, "Withdrawal successful!\nNew Balance: $" + String.format("%.2f", currentAccount.getBalance()), "Success", JOptionPane.INFORMATION_MESSAGE);
+                ATMService.Result result = atmService.withdraw(currentAccount, amount);
+                if (result == ATMService.Result.OK) {
+                    persistChanges();
+                    JOptionPane.showMessageDialog(this, "Withdrawal successful!\nNew Balance: $" + String.format("%.2f", atmService.balance(currentAccount)), "Success", JOptionPane.INFORMATION_MESSAGE);
                     updateMenuPanel();
                 } else {
-                    JOptionPane.showMessageDialog(this, "Insufficient balance!", "Error", JOptionPane.ERROR_MESSAGE);
+                    JOptionPane.showMessageDialog(this, result.message, "Error", JOptionPane.ERROR_MESSAGE);
                 }
             } catch (NumberFormatException ex) {
                 JOptionPane.showMessageDialog(this, "Invalid amount!", "Error", JOptionPane.ERROR_MESSAGE);
@@ -930,14 +678,14 @@ public class ATMInterface extends JFrame {
         if (input != null && !input.isEmpty()) {
             try {
                 double amount = Double.parseDouble(input);
-                if (amount <= 0) {
-                    JOptionPane.showMessageDialog(this, "Amount must be positive!", "Error", JOptionPane.ERROR_MESSAGE);
+                ATMService.Result result = atmService.deposit(currentAccount, amount);
+                if (result != ATMService.Result.OK) {
+                    JOptionPane.showMessageDialog(this, result.message, "Error", JOptionPane.ERROR_MESSAGE);
                     return;
                 }
                 
-                currentAccount.deposit(amount);
-                atmManager.saveData();
-                JOptionPane.showMessageDialog(this, "Deposit successful!\nNew Balance: $" + String.format("%.2f", currentAccount.getBalance()), "Success", JOptionPane.INFORMATION_MESSAGE);
+                persistChanges();
+                JOptionPane.showMessageDialog(this, "Deposit successful!\nNew Balance: $" + String.format("%.2f", atmService.balance(currentAccount)), "Success", JOptionPane.INFORMATION_MESSAGE);
                 updateMenuPanel();
             } catch (NumberFormatException ex) {
                 JOptionPane.showMessageDialog(this, "Invalid amount!", "Error", JOptionPane.ERROR_MESSAGE);
@@ -954,41 +702,56 @@ public class ATMInterface extends JFrame {
         
         String recipientId = JOptionPane.showInputDialog(this, "Enter recipient User ID:");
         if (recipientId != null && !recipientId.isEmpty()) {
-            if (recipientId.equals(currentAccount.getUserId())) {
-                JOptionPane.showMessageDialog(this, "Cannot transfer to your own account!", "Error", JOptionPane.ERROR_MESSAGE);
-                return;
-            }
-            
-            Account recipient = atmManager.getAccountByUserId(recipientId);
-            if (recipient == null) {
-                JOptionPane.showMessageDialog(this, "Recipient account not found!", "Error", JOptionPane.ERROR_MESSAGE);
+            ATMService.Result check = atmService.checkRecipient(currentAccount, recipientId);
+            if (check != ATMService.Result.OK) {
+                JOptionPane.showMessageDialog(this, check.message, "Error", JOptionPane.ERROR_MESSAGE);
                 return;
             }
             
-            String input = JOptionPane.showInputDialog(this, "Enter amount to transfer to " + recipient.getName() + ":");
+            String input = JOptionPane.showInputDialog(this, "Enter amount to transfer to " + atmService.accountName(recipientId) + ":");
             if (input != null && !input.isEmpty()) {
+                double amount;
                 try {
-                    double amount = Double.parseDouble(input);
-                    if (amount <= 0) {
-                        JOptionPane.showMessageDialog(this, "Amount must be positive!", "Error", JOptionPane.ERROR_MESSAGE);
-                        return;
-                    }
-                    
-                    if (currentAccount.transfer(recipient, amount)) {
-                        atmManager.saveData();
-                        JOptionPane.showMessageDialog(this, "Transfer successful!\nNew Balance: $" + String.format("%.2f", currentAccount.getBalance()), "Success", JOptionPane.INFORMATION_MESSAGE);
-                        updateMenuPanel();
-                    } else {
-                        JOptionPane.showMessageDialog(this, "Insufficient balance!", "Error", JOptionPane.ERROR_MESSAGE);
-                    }
+                    amount = Double.parseDouble(input);
                 } catch (NumberFormatException ex) {
                     JOptionPane.showMessageDialog(this, "Invalid amount!", "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
                 }
+                // A transfer between shards waits for its two-phase commit, so it runs off the event thread
+                Account account = currentAccount;
+                saveStatusLabel.setText("Transferring...");
+                CompletableFuture.supplyAsync(() -> atmService.transfer(account, recipientId, amount)).whenComplete((result, error) -> SwingUtilities.invokeLater(() -> {
+                    if (error != null) {
+                        // A transfer between shards could not be made durable; neither balance changed
+                        saveStatusLabel.setText("Transfer failed");
+                        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                        if (cause instanceof UncheckedIOException) {
+                            cause = cause.getCause();
+                        }
+                        JOptionPane.showMessageDialog(this, "Transfer failed: " + cause.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                    } else if (result == ATMService.Result.OK) {
+                        persistChanges();
+                        JOptionPane.showMessageDialog(this, "Transfer successful!\nNew Balance: $" + String.format("%.2f", atmService.balance(account)), "Success", JOptionPane.INFORMATION_MESSAGE);
+                        if (currentAccount == account) {
+                            updateMenuPanel();
+                        }
+                    } else {
+                        saveStatusLabel.setText(" ");
+                        JOptionPane.showMessageDialog(this, result.message, "Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                }));
             }
         }
     }
     
     public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> new ATMInterface());
+        SwingUtilities.invokeLater(() -> {
+            try {
+                new ATMInterface();
+            } catch (IllegalStateException e) {
+                JOptionPane.showMessageDialog(null, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                System.exit(1);
+            }
+        });
     }
 }
@@ -0,0 +1,27 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("atm.LoadData")
+@Label("ATM Load Data")
+@Category({"ATM", "Persistence"})
+@Description("Startup load of the shard snapshots, before the ledger tails are replayed")
+class ATMLoadEvent extends Event {
+    @Label("Shards Read")
+    int shards;
+    
+    @Label("Accounts Loaded")
+    long accounts;
+    
+    @Label("Bytes Read")
+    @DataAmount
+    long bytesRead;
+    
+    synchronized void addShard(long bytes) {
+        shards++;
+        bytesRead += bytes;
+    }
+}
@@ -0,0 +1,347 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Drives ATMService from thousands of simulated terminals and reports throughput and
+// latency percentiles per operation. Each terminal is a virtual thread where the JVM has
+// them (Java 21+); older JVMs fall back to platform threads.
+//   javac ATMInterface.java ATMLoadGenerator.java
+//   java ATMLoadGenerator --terminals 2000 --accounts 10000 --seconds 30
+//   java ATMLoadGenerator --mix balance=40,deposit=20,withdraw=20,transfer=15,history=5 --durable
+// Options:
+//   --terminals N   concurrent terminals (default 1000)
+//   --accounts N    customer accounts created before the run (default 10000)
+//   --seconds N     measured run time (default 20), after --warmup N seconds (default 5)
+//   --mix LIST      operation weights out of authenticate, balance, deposit, withdraw, transfer, history
+//   --think-ms N    mean pause between a terminal's operations (default 0, as fast as possible)
+//   --durable       wait for each change to be committed to disk, as part of its latency
+//   --dispatch      send requests through ATMDispatcher's bounded queues (-Datm.dispatch.* apply);
+//                   a terminal turned away waits the retry-after hint and moves on
+// The run uses a fresh data directory, deleted afterwards; -Datm.* properties apply as usual.
+public class ATMLoadGenerator {
+    private static final String[] OPERATIONS = {"authenticate", "balance", "deposit", "withdraw", "transfer", "history"};
+    private static final int AUTHENTICATE = 0;
+    private static final int BALANCE = 1;
+    private static final int DEPOSIT = 2;
+    private static final int WITHDRAW = 3;
+    private static final int TRANSFER = 4;
+    private static final int HISTORY = 5;
+    
+    private final ATMService service;
+    private final String[] userIds;
+    private final String[] pins;
+    private final int[] cumulativeWeights;
+    private final long thinkMillis;
+    private final boolean durable;
+    private final ATMDispatcher dispatcher; // Null to call the service directly
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder depositedCents = new LongAdder();
+    private final LongAdder withdrawnCents = new LongAdder();
+    private volatile boolean measuring;
+    private volatile boolean running = true;
+    
+    private ATMLoadGenerator(ATMService service, ArrayList<Account> customers, int[] weights, long thinkMillis, boolean durable,
+            ATMDispatcher dispatcher) {
+        this.service = service;
+        this.dispatcher = dispatcher;
+        this.userIds = new String[customers.size()];
+        this.pins = new String[customers.size()];
+        for (int i = 0; i < customers.size(); i++) {
+            userIds[i] = customers.get(i).getUserId();
+            pins[i] = customers.get(i).getPin();
+        }
+        this.cumulativeWeights = new int[weights.length];
+        int sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            sum += weights[i];
+            cumulativeWeights[i] = sum;
+        }
+        this.thinkMillis = thinkMillis;
+        this.durable = durable;
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int terminals = 1000;
+        int accountCount = 10000;
+        int seconds = 20;
+        int warmup = 5;
+        long thinkMillis = 0;
+        boolean durable = false;
+        boolean dispatch = false;
+        int[] weights = {5, 30, 20, 20, 20, 5};
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--terminals":
+                    terminals = Integer.parseInt(args[++i]);
+                    break;
+                case "--accounts":
+                    accountCount = Integer.parseInt(args[++i]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[++i]);
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "--mix":
+                    weights = parseMix(args[++i]);
+                    break;
+                case "--think-ms":
+                    thinkMillis = Long.parseLong(args[++i]);
+                    break;
+                case "--durable":
+                    durable = true;
+                    break;
+                case "--dispatch":
+                    dispatch = true;
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+        
+        File directory = java.nio.file.Files.createTempDirectory("atm-load").toFile();
+        ATMManager manager = new ATMManager(new File(directory, "atm_data.json").getPath());
+        ArrayList<String> names = new ArrayList<>(accountCount);
+        for (int i = 0; i < accountCount; i++) {
+            names.add("Customer " + i);
+        }
+        ArrayList<Account> customers = manager.createAccounts(names, 1000.0);
+        ATMService service = new ATMService(manager);
+        ATMDispatcher dispatcher = dispatch ? new ATMDispatcher(service) : null;
+        ATMLoadGenerator generator = new ATMLoadGenerator(service, customers, weights, thinkMillis, durable, dispatcher);
+        long moneyBefore = totalCents(manager);
+        
+        ThreadFactory threads = ATMDispatcher.virtualThreadFactory();
+        String threadKind = threads != null ? "virtual" : "platform";
+        if (threads == null) {
+            threads = Thread::new;
+        }
+        System.out.printf("%d %s-thread terminals, %d accounts, %ds warmup + %ds measured, mix %s%s%s%n",
+                terminals, threadKind, accountCount, warmup, seconds, describeMix(weights), durable ? ", durable" : "",
+                dispatch ? ", dispatched by " + ATMDispatcher.WORKERS + " workers" : "");
+        
+        ArrayList<Thread> started = new ArrayList<>(terminals);
+        for (int i = 0; i < terminals; i++) {
+            Thread thread = threads.newThread(generator::runTerminal);
+            thread.setDaemon(true);
+            thread.start();
+            started.add(thread);
+        }
+        Thread.sleep(warmup * 1000L);
+        generator.measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        generator.measuring = false;
+        long elapsed = System.nanoTime() - start;
+        generator.running = false;
+        for (Thread thread : started) {
+            thread.join();
+        }
+        
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+        generator.report(elapsed);
+        long expected = moneyBefore + generator.depositedCents.sum() - generator.withdrawnCents.sum();
+        long moneyAfter = totalCents(manager);
+        System.out.println(moneyAfter == expected
+                ? "OK: money conserved (" + moneyAfter + " cents)"
+                : "FAILED: expected " + expected + " cents, found " + moneyAfter);
+        
+        manager.shutdown();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+    
+    // One terminal: a customer logs in, then runs operations from the mix until the run ends
+    private void runTerminal() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Account account = null;
+        while (account == null && running) {
+            try {
+                account = authenticate(random.nextInt(userIds.length));
+            } catch (CompletionException e) {
+                rejections.increment(); // Turned away by the dispatcher; tried again at once
+            }
+        }
+        while (running) {
+            int operation = pickOperation(random);
+            long start = System.nanoTime();
+            long retryAfterMillis = 0;
+            try {
+                switch (operation) {
+                    case AUTHENTICATE:
+                        Account next = authenticate(random.nextInt(userIds.length));
+                        if (next != null) {
+                            account = next; // The next customer steps up to the terminal
+                        }
+                        break;
+                    case BALANCE:
+                        if (dispatcher != null) {
+                            dispatcher.balance(account).join();
+                        } else {
+                            service.balance(account);
+                        }
+                        break;
+                    case DEPOSIT:
+                        long deposit = 100 + random.nextInt(10000);
+                        ATMService.Result deposited = dispatcher != null
+                                ? dispatcher.deposit(account, deposit / 100.0, null).join()
+                                : service.deposit(account, deposit / 100.0);
+                        if (deposited == ATMService.Result.OK) {
+                            depositedCents.add(deposit);
+                            commit();
+                        }
+                        break;
+                    case WITHDRAW:
+                        long withdrawal = 100 + random.nextInt(10000);
+                        ATMService.Result withdrawn = dispatcher != null
+                                ? dispatcher.withdraw(account, withdrawal / 100.0, null).join()
+                                : service.withdraw(account, withdrawal / 100.0);
+                        if (withdrawn == ATMService.Result.OK) {
+                            withdrawnCents.add(withdrawal);
+                            commit();
+                        }
+                        break;
+                    case TRANSFER:
+                        String recipient = userIds[random.nextInt(userIds.length)];
+                        double amount = (100 + random.nextInt(10000)) / 100.0;
+                        ATMService.Result transferred = dispatcher != null
+                                ? dispatcher.transfer(account, recipient, amount, null).join()
+                                : service.transfer(account, recipient, amount);
+                        if (transferred == ATMService.Result.OK) {
+                            commit();
+                        }
+                        break;
+                    case HISTORY:
+                        if (dispatcher != null) {
+                            dispatcher.history(account, 0, 20, true).join();
+                        } else {
+                            service.history(account, 0, 20, true);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof ATMBusyException) {
+                    rejections.increment();
+                    retryAfterMillis = ((ATMBusyException) e.getCause()).getRetryAfterMillis();
+                } else {
+                    failures.increment();
+                }
+            } catch (RuntimeException e) {
+                failures.increment();
+            }
+            if (measuring) {
+                latencies[operation].record(System.nanoTime() - start);
+            }
+            if (retryAfterMillis > 0) {
+                try {
+                    Thread.sleep(retryAfterMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            } else if (thinkMillis > 0) {
+                try {
+                    // Exponential pauses, so terminals do not fall into lockstep
+                    Thread.sleep((long) (-Math.log(1 - random.nextDouble()) * thinkMillis));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+    
+    private Account authenticate(int customer) {
+        return dispatcher != null
+                ? dispatcher.authenticate(userIds[customer], pins[customer]).join()
+                : service.authenticate(userIds[customer], pins[customer]);
+    }
+    
+    private void commit() {
+        if (durable) {
+            service.commitAsync().join();
+        } else {
+            service.commitAsync();
+        }
+    }
+    
+    private int pickOperation(ThreadLocalRandom random) {
+        int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        int operation = 0;
+        while (pick >= cumulativeWeights[operation]) {
+            operation++;
+        }
+        return operation;
+    }
+    
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long total = 0;
+        System.out.printf("%-13s %10s %10s %10s %10s %10s %10s%n", "operation", "count", "ops/s", "p50 us", "p99 us", "p999 us", "max us");
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            LatencyHistogram histogram = latencies[i];
+            long count = histogram.getCount();
+            if (count == 0) {
+                continue;
+            }
+            total += count;
+            System.out.printf("%-13s %10d %10.0f %10.1f %10.1f %10.1f %10.1f%n", OPERATIONS[i], count, count / seconds,
+                    histogram.percentile(0.50) / 1e3, histogram.percentile(0.99) / 1e3,
+                    histogram.percentile(0.999) / 1e3, histogram.getMax() / 1e3);
+        }
+        System.out.printf("%-13s %10d %10.0f%n", "total", total, total / seconds);
+        if (failures.sum() > 0) {
+            System.out.println(failures.sum() + " operations failed with an exception");
+        }
+        if (rejections.sum() > 0) {
+            System.out.println(rejections.sum() + " operations turned away by the dispatcher (counted above; latency is the time to refuse)");
+        }
+    }
+    
+    private static long totalCents(ATMManager manager) {
+        long total = 0;
+        for (Account account : manager.getAllAccounts().values()) {
+            total += account.getBalanceCents();
+        }
+        return total;
+    }
+    
+    // "balance=40,deposit=20,..."; operations left out get no weight
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[OPERATIONS.length];
+        for (String part : mix.split(",")) {
+            String[] pair = part.split("=");
+            int operation = Arrays.asList(OPERATIONS).indexOf(pair[0].trim());
+            if (operation < 0 || pair.length != 2) {
+                throw new IllegalArgumentException("Bad mix entry: " + part + " (operations: " + String.join(", ", OPERATIONS) + ")");
+            }
+            weights[operation] = Integer.parseInt(pair[1].trim());
+        }
+        if (Arrays.stream(weights).sum() <= 0) {
+            throw new IllegalArgumentException("The mix needs at least one operation with a positive weight");
+        }
+        return weights;
+    }
+    
+    private static String describeMix(int[] weights) {
+        StringJoiner joiner = new StringJoiner(",");
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] > 0) {
+                joiner.add(OPERATIONS[i] + "=" + weights[i]);
+            }
+        }
+        return joiner.toString();
+    }
+}
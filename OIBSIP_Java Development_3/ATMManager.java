@@ -0,0 +1,1518 @@
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+// ATM Manager class to handle all accounts
+class ATMManager {
+    private AccountStore accounts;
+    private Random random;
+    private UserIdAllocator userIds;
+    private AccountIndexes indexes;
+    private final CopyOnWriteArrayList<AccountListener> accountListeners = new CopyOnWriteArrayList<>();
+    // Writes every change ahead to its shard's ledger, and tells account listeners once it is applied
+    private final TransactionListener transactionListener = new TransactionListener() {
+        @Override
+        public void transactionRecorded(LedgerRecord record) {
+            TransactionLog ledger = shardOf(record.userId).ledger;
+            if (ledger != null) {
+                ledger.append(record);
+            }
+            if (record.requestId != null) {
+                // Still under the account lock, so a snapshot that covers the record sees this too
+                requests.recorded(record.userId, record.requestId, record.timestamp);
+            }
+        }
+        
+        @Override
+        public void transactionApplied(Account account) {
+            shardOf(account.getUserId()).dirty.set(true);
+            indexes.update(account);
+            for (AccountListener listener : accountListeners) {
+                listener.accountChanged(account);
+            }
+        }
+        
+        @Override
+        public TransactionListener.TwoPhaseCommit twoPhaseCommit(String senderId, String recipientId) {
+            Shard from = shardOf(senderId);
+            Shard to = shardOf(recipientId);
+            return from != to && from.ledger != null && to.ledger != null ? new CrossShardTransfer(from, to) : null;
+        }
+    };
+    private static final String DATA_FILE = "atm_data.json";
+    private static final String ADMIN_PASSWORD = "admin123"; // Admin password
+    // Write-ahead ledger mode (default); run with -Datm.wal=false to rewrite the JSON file on every change
+    private static final boolean WAL_MODE = !"false".equalsIgnoreCase(System.getProperty("atm.wal"));
+    private static final long SNAPSHOT_INTERVAL_SECONDS = Long.getLong("atm.snapshotSeconds", 60);
+    // Snapshots are compact JSON; -Datm.json.pretty=true indents them for reading by hand
+    private static final boolean PRETTY_JSON = Boolean.getBoolean("atm.json.pretty");
+    // -Datm.snapshot=binary keeps snapshots in the memory-mapped atm_data.bin format instead
+    private static final boolean BINARY_SNAPSHOT = "binary".equalsIgnoreCase(System.getProperty("atm.snapshot"));
+    // -Datm.shards=N splits the accounts across N shards by a hash of the user ID, each with its own
+    // snapshot file, ledger and lock. Changing N moves existing data over on the next start; that
+    // needs the ledgers, so without WAL mode the data keeps the layout it was written with.
+    private static final int SHARD_COUNT = Math.max(1, Integer.getInteger("atm.shards", 1));
+    // Ties the PREPARE and COMMIT records of a cross-shard transfer together; seeded from the clock
+    // so IDs from an earlier run, still in a ledger tail, are not reused
+    private static final java.util.concurrent.atomic.AtomicLong transactionIds =
+            new java.util.concurrent.atomic.AtomicLong(System.currentTimeMillis() << 20);
+    // -Datm.archiveDays=N moves transactions older than N days into the compressed atm_data.archive
+    // file, checked at startup and hourly in WAL mode; 0 (the default) keeps every transaction hot
+    private static final int ARCHIVE_DAYS = Math.max(0, Integer.getInteger("atm.archiveDays", 0));
+    private static final int MIN_ARCHIVE_SEGMENT = 16; // Fewer old entries than this stay hot
+    // -Datm.replication.port=N ships every committed ledger batch to standbys connecting on port N
+    // (see ATMStandby); WAL mode only
+    private static final int REPLICATION_PORT = Integer.getInteger("atm.replication.port", 0);
+    // Every committed transaction goes into the tamper-evident atm_data.audit (see AuditLog);
+    // -Datm.audit=false turns it off. WAL mode only.
+    private static final boolean AUDIT = !"false".equalsIgnoreCase(System.getProperty("atm.audit"));
+    // A snapshot the audit log does not know stops startup; -Datm.audit.acceptSnapshots=true loads
+    // it anyway, once someone has looked, and records it as the shard's snapshot from then on
+    private static final boolean ACCEPT_SNAPSHOTS = Boolean.getBoolean("atm.audit.acceptSnapshots");
+    private static final ATMMetrics metrics = ATMMetrics.get();
+    
+    private final String dataFile;
+    private final int shardCount;
+    private volatile Shard[] shards;
+    private ScheduledExecutorService snapshotter;
+    // Persistence runs here, off the Swing event thread; save requests that arrive while
+    // one is queued share it, so a burst of transactions costs a single write
+    private final ExecutorService persister = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "atm-persistence");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Object commitLock = new Object();
+    private CompletableFuture<Void> pendingCommit; // Queued but not yet started; guarded by commitLock
+    private boolean closed;
+    private final Thread shutdownHook = new Thread(this::shutdown, "atm-shutdown");
+    private final RequestCache requests = new RequestCache();
+    private HistoryArchive archive; // Opened when the file exists or archiving is on; guarded by archiveLock
+    private final Object archiveLock = new Object();
+    private ReplicationServer replication;
+    private AuditLog audit;
+    // On a standby, PREPARE records waiting for a shipped COMMIT; after loading, only the following thread uses it
+    private final HashMap<Long, ArrayList<Runnable>> replicaPending = new HashMap<>();
+    
+    public ATMManager() {
+        this(DATA_FILE);
+    }
+    
+    public ATMManager(String dataFile) {
+        this(dataFile, SHARD_COUNT);
+    }
+    
+    public ATMManager(String dataFile, int shardCount) {
+        this.dataFile = dataFile;
+        this.shardCount = shardCount;
+        random = new Random();
+        int storedCount = readShardCount();
+        shards = layout(storedCount);
+        if (storedCount != 1 && !shardCountFile().exists()) {
+            try {
+                writeShardCount(storedCount); // A new directory starts in the requested layout
+            } catch (IOException e) {
+                System.err.println("Error recording shard count: " + e.getMessage());
+            }
+        }
+        if (WAL_MODE && AUDIT) {
+            openAudit(); // Before the snapshots are read, so they can be checked against it
+        }
+        boolean allocatorSaved = loadData();
+        if (WAL_MODE) {
+            openLedgers();
+        }
+        if (storedCount != shardCount && shards[0].ledger != null) {
+            reshard(shardCount); // Writes every shard, allocator key included
+        } else if (WAL_MODE && !allocatorSaved) {
+            shards[0].dirty.set(true);
+            saveData(); // Persist the new allocator key before any ID is handed out under it
+        }
+        if (shards[0].ledger != null) {
+            startSnapshotter();
+        }
+        indexes = new AccountIndexes(accounts); // Built once the ledger tail is applied, then kept current
+        if (REPLICATION_PORT > 0) {
+            startReplication(REPLICATION_PORT);
+        }
+        // Flushes queued saves, writes a final snapshot and closes the ledger on any normal exit
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+    
+    public String createAccount(String name, double initialBalance) {
+        Account account = openAccount(name, initialBalance);
+        commit();
+        return "Account Created!\nUser ID: " + account.getUserId() + "\nPIN: " + account.getPin() + "\nPlease save these credentials.";
+    }
+    
+    // Bulk onboarding: opens every account, then makes them all durable with a single commit
+    public ArrayList<Account> createAccounts(Collection<String> names, double initialBalance) {
+        ArrayList<Account> created = new ArrayList<>(names.size());
+        for (String name : names) {
+            created.add(openAccount(name, initialBalance));
+        }
+        commit();
+        return created;
+    }
+    
+    private Account openAccount(String name, double initialBalance) {
+        String pin = generatePin();
+        Account account;
+        do {
+            // Logged before the account becomes visible, so no transfer to it can precede its creation
+            LedgerRecord record = LedgerRecord.create(generateUserId(), pin, name, Account.toCents(initialBalance));
+            TransactionLog ledger = shardOf(record.userId).ledger;
+            if (ledger != null) {
+                ledger.append(record);
+            }
+            account = new Account(record);
+            account.setTransactionListener(transactionListener);
+        } while (!accounts.putIfAbsent(account)); // Another terminal claimed the same ID; replay skips the duplicate
+        shardOf(account.getUserId()).dirty.set(true);
+        indexes.add(account);
+        for (AccountListener listener : accountListeners) {
+            listener.accountAdded(account);
+        }
+        return account;
+    }
+    
+    // Allocated IDs never repeat; the check only guards against IDs that were imported
+    // or issued under a key that never reached a snapshot
+    private String generateUserId() {
+        String userId;
+        do {
+            userId = userIds.nextUserId();
+        } while (accounts.containsKey(userId));
+        return userId;
+    }
+    
+    private String generatePin() {
+        return String.format("%04d", random.nextInt(10000));
+    }
+    
+    public Account authenticate(String userId, String pin) {
+        long start = System.nanoTime();
+        ATMAuthenticateEvent event = new ATMAuthenticateEvent();
+        event.begin();
+        Account account = accounts.get(userId);
+        boolean succeeded = account != null && account.getPin().equals(pin);
+        if (succeeded) {
+            account.getHistory(); // Decode a lazily mapped history on first login
+            metrics.succeeded(ATMMetrics.Operation.AUTHENTICATE, start);
+        } else {
+            metrics.rejected(ATMMetrics.Operation.AUTHENTICATE, start);
+        }
+        if (event.shouldCommit()) {
+            event.userId = userId;
+            event.succeeded = succeeded;
+            event.commit();
+        }
+        return succeeded ? account : null;
+    }
+    
+    public boolean authenticateAdmin(String password) {
+        return ADMIN_PASSWORD.equals(password);
+    }
+    
+    public Account getAccountByUserId(String userId) {
+        return accounts.get(userId);
+    }
+    
+    // Display name for a transfer counterparty in the history, or null if it is not an account
+    public String getAccountName(String userId) {
+        Account account = accounts.get(userId);
+        return account != null ? account.getName() : null;
+    }
+    
+    public ArrayList<String> getAllUserIds() {
+        return accounts.userIds();
+    }
+    
+    public Map<String, Account> getAllAccounts() {
+        return accounts.asMap();
+    }
+    
+    // Admin searches served from the secondary indexes; each returns one page of results
+    public ArrayList<Account> findAccountsByBalance(double min, double max, int offset, int limit) {
+        return indexes.balanceBetween(Account.toCents(min), Account.toCents(max), offset, limit);
+    }
+    
+    public ArrayList<Account> findAccountsByNamePrefix(String prefix, int offset, int limit) {
+        return indexes.namePrefix(prefix, offset, limit);
+    }
+    
+    public ArrayList<Account> findAccountsByUserIdPrefix(String prefix, int offset, int limit) {
+        return indexes.userIdPrefix(prefix, offset, limit);
+    }
+    
+    // Accounts with no transaction for the given number of days, longest inactive first
+    public ArrayList<Account> findInactiveAccounts(int days, int offset, int limit) {
+        return indexes.inactiveSince(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days), offset, limit);
+    }
+    
+    // Starts shipping ledger batches to standbys that connect on the port
+    void startReplication(int port) {
+        if (shards[0].ledger == null) {
+            System.err.println("Replication needs the write-ahead ledger; run without -Datm.wal=false");
+            return;
+        }
+        try {
+            replication = new ReplicationServer(this, port);
+        } catch (IOException e) {
+            System.err.println("Error starting replication on port " + port + ": " + e.getMessage());
+            return;
+        }
+        for (Shard shard : shards) {
+            setShipper(shard); // Again, so the flushers see the server
+        }
+        System.out.println("Shipping the ledger to standbys on port " + port + ".");
+    }
+    
+    // Whatever a shard's ledger makes durable goes to the audit log and to any standbys
+    private void setShipper(Shard shard) {
+        int index = shard.index;
+        int count = shard.count;
+        shard.ledger.setShipper(frames -> {
+            if (audit != null) {
+                audit.appendRecords(index, count, frames);
+            }
+            if (replication != null) {
+                replication.shipped(index, frames);
+            }
+        });
+    }
+    
+    int getShardCount() {
+        return shards.length;
+    }
+    
+    static boolean binarySnapshots() {
+        return BINARY_SNAPSHOT;
+    }
+    
+    String getDataFileName() {
+        return new File(dataFile).getName();
+    }
+    
+    long[] getDurableSequences() {
+        Shard[] current = shards;
+        long[] sequences = new long[current.length];
+        for (Shard shard : current) {
+            TransactionLog ledger = shard.ledger;
+            sequences[shard.index] = ledger != null ? ledger.getDurableSequence() : 0;
+        }
+        return sequences;
+    }
+    
+    // A consistent copy of the data files for a new standby, by file name. Archiving, snapshots
+    // and ledger flushes are held off while the files are read, so the copy ends at exactly the
+    // durable records; the standby is registered before they resume, so it misses no batch.
+    // Commits wait for the disk reads, not for the network.
+    LinkedHashMap<String, byte[]> copyForStandby(Runnable register) throws IOException {
+        LinkedHashMap<String, byte[]> files = new LinkedHashMap<>();
+        synchronized (archiveLock) {
+            copyFile(shardCountFile(), files);
+            copyFile(archiveFile(), files);
+            copyShards(shards, 0, files, register);
+        }
+        return files;
+    }
+    
+    private void copyShards(Shard[] layout, int i, LinkedHashMap<String, byte[]> files, Runnable register) throws IOException {
+        if (i == layout.length) {
+            if (audit != null) {
+                audit.flush(); // Every durable record is in it while the flushes are held off
+                copyFile(auditFile(), files);
+            }
+            register.run();
+            return;
+        }
+        Shard shard = layout[i];
+        synchronized (shard.snapshotLock) {
+            synchronized (shard.ledger.flushLock()) {
+                File snapshot = shard.existingSnapshot();
+                if (snapshot != null) {
+                    copyFile(snapshot, files);
+                }
+                copyFile(shard.requestsFile(), files);
+                for (File segment : shard.ledgerSegments()) {
+                    copyFile(segment, files);
+                }
+                copyShards(layout, i + 1, files, register);
+            }
+        }
+    }
+    
+    private static void copyFile(File file, LinkedHashMap<String, byte[]> files) throws IOException {
+        if (file.exists()) {
+            files.put(file.getName(), Files.readAllBytes(file.toPath()));
+        }
+    }
+    
+    // Standby side of log shipping: writes a batch of the primary's ledger frames to the shard's
+    // own ledger under the primary's sequence numbers, then applies the records the way replay
+    // does. A PREPARE waits for its COMMIT, which the primary always ships after every PREPARE of
+    // the transaction, whichever shard it is in. Called by the one thread following the primary.
+    void applyReplicated(int shardIndex, byte[] frames) throws IOException {
+        Shard shard = shards[shardIndex];
+        long length = TransactionLog.replay(new ByteArrayInputStream(frames), record -> {
+            shard.ledger.appendReplica(record);
+            if (record.type == LedgerRecord.PREPARE) {
+                replicaPending.computeIfAbsent(record.transactionId, id -> new ArrayList<>())
+                        .add(() -> applyReplica(shard, record, Collections.singleton(record.transactionId)));
+            } else if (record.type == LedgerRecord.COMMIT) {
+                ArrayList<Runnable> prepared = replicaPending.remove(record.transactionId); // Null at the second shard's COMMIT
+                if (prepared != null) {
+                    prepared.forEach(Runnable::run);
+                }
+            } else {
+                applyReplica(shard, record, Collections.emptySet());
+            }
+        });
+        if (length != frames.length) {
+            throw new IOException("Damaged batch from the primary for shard " + (shardIndex + 1));
+        }
+    }
+    
+    // Last sequence in the shard's ledger, durable or not
+    long getLastSequence(int shardIndex) {
+        TransactionLog ledger = shards[shardIndex].ledger;
+        return ledger != null ? ledger.getLastSequence() : 0;
+    }
+    
+    // A standby taking over drops the shipped transactions whose COMMIT never came, as replay would
+    void discardUncommitted() {
+        replicaPending.clear();
+    }
+    
+    // Applies one shipped record with its accounts locked, as terminals would, so readers and the
+    // standby's own snapshots see it whole, then tells the indexes and listeners
+    private void applyReplica(Shard shard, LedgerRecord record, Set<Long> committed) {
+        TreeMap<String, Account> involved = new TreeMap<>();
+        for (String userId : new String[] {record.userId, record.counterparty}) {
+            Account account = userId.isEmpty() ? null : accounts.get(userId);
+            if (account != null) {
+                involved.put(userId, account);
+            }
+        }
+        Account.lockAll(involved.values());
+        boolean applied;
+        try {
+            applied = applyFromLedger(shard, record, committed);
+            if (applied) {
+                involved.values().forEach(Account::applied);
+            }
+        } finally {
+            Account.unlockAll(involved.values());
+        }
+        if (applied && record.type == LedgerRecord.CREATE) {
+            Account created = accounts.get(record.userId);
+            shard.dirty.set(true);
+            indexes.add(created);
+            for (AccountListener listener : accountListeners) {
+                listener.accountAdded(created);
+            }
+        }
+    }
+    
+    // Request IDs seen recently, with the results given for them
+    RequestCache getRequests() {
+        return requests;
+    }
+    
+    // Checks every account's running balance and pairs every transfer, without stopping terminals
+    public ReconciliationReport reconcile() {
+        synchronized (archiveLock) { // Transfers are paired only while neither side is being archived
+            return new BalanceReconciler(accounts.asMap()).run();
+        }
+    }
+    
+    // Checks the audit log from where the last audit left off to its newest entry: each entry's
+    // link in the hash chain, each block's Merkle root, and the root over all blocks. Only what
+    // was added since is hashed; the point reached is kept in atm_data.audit.checked. Snapshots
+    // that failed their check at startup are reported from the entries logged for them.
+    public AuditReport audit() {
+        if (audit == null) {
+            throw new IllegalStateException("The audit log needs the write-ahead ledger and -Datm.audit left on");
+        }
+        long start = System.nanoTime();
+        try {
+            File checkpointFile = auditCheckpointFile();
+            AuditLog.Checkpoint from = AuditLog.Checkpoint.read(checkpointFile);
+            ArrayList<String> problems = new ArrayList<>();
+            AuditLog.Checkpoint reached = audit.verify(from, problems);
+            if (reached != from) {
+                reached.write(checkpointFile); // The last good block; anything wrong after it is found again next time
+            }
+            return new AuditReport(reached.blockCount - from.blockCount, reached.entryCount - from.entryCount,
+                    System.nanoTime() - start, reached.root(), reached.blockCount, problems);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Audit failed", e);
+        }
+    }
+    
+    // Proof that a user's transaction, found by its time as the history shows it, is in the
+    // audit log; null if the log has no such record
+    public AuditProof proveTransaction(String userId, long timestamp) {
+        if (audit == null) {
+            throw new IllegalStateException("The audit log needs the write-ahead ledger and -Datm.audit left on");
+        }
+        try {
+            return audit.prove(timestamp, record -> record.type != LedgerRecord.COMMIT
+                    && (userId.equals(record.userId) || userId.equals(record.counterparty)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading audit log", e);
+        }
+    }
+    
+    // Moves every account's transactions older than the given number of days into the history
+    // archive, leaving a carried-forward balance in their place, and returns how many moved. The
+    // segments are made durable before any account drops its entries, and a snapshot follows, so
+    // a crash at any point leaves each entry either hot or archived (an unused segment is ignored).
+    public long archiveHistory(int days) {
+        synchronized (archiveLock) {
+            long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days);
+            ArrayList<Account> archived = new ArrayList<>();
+            ArrayList<TransactionHistory> entries = new ArrayList<>();
+            ArrayList<HistoryArchive.Segment> segments = new ArrayList<>();
+            long moved = 0;
+            try {
+                if (archive == null) {
+                    archive = new HistoryArchive(archiveFile());
+                }
+                for (Account account : accounts.asMap().values()) {
+                    TransactionHistory old = account.archivableBefore(cutoff, MIN_ARCHIVE_SEGMENT);
+                    if (old != null) {
+                        segments.add(archive.append(account.getUserId(), account.getArchivedCount(), old));
+                        archived.add(account);
+                        entries.add(old);
+                        moved += old.size();
+                    }
+                }
+                if (archived.isEmpty()) {
+                    return 0;
+                }
+                archive.force();
+            } catch (IOException e) {
+                System.err.println("Error archiving history: " + e.getMessage());
+                return 0;
+            }
+            for (int i = 0; i < archived.size(); i++) {
+                Account account = archived.get(i);
+                account.commitArchived(archive, entries.get(i), segments.get(i));
+                shardOf(account.getUserId()).dirty.set(true);
+            }
+            saveData();
+            System.out.println("Archived " + moved + " transactions older than " + days + " days from " + archived.size() + " accounts");
+            return moved;
+        }
+    }
+    
+    // Pays every item of the batch from one account, all or nothing, as a payroll run needs. Every
+    // item is checked before anything changes; if any is refused, no balance changes and the
+    // batch's results say which. The batch is logged as PREPARE records under one transaction ID
+    // and then one COMMIT per ledger, so it costs two group commits however large it is, and
+    // replay applies all of it or none; without WAL mode it costs one snapshot write. Throws
+    // UncheckedIOException if the batch cannot be made durable; nothing is applied then.
+    public boolean transferBatch(Account sender, BatchTransfer batch) {
+        long start = System.nanoTime();
+        int size = batch.size();
+        Account[] recipients = new Account[size];
+        TreeMap<String, Account> involved = new TreeMap<>(); // Sorted, the order lockBoth uses
+        involved.put(sender.getUserId(), sender);
+        boolean valid = true;
+        for (int i = 0; i < size; i++) {
+            String recipientId = batch.getRecipientId(i);
+            recipients[i] = accounts.get(recipientId);
+            if (recipientId.equals(sender.getUserId())) {
+                valid &= batch.refuse(i, ATMService.Result.SAME_ACCOUNT);
+            } else if (recipients[i] == null) {
+                valid &= batch.refuse(i, ATMService.Result.NO_SUCH_ACCOUNT);
+            } else if (batch.getAmountCents(i) <= 0) {
+                valid &= batch.refuse(i, ATMService.Result.INVALID_AMOUNT);
+            } else {
+                involved.put(recipientId, recipients[i]);
+            }
+        }
+        if (!valid) {
+            metrics.rejected(ATMMetrics.Operation.TRANSFER_BATCH, start);
+            return false;
+        }
+        
+        Account.lockAllSettled(involved.values());
+        try {
+            long available = sender.getBalanceCents();
+            long total = 0;
+            for (int i = 0; i < size; i++) {
+                total += batch.getAmountCents(i);
+                if (total > available) {
+                    valid &= batch.refuse(i, ATMService.Result.INSUFFICIENT_FUNDS);
+                }
+            }
+            if (!valid) {
+                metrics.rejected(ATMMetrics.Operation.TRANSFER_BATCH, start);
+                return false;
+            }
+            LedgerRecord[] records = new LedgerRecord[size];
+            for (int i = 0; i < size; i++) {
+                records[i] = LedgerRecord.transfer(sender.getUserId(), recipients[i].getUserId(), batch.getAmountCents(i));
+            }
+            if (shards[0].ledger != null) {
+                recordBatch(records);
+            }
+            for (int i = 0; i < size; i++) {
+                recipients[i].applyTransferIn(records[i]);
+                sender.applyTransferOut(records[i]);
+            }
+            for (Account account : involved.values()) {
+                account.applied();
+            }
+            batch.applied();
+        } catch (RuntimeException e) {
+            metrics.failed(ATMMetrics.Operation.TRANSFER_BATCH, start);
+            throw e;
+        } finally {
+            Account.unlockAll(involved.values());
+        }
+        if (shards[0].ledger == null) {
+            commit(); // Already durable in WAL mode
+        }
+        metrics.succeeded(ATMMetrics.Operation.TRANSFER_BATCH, start);
+        return true;
+    }
+    
+    public void addAccountListener(AccountListener listener) {
+        accountListeners.add(listener);
+    }
+    
+    public void removeAccountListener(AccountListener listener) {
+        accountListeners.remove(listener);
+    }
+    
+    // Makes all changes so far durable and blocks until they are
+    public void commit() {
+        try {
+            commitAsync().join();
+        } catch (CompletionException e) {
+            System.err.println("Error committing transaction: " + e.getCause().getMessage());
+        }
+    }
+    
+    // Requests that all changes so far become durable and returns at once. The future completes
+    // when they are on disk (the shard ledgers' group commit in WAL mode, otherwise a rewrite of
+    // the changed shard files), or exceptionally with the IOException that prevented it.
+    public CompletableFuture<Void> commitAsync() {
+        synchronized (commitLock) {
+            if (pendingCommit != null) {
+                return pendingCommit; // The queued commit has not started, so it will cover this change too
+            }
+            CompletableFuture<Void> commit = new CompletableFuture<>();
+            try {
+                persister.execute(this::runPendingCommit);
+            } catch (RejectedExecutionException e) {
+                commit.completeExceptionally(new IOException("The ATM is shutting down"));
+                return commit;
+            }
+            pendingCommit = commit;
+            return commit;
+        }
+    }
+    
+    private void runPendingCommit() {
+        CompletableFuture<Void> commit;
+        synchronized (commitLock) {
+            commit = pendingCommit;
+            pendingCommit = null; // Changes requested from now on need the next write
+        }
+        long start = System.nanoTime();
+        try {
+            Shard[] current = shards;
+            if (current[0].ledger == null) {
+                writeSnapshot();
+            } else {
+                for (Shard shard : current) {
+                    TransactionLog ledger = shard.ledger;
+                    if (ledger != null) {
+                        ledger.awaitDurable(ledger.getLastSequence());
+                    }
+                }
+            }
+            metrics.succeeded(ATMMetrics.Operation.COMMIT, start);
+            commit.complete(null);
+        } catch (IOException e) {
+            metrics.failed(ATMMetrics.Operation.COMMIT, start);
+            System.err.println("Error committing transaction: " + e.getMessage());
+            commit.completeExceptionally(e);
+        }
+    }
+    
+    public void saveData() {
+        try {
+            writeSnapshot();
+        } catch (IOException e) {
+            System.err.println("Error saving data: " + e.getMessage());
+        }
+    }
+    
+    // Snapshots every shard changed since its last snapshot, in parallel. In WAL mode each
+    // shard's ledger is rolled first, and its sealed segments are deleted once the snapshot
+    // that covers them has safely replaced the shard's file.
+    private void writeSnapshot() throws IOException {
+        long start = System.nanoTime();
+        ATMSaveEvent event = new ATMSaveEvent();
+        event.begin();
+        try {
+            forEachShard(shards, shard -> writeShardSnapshot(shard, event));
+        } catch (IOException | RuntimeException e) {
+            metrics.failed(ATMMetrics.Operation.SAVE_DATA, start);
+            throw e;
+        }
+        if (event.shards > 0) { // Saves with nothing to write are left out
+            metrics.saved(start, event.bytesWritten);
+            event.commit();
+        }
+    }
+    
+    private void writeShardSnapshot(Shard shard, ATMSaveEvent event) throws IOException {
+        synchronized (shard.snapshotLock) {
+            if (!shard.dirty.getAndSet(false)) {
+                return; // Cleared before the accounts are read, so a change made meanwhile marks it again
+            }
+            try {
+                TransactionLog ledger = shard.ledger;
+                long sequence = ledger != null ? ledger.roll() : shard.snapshotSequence;
+                
+                Collection<Account> snapshot = accountsIn(shard);
+                
+                File file = shard.snapshotFile();
+                // With the audit log on, the snapshot is written aside and logged before it replaces
+                // the file, so the file always holds a snapshot the log knows
+                File written = audit != null && ledger != null ? new File(file.getPath() + ".new") : file;
+                if (BINARY_SNAPSHOT) {
+                    BinarySnapshot.write(written, sequence, snapshot, userIds);
+                } else {
+                    writeJsonSnapshot(written, sequence, snapshot, userIds, PRETTY_JSON);
+                }
+                if (written != file) {
+                    audit.appendSnapshot(shard.index, sequence, written, file.getName());
+                    Files.move(written.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                
+                // The request IDs in the ledger records about to go must be kept first
+                requests.write(shard.requestsFile(), shard::owns);
+                shard.snapshotSequence = sequence;
+                if (ledger != null) {
+                    ledger.deleteSegmentsThrough(sequence);
+                }
+                
+                event.addShard(snapshot.size(), file.length());
+                System.out.println("Data saved successfully to " + file.getName());
+            } catch (IOException | RuntimeException e) {
+                shard.dirty.set(true); // Retried by the next save
+                throw e;
+            }
+        }
+    }
+    
+    // The shard's accounts, weakly consistent so terminals are never blocked; a single shard
+    // holds them all, so the store's own view is used without copying
+    private Collection<Account> accountsIn(Shard shard) {
+        Collection<Account> all = accounts.asMap().values();
+        if (shard.count == 1) {
+            return all;
+        }
+        ArrayList<Account> members = new ArrayList<>();
+        for (Account account : all) {
+            if (shard.owns(account.getUserId())) {
+                members.add(account);
+            }
+        }
+        return members;
+    }
+    
+    // Drains queued saves, then writes a final snapshot and closes the ledger.
+    // Runs from the shutdown hook; later calls do nothing.
+    public void shutdown() {
+        synchronized (commitLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook); // Lets a manager closed early be collected
+            } catch (IllegalStateException e) {
+                // The JVM is already exiting and runs its hooks anyway
+            }
+        }
+        persister.shutdown();
+        try {
+            persister.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (snapshotter != null) {
+            snapshotter.shutdown();
+            try {
+                snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        saveData();
+        for (Shard shard : shards) {
+            closeLedger(shard);
+        }
+        if (replication != null) {
+            replication.close(); // After the ledgers, so standbys get their last batches
+        }
+        if (audit != null) {
+            try {
+                audit.close();
+            } catch (IOException e) {
+                System.err.println("Error closing audit log: " + e.getMessage());
+            }
+        }
+        synchronized (archiveLock) {
+            if (archive != null) {
+                try {
+                    archive.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing history archive: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    private static void closeLedger(Shard shard) {
+        TransactionLog ledger = shard.ledger;
+        if (ledger != null) {
+            shard.ledger = null;
+            try {
+                ledger.close();
+            } catch (IOException e) {
+                System.err.println("Error closing ledger: " + e.getMessage());
+            }
+        }
+    }
+    
+    // Loads every shard's snapshot in parallel on the fork-join pool. Returns whether the user ID
+    // allocator was restored; each snapshot saves its state, and the furthest counter wins.
+    // Throws IllegalStateException if a snapshot exists but cannot be loaded.
+    private boolean loadData() {
+        accounts = new AccountStore();
+        userIds = new UserIdAllocator();
+        Shard[] layout = shards;
+        boolean found = false;
+        for (Shard shard : layout) {
+            found |= shard.existingSnapshot() != null;
+        }
+        if (found) {
+            long start = System.nanoTime();
+            ATMLoadEvent event = new ATMLoadEvent();
+            event.begin();
+            try {
+                forEachShard(layout, shard -> readShardSnapshot(shard, event));
+                UserIdAllocator latest = null;
+                for (Shard shard : layout) {
+                    if (shard.savedIds != null && (latest == null || shard.savedIds.getNext() > latest.getNext())) {
+                        latest = shard.savedIds;
+                    }
+                    shard.savedIds = null;
+                }
+                if (latest != null) {
+                    userIds.restore(latest.getKey(), latest.getNext());
+                }
+                resolveLegacyTransfers();
+                metrics.succeeded(ATMMetrics.Operation.LOAD_DATA, start);
+                event.accounts = accounts.size();
+                event.commit();
+                System.out.println("Data loaded successfully! " + accounts.size() + " accounts found.");
+            } catch (Exception e) {
+                // Starting empty would let the first save overwrite the files and delete the
+                // ledger that could rebuild them, so they are left for someone to look at
+                metrics.failed(ATMMetrics.Operation.LOAD_DATA, start);
+                if (audit != null) {
+                    try {
+                        audit.close();
+                    } catch (IOException closeError) {
+                        e.addSuppressed(closeError);
+                    }
+                }
+                throw new IllegalStateException("Error loading data, files left unchanged: " + e.getMessage(), e);
+            }
+        } else {
+            System.out.println("No existing data found. Starting fresh.");
+        }
+        
+        File archiveFile = archiveFile();
+        if (archiveFile.exists() || ARCHIVE_DAYS > 0) {
+            try {
+                archive = new HistoryArchive(archiveFile);
+            } catch (IOException e) {
+                System.err.println("Error opening history archive: " + e.getMessage());
+            }
+        }
+        for (Account account : accounts.asMap().values()) {
+            account.setTransactionListener(transactionListener);
+            if (archive != null) {
+                account.setArchive(archive);
+            }
+        }
+        return userIds.isRestored();
+    }
+    
+    // Histories imported from the old text format name a transfer's recipient instead of giving
+    // the user ID, and record its side as a plain deposit. Where the name belongs to exactly one
+    // account, the transfer is pointed at it and the recipient's deposit of the same amount at
+    // the same time becomes the matching TRANSFER_IN, so the reconciler can pair them. Other
+    // names keep their mark and are reported as legacy transfers that cannot be paired.
+    private void resolveLegacyTransfers() {
+        ArrayList<Account> legacy = new ArrayList<>();
+        for (Account account : accounts.asMap().values()) {
+            TransactionHistory history = account.decodedHistory();
+            if (history != null && history.hasLegacyNames()) {
+                legacy.add(account);
+            }
+        }
+        if (legacy.isEmpty()) {
+            return;
+        }
+        HashMap<String, String> byName = new HashMap<>(); // An empty user ID marks a shared name
+        for (Account account : accounts.asMap().values()) {
+            byName.merge(account.getName(), account.getUserId(), (first, second) -> "");
+        }
+        int unresolved = 0;
+        for (Account sender : legacy) {
+            TransactionHistory history = sender.decodedHistory();
+            for (int i = 0; i < history.size(); i++) {
+                String name = TransactionHistory.legacyName(history.getCounterparty(i));
+                if (name == null || history.getType(i) != TransactionHistory.TRANSFER_OUT) {
+                    continue;
+                }
+                String recipientId = byName.get(name);
+                if (recipientId == null || recipientId.isEmpty()) {
+                    unresolved++;
+                    continue;
+                }
+                history.relabel(i, TransactionHistory.TRANSFER_OUT, recipientId);
+                TransactionHistory credits = accounts.get(recipientId).decodedHistory();
+                if (credits == null) {
+                    continue;
+                }
+                long time = history.getTime(i);
+                for (int j = credits.firstAtOrAfter(time, credits.size()); j < credits.size() && credits.getTime(j) == time; j++) {
+                    if (credits.getType(j) == TransactionHistory.DEPOSIT && credits.getAmountCents(j) == history.getAmountCents(i)) {
+                        credits.relabel(j, TransactionHistory.TRANSFER_IN, sender.getUserId());
+                        break;
+                    }
+                }
+            }
+        }
+        if (unresolved > 0) {
+            System.err.println(unresolved + " legacy transfer(s) name no single account and cannot be paired.");
+        }
+    }
+    
+    private void readShardSnapshot(Shard shard, ATMLoadEvent event) throws IOException {
+        File file = shard.existingSnapshot();
+        if (file == null) {
+            return;
+        }
+        event.addShard(file.length());
+        UserIdAllocator saved = new UserIdAllocator();
+        if (file.equals(shard.binaryFile())) {
+            shard.snapshotSequence = BinarySnapshot.read(file, accounts.asMap(), saved);
+        } else {
+            shard.snapshotSequence = readJsonSnapshot(file, accounts.asMap(), saved);
+        }
+        if (saved.isRestored()) {
+            shard.savedIds = saved;
+        }
+        requests.read(shard.requestsFile());
+        checkSnapshot(shard, file, shard.snapshotSequence);
+    }
+    
+    // A snapshot must be the last one the audit log recorded for its shard, sequence and digest
+    // both, or the one before it if the ATM stopped between logging a snapshot and putting it in
+    // place. Only a log that was empty until now takes the snapshots it finds as they are. A
+    // mismatch is logged as a finding, so it is still reported after later saves, and refused
+    // unless accepted, so no save can record the changed file as one the ATM wrote.
+    private void checkSnapshot(Shard shard, File file, long sequence) throws IOException {
+        if (audit == null) {
+            return;
+        }
+        AuditLog.LoggedSnapshot logged = audit.loggedSnapshot(file.getName());
+        byte[] digest = AuditLog.digest(file);
+        if (logged == null ? audit.startedEmpty() : logged.matches(sequence, digest)) {
+            if (logged == null) {
+                audit.appendSnapshot(shard.index, sequence, file, file.getName()); // Found as it was when the log began
+            }
+            return;
+        }
+        String problem = file.getName() + " at ledger sequence " + sequence + " is not a snapshot the ATM wrote"
+                + (logged != null ? " (it last wrote sequence " + logged.sequence + ")" : "") + "; it was changed outside the ATM";
+        audit.appendFinding(shard.index, sequence, file.getName(), digest, problem);
+        if (!ACCEPT_SNAPSHOTS) {
+            throw new IOException(problem + ". Restore it, or start with -Datm.audit.acceptSnapshots=true to accept it");
+        }
+        audit.appendSnapshot(shard.index, sequence, file, file.getName());
+        System.err.println(problem + "; accepted, and recorded in the audit log");
+    }
+    
+    private String baseName() {
+        return dataFile.endsWith(".json") ? dataFile.substring(0, dataFile.length() - 5) : dataFile;
+    }
+    
+    // One archive for every shard; segments are found by user ID, so resharding leaves it alone
+    private File archiveFile() {
+        return new File(baseName() + ".archive");
+    }
+    
+    // One audit log for every shard, its entries tagged with the shard
+    private File auditFile() {
+        return new File(baseName() + ".audit");
+    }
+    
+    // Kept by audit(); delete it to check the whole log again
+    private File auditCheckpointFile() {
+        return new File(baseName() + ".audit.checked");
+    }
+    
+    private void openAudit() {
+        try {
+            audit = new AuditLog(auditFile());
+        } catch (IOException e) {
+            System.err.println("Error opening audit log, running without it: " + e.getMessage());
+        }
+    }
+    
+    // A single shard keeps the original file names, so unsharded data needs no conversion;
+    // shard i of n uses atm_data.<i>of<n>.json (or .bin) and atm_data.<i>of<n>.log
+    private Shard[] layout(int count) {
+        Shard[] layout = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            layout[i] = count == 1
+                    ? new Shard(0, 1, baseName(), new File(dataFile))
+                    : new Shard(i, count, baseName() + "." + (i + 1) + "of" + count, null);
+        }
+        return layout;
+    }
+    
+    // Which shard holds the account, counted from zero
+    int shardIndexOf(String userId) {
+        return shardOf(userId).index;
+    }
+    
+    private Shard shardOf(String userId) {
+        Shard[] current = shards;
+        return current[Shard.indexOf(userId, current.length)];
+    }
+    
+    private File shardCountFile() {
+        return new File(baseName() + ".shards");
+    }
+    
+    // The shard count the data on disk was written with; no record means the single-file layout,
+    // unless there is no data at all, in which case the requested layout is used from the start
+    private int readShardCount() {
+        File file = shardCountFile();
+        if (!file.exists()) {
+            return layout(1)[0].hasFiles() ? 1 : shardCount;
+        }
+        try {
+            return Integer.parseInt(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim());
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Error reading shard count, assuming " + shardCount + ": " + e.getMessage());
+            return shardCount;
+        }
+    }
+    
+    private void writeShardCount(int count) throws IOException {
+        File file = shardCountFile();
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(tempFile)) {
+            stream.write(Integer.toString(count).getBytes(StandardCharsets.UTF_8));
+            stream.getChannel().force(true);
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    // Moves the loaded accounts to a layout with a different number of shards. Every new shard is
+    // written in full, and its ledger starts after the highest sequence of the old layout so the
+    // sequences the accounts carry stay behind it. Recording the new count is the commit point:
+    // until then a restart loads the old layout, and afterwards the old files are removed.
+    private void reshard(int count) {
+        Shard[] old = shards;
+        long sequence = 0;
+        boolean ledgers = old[0].ledger != null;
+        for (Shard shard : old) {
+            TransactionLog ledger = shard.ledger;
+            sequence = Math.max(sequence, ledger != null ? ledger.getLastSequence() : shard.snapshotSequence);
+        }
+        Shard[] next = layout(count);
+        try {
+            for (Shard shard : next) {
+                deleteFiles(shard); // Left by an earlier attempt that did not reach the commit point
+                shard.snapshotSequence = sequence;
+                shard.dirty.set(true);
+                if (ledgers) {
+                    shard.ledger = new TransactionLog(shard.ledgerFile(), sequence, 0);
+                    setShipper(shard);
+                }
+            }
+            shards = next;
+            writeSnapshot();
+            writeShardCount(count);
+        } catch (IOException e) {
+            System.err.println("Error changing to " + count + " shards, keeping " + old.length + ": " + e.getMessage());
+            for (Shard shard : next) {
+                closeLedger(shard);
+            }
+            shards = old;
+            return;
+        }
+        for (Shard shard : old) {
+            closeLedger(shard);
+            deleteFiles(shard);
+        }
+        System.out.println("Moved " + accounts.size() + " accounts from " + old.length + " to " + count + " shards.");
+    }
+    
+    private static void deleteFiles(Shard shard) {
+        ArrayList<File> files = shard.ledgerSegments();
+        files.add(shard.jsonFile);
+        files.add(shard.binaryFile());
+        files.add(shard.requestsFile());
+        for (File file : files) {
+            if (file.exists() && !file.delete()) {
+                System.err.println("Could not delete " + file.getName());
+            }
+        }
+    }
+    
+    // Runs the task for every shard on the fork-join pool and waits for all of them
+    private static void forEachShard(Shard[] layout, ShardTask task) throws IOException {
+        if (layout.length == 1) {
+            task.run(layout[0]);
+            return;
+        }
+        ArrayList<ForkJoinTask<Void>> tasks = new ArrayList<>(layout.length);
+        for (Shard shard : layout) {
+            tasks.add(ForkJoinTask.adapt(() -> {
+                task.run(shard);
+                return null;
+            }));
+        }
+        try {
+            ForkJoinTask.invokeAll(tasks);
+        } catch (RuntimeException e) {
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+            }
+            throw e;
+        }
+    }
+    
+    private interface ShardTask {
+        void run(Shard shard) throws IOException;
+    }
+    
+    // One slice of the accounts, picked by a hash of the user ID, with its own snapshot file,
+    // ledger and lock. Saves skip shards with no change since their last snapshot.
+    private static final class Shard {
+        final int index;
+        final int count;
+        final String baseName;
+        final File jsonFile;
+        final Object snapshotLock = new Object();
+        final java.util.concurrent.atomic.AtomicBoolean dirty = new java.util.concurrent.atomic.AtomicBoolean();
+        volatile TransactionLog ledger;
+        volatile long snapshotSequence; // Ledger sequence covered by the shard's snapshot on disk
+        UserIdAllocator savedIds; // Allocator state found in the shard's snapshot while loading
+        
+        Shard(int index, int count, String baseName, File jsonFile) {
+            this.index = index;
+            this.count = count;
+            this.baseName = baseName;
+            this.jsonFile = jsonFile != null ? jsonFile : new File(baseName + ".json");
+        }
+        
+        static int indexOf(String userId, int count) {
+            int hash = userId.hashCode(); // Specified by String, so stable across runs
+            return Math.floorMod(hash ^ (hash >>> 16), count);
+        }
+        
+        boolean owns(String userId) {
+            return indexOf(userId, count) == index;
+        }
+        
+        File binaryFile() {
+            return new File(baseName + ".bin");
+        }
+        
+        File snapshotFile() {
+            return BINARY_SNAPSHOT ? binaryFile() : jsonFile;
+        }
+        
+        // The snapshot to load, or null if the shard has none yet
+        File existingSnapshot() {
+            if (BINARY_SNAPSHOT && binaryFile().exists()) {
+                return binaryFile();
+            }
+            return jsonFile.exists() ? jsonFile : null;
+        }
+        
+        File ledgerFile() {
+            return new File(baseName + ".log");
+        }
+        
+        File requestsFile() {
+            return new File(baseName + ".requests");
+        }
+        
+        // Whether anything of the shard is on disk: a snapshot, ledger segment or request record
+        boolean hasFiles() {
+            if (jsonFile.exists() || binaryFile().exists() || requestsFile().exists()) {
+                return true;
+            }
+            for (File segment : ledgerSegments()) {
+                if (segment.exists()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        // Sealed segments in sequence order, then the active one
+        ArrayList<File> ledgerSegments() {
+            File active = ledgerFile();
+            ArrayList<File> segments = TransactionLog.sealedSegments(active);
+            segments.add(active);
+            return segments;
+        }
+    }
+    
+    // Streams the accounts into a JSON snapshot one at a time, so memory stays bounded
+    // however many there are; the file is replaced atomically once fsynced
+    static void writeJsonSnapshot(File file, long sequence, Collection<Account> snapshot, UserIdAllocator userIds, boolean pretty) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(tempFile)) {
+            JSONWriter writer = new JSONWriter(new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 1 << 16), pretty ? 4 : 0);
+            writer.beginObject();
+            writer.name("lastUpdated").value(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
+            writer.name("ledgerSequence").value(sequence);
+            if (userIds != null) {
+                writer.name("userIdAllocator").beginObject();
+                writer.name("key").value(userIds.getKey());
+                writer.name("next").value(userIds.getNext());
+                writer.endObject();
+            }
+            writer.name("accounts").beginArray();
+            for (Account account : snapshot) {
+                account.writeJSON(writer);
+            }
+            writer.endArray();
+            writer.endObject();
+            writer.flush();
+            stream.getChannel().force(true);
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    // Loads a JSON snapshot into the map and returns the ledger sequence it covers
+    static long readJsonSnapshot(File file, Map<String, Account> accounts) throws IOException {
+        return readJsonSnapshot(file, accounts, null);
+    }
+    
+    // Also restores the user ID allocator, if the snapshot has its state
+    static long readJsonSnapshot(File file, Map<String, Account> accounts, UserIdAllocator userIds) throws IOException {
+        long sequence = 0;
+        try (JSONReader reader = new JSONReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "accounts":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            Account account = new Account(reader);
+                            accounts.put(account.getUserId(), account);
+                        }
+                        reader.endArray();
+                        break;
+                    case "ledgerSequence":
+                        sequence = reader.nextLong();
+                        break;
+                    case "userIdAllocator":
+                        if (userIds == null) {
+                            reader.skipValue();
+                            break;
+                        }
+                        long key = 0;
+                        long next = 0;
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            String name = reader.nextName();
+                            if (name.equals("key")) {
+                                key = reader.nextLong();
+                            } else if (name.equals("next")) {
+                                next = reader.nextLong();
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                        userIds.restore(key, next);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        return sequence;
+    }
+    
+    // Replays each shard's ledger tail on top of the loaded snapshots, in parallel, then opens
+    // the ledgers for appending. A cross-shard transfer or a batch is applied only if a COMMIT for
+    // it made it to disk, so with several shards the COMMIT records are gathered from all ledgers first.
+    private void openLedgers() {
+        Shard[] layout = shards;
+        Set<Long> committed = ConcurrentHashMap.newKeySet();
+        java.util.concurrent.atomic.AtomicLong replayed = new java.util.concurrent.atomic.AtomicLong();
+        try {
+            if (layout.length > 1) {
+                forEachShard(layout, shard -> {
+                    for (File segment : shard.ledgerSegments()) {
+                        TransactionLog.replay(segment, record -> {
+                            if (record.type == LedgerRecord.COMMIT) {
+                                committed.add(record.transactionId);
+                            }
+                        });
+                    }
+                });
+            }
+            forEachShard(layout, shard -> replayLedger(shard, committed, replayed));
+            if (replayed.get() > 0) {
+                System.out.println("Replayed " + replayed.get() + " ledger records after the last snapshot.");
+            }
+        } catch (IOException e) {
+            System.err.println("Error opening ledger, falling back to full saves: " + e.getMessage());
+            for (Shard shard : layout) {
+                closeLedger(shard);
+            }
+        }
+        if (audit != null) {
+            try {
+                audit.checkpoint(); // The records caught up on below
+            } catch (IOException e) {
+                System.err.println("Error writing audit log: " + e.getMessage());
+            }
+        }
+    }
+    
+    private void replayLedger(Shard shard, Set<Long> committed, java.util.concurrent.atomic.AtomicLong replayed) throws IOException {
+        long lastSequence = shard.snapshotSequence;
+        long validLength = 0;
+        // PREPARE records not known to be committed wait for a COMMIT later in this ledger: a batch
+        // within one shard is decided there. Its accounts stay locked until the COMMIT is durable,
+        // so no record in between touches them. What is still waiting at the end rolls back.
+        HashMap<Long, ArrayList<LedgerRecord>> pending = new HashMap<>();
+        long auditedThrough = audit != null ? audit.lastSequence(shard.index) : Long.MAX_VALUE;
+        for (File segment : shard.ledgerSegments()) {
+            long[] stats = new long[2];
+            validLength = TransactionLog.replay(segment, record -> {
+                if (record.type == LedgerRecord.PREPARE && !committed.contains(record.transactionId)) {
+                    pending.computeIfAbsent(record.transactionId, id -> new ArrayList<>()).add(record);
+                } else if (record.type == LedgerRecord.COMMIT && pending.containsKey(record.transactionId)) {
+                    committed.add(record.transactionId);
+                    for (LedgerRecord prepared : pending.remove(record.transactionId)) {
+                        if (applyFromLedger(shard, prepared, committed)) {
+                            stats[0]++;
+                        }
+                    }
+                } else if (applyFromLedger(shard, record, committed)) {
+                    stats[0]++;
+                }
+                if (audit != null && record.sequence > auditedThrough) {
+                    audit.appendRecord(shard.index, shard.count, record); // Durable, but lost from the audit log's buffer
+                }
+                stats[1] = Math.max(stats[1], record.sequence);
+            });
+            replayed.addAndGet(stats[0]);
+            lastSequence = Math.max(lastSequence, stats[1]);
+        }
+        if (lastSequence > shard.snapshotSequence) {
+            shard.dirty.set(true); // Fold the tail into the next snapshot
+        }
+        // On a standby the COMMIT may still be shipped; on a primary these never run
+        synchronized (replicaPending) {
+            pending.forEach((transactionId, prepared) -> {
+                for (LedgerRecord record : prepared) {
+                    replicaPending.computeIfAbsent(transactionId, id -> new ArrayList<>())
+                            .add(() -> applyReplica(shard, record, Collections.singleton(transactionId)));
+                }
+            });
+        }
+        shard.ledger = new TransactionLog(shard.ledgerFile(), lastSequence, validLength);
+        setShipper(shard);
+    }
+    
+    private void startSnapshotter() {
+        snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "atm-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Shards with nothing new since their last snapshot are skipped
+        snapshotter.scheduleWithFixedDelay(this::saveData, SNAPSHOT_INTERVAL_SECONDS, SNAPSHOT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        if (ARCHIVE_DAYS > 0) {
+            snapshotter.scheduleWithFixedDelay(() -> archiveHistory(ARCHIVE_DAYS), 0, 1, TimeUnit.HOURS);
+        }
+    }
+    
+    // Two-phase commit for a transfer between shards. The PREPARE must be durable in both ledgers
+    // before the COMMIT is written, and the COMMIT in both before the transfer is applied. A crash
+    // before any COMMIT reaches disk rolls both sides back on replay; once one has, replay applies
+    // both. Each ledger gets the COMMIT so a snapshot of either shard can never drop the decision
+    // the other one still needs. The waits run with the account locks released; the accounts stay
+    // in doubt meanwhile, so no other record for them lands between the PREPARE and the COMMIT.
+    private final class CrossShardTransfer implements TransactionListener.TwoPhaseCommit {
+        private final Shard from;
+        private final Shard to;
+        private final long transactionId = transactionIds.incrementAndGet();
+        private LedgerRecord record;
+        
+        CrossShardTransfer(Shard from, Shard to) {
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        public void prepare(LedgerRecord transfer) {
+            record = transfer;
+            record.sequence = from.ledger.append(LedgerRecord.phase(LedgerRecord.PREPARE, record, transactionId));
+            record.recipientSequence = to.ledger.append(LedgerRecord.phase(LedgerRecord.PREPARE, record, transactionId));
+        }
+        
+        @Override
+        public void commit() {
+            try {
+                from.ledger.awaitDurable(record.sequence);
+                to.ledger.awaitDurable(record.recipientSequence);
+                long senderCommit = from.ledger.append(LedgerRecord.phase(LedgerRecord.COMMIT, record, transactionId));
+                long recipientCommit = to.ledger.append(LedgerRecord.phase(LedgerRecord.COMMIT, record, transactionId));
+                if (record.requestId != null) {
+                    // Before the accounts settle, so a snapshot that covers the transfer sees this too
+                    requests.recorded(record.userId, record.requestId, record.timestamp);
+                }
+                from.ledger.awaitDurable(senderCommit);
+                to.ledger.awaitDurable(recipientCommit);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Transfer between shards was not committed", e);
+            }
+        }
+    }
+    
+    // The two-phase commit above for a whole batch: a PREPARE per transfer in the sender's ledger,
+    // and in the recipient's if that is another one, then once every PREPARE is durable a COMMIT
+    // in each ledger involved. All of them share one transaction ID, so replay applies the whole
+    // batch or none of it, and each ledger syncs once per phase.
+    private void recordBatch(LedgerRecord[] records) {
+        long transactionId = transactionIds.incrementAndGet();
+        Shard[] current = shards;
+        long[] lastSequences = new long[current.length]; // 0 for shards the batch does not touch
+        try {
+            for (LedgerRecord record : records) {
+                Shard from = shardOf(record.userId);
+                Shard to = shardOf(record.counterparty);
+                record.sequence = from.ledger.append(LedgerRecord.phase(LedgerRecord.PREPARE, record, transactionId));
+                lastSequences[from.index] = record.sequence;
+                if (to != from) {
+                    record.recipientSequence = to.ledger.append(LedgerRecord.phase(LedgerRecord.PREPARE, record, transactionId));
+                    lastSequences[to.index] = record.recipientSequence;
+                }
+            }
+            for (int phase = 0; phase < 2; phase++) {
+                for (Shard shard : current) {
+                    if (lastSequences[shard.index] != 0) {
+                        shard.ledger.awaitDurable(lastSequences[shard.index]);
+                    }
+                }
+                if (phase == 0) {
+                    for (Shard shard : current) {
+                        if (lastSequences[shard.index] != 0) {
+                            lastSequences[shard.index] = shard.ledger.append(LedgerRecord.phase(LedgerRecord.COMMIT, records[0], transactionId));
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Batch transfer was not committed", e);
+        }
+    }
+    
+    // Applies one replayed record, skipping sides the snapshot already reflects. Only the sides
+    // owned by the replaying shard are applied; the other shard replays its own copy.
+    private boolean applyFromLedger(Shard shard, LedgerRecord record, Set<Long> committed) {
+        if (record.requestId != null && (record.type != LedgerRecord.PREPARE || committed.contains(record.transactionId))) {
+            requests.recorded(record.userId, record.requestId, record.timestamp);
+        }
+        switch (record.type) {
+            case LedgerRecord.CREATE:
+                if (accounts.containsKey(record.userId)) {
+                    return false;
+                }
+                Account created = new Account(record);
+                created.setTransactionListener(transactionListener);
+                accounts.putIfAbsent(created);
+                userIds.observe(record.userId);
+                return true;
+            case LedgerRecord.DEPOSIT:
+                Account account = accounts.get(record.userId);
+                if (account == null || record.sequence <= account.getLastSequence()) {
+                    return false;
+                }
+                account.applyDeposit(record);
+                return true;
+            case LedgerRecord.WITHDRAW:
+                account = accounts.get(record.userId);
+                if (account == null || record.sequence <= account.getLastSequence()) {
+                    return false;
+                }
+                account.applyWithdraw(record);
+                return true;
+            case LedgerRecord.PREPARE:
+                if (!committed.contains(record.transactionId)) {
+                    return false; // Never committed, so both sides roll back
+                }
+                return applyTransferFromLedger(shard, record); // A committed transfer replays like one within a shard
+            case LedgerRecord.TRANSFER:
+                return applyTransferFromLedger(shard, record);
+            default:
+                return false; // COMMIT records only carry the decision
+        }
+    }
+    
+    private boolean applyTransferFromLedger(Shard shard, LedgerRecord record) {
+        boolean applied = false;
+        Account recipient = shard.owns(record.counterparty) ? accounts.get(record.counterparty) : null;
+        if (recipient != null && record.recipientSequence() > recipient.getLastSequence()) {
+            recipient.applyTransferIn(record);
+            applied = true;
+        }
+        Account sender = shard.owns(record.userId) ? accounts.get(record.userId) : null;
+        if (sender != null && record.sequence > sender.getLastSequence()) {
+            sender.applyTransferOut(record);
+            applied = true;
+        }
+        return applied;
+    }
+}
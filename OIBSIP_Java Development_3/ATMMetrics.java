@@ -0,0 +1,390 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.lang.management.ManagementFactory;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+// Always-on operation metrics for the whole JVM: a latency histogram and succeeded/rejected/failed
+// counters per operation, plus the bytes each snapshot and ledger flush writes and how long requests
+// wait in ATMDispatcher's queues. Recording costs two clock reads and a few uncontended atomic
+// adds. Published as the JMX MBean ATM:type=Metrics (jconsole, or any JMX client) and printed to
+// the console every -Datm.metrics.dumpSeconds (default 60, 0 turns it off) whenever there was activity.
+class ATMMetrics implements DynamicMBean {
+    enum Operation {
+        LOAD_DATA("loadData"),
+        SAVE_DATA("saveData"),
+        LEDGER_FLUSH("ledgerFlush"),
+        COMMIT("commit"),
+        AUTHENTICATE("authenticate"),
+        DEPOSIT("deposit"),
+        WITHDRAW("withdraw"),
+        TRANSFER("transfer"),
+        TRANSFER_BATCH("transferBatch");
+        
+        final String label;
+        
+        Operation(String label) {
+            this.label = label;
+        }
+    }
+    
+    private static final long DUMP_INTERVAL_SECONDS = Long.getLong("atm.metrics.dumpSeconds", 60);
+    private static final String OBJECT_NAME = "ATM:type=Metrics";
+    private static final String[] STAT_NAMES = {
+        "Count", "Succeeded", "Rejected", "Failed", "MeanMicros", "P50Micros", "P99Micros", "P999Micros", "MaxMicros"
+    };
+    private static final String[] DISPATCH_STAT_NAMES = {
+        "QueueDepth", "Dispatched", "Rejected", "WaitMeanMicros", "WaitP99Micros", "WaitMaxMicros"
+    };
+    
+    // Rejected means the request was refused by a business rule (wrong PIN, insufficient funds),
+    // failed means it could not be carried out (an I/O error)
+    private static final class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder succeeded = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder failed = new LongAdder();
+    }
+    
+    // Queue wait per dispatch priority, summed over every ATMDispatcher in the JVM
+    private static final class DispatchStats {
+        final LatencyHistogram wait = new LatencyHistogram();
+        final LongAdder queued = new LongAdder(); // Waiting now
+        final LongAdder rejected = new LongAdder();
+    }
+    
+    // Counter values at one moment, so a report can cover just the time since the previous one
+    private static final class Snapshot {
+        final long takenAt = System.nanoTime();
+        final long[][] buckets = new long[Operation.values().length][];
+        final long[][] counters = new long[Operation.values().length][3];
+        final long[][] waitBuckets = new long[ATMDispatcher.Priority.values().length][];
+        final long[] rejectedRequests = new long[ATMDispatcher.Priority.values().length];
+        long saveBytes;
+        long ledgerBytes;
+    }
+    
+    private static final class Holder {
+        static final ATMMetrics INSTANCE = new ATMMetrics();
+    }
+    
+    private final Stats[] stats = new Stats[Operation.values().length];
+    private final DispatchStats[] dispatch = new DispatchStats[ATMDispatcher.Priority.values().length];
+    private final LatencyHistogram saveSizes = new LatencyHistogram();
+    private final LongAdder ledgerBytes = new LongAdder();
+    private final Snapshot started;
+    private Snapshot lastDump; // Dump thread only
+    
+    private ATMMetrics() {
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new Stats();
+        }
+        for (int i = 0; i < dispatch.length; i++) {
+            dispatch[i] = new DispatchStats();
+        }
+        started = snapshot();
+        lastDump = started;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            System.err.println("Metrics are not available over JMX: " + e.getMessage());
+        }
+        if (DUMP_INTERVAL_SECONDS > 0) {
+            ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "atm-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            dumper.scheduleWithFixedDelay(this::dump, DUMP_INTERVAL_SECONDS, DUMP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+    
+    static ATMMetrics get() {
+        return Holder.INSTANCE;
+    }
+    
+    // Each takes the System.nanoTime() read when the operation started
+    void succeeded(Operation operation, long startNanos) {
+        Stats s = stats[operation.ordinal()];
+        s.latency.record(System.nanoTime() - startNanos);
+        s.succeeded.increment();
+    }
+    
+    void rejected(Operation operation, long startNanos) {
+        Stats s = stats[operation.ordinal()];
+        s.latency.record(System.nanoTime() - startNanos);
+        s.rejected.increment();
+    }
+    
+    void failed(Operation operation, long startNanos) {
+        Stats s = stats[operation.ordinal()];
+        s.latency.record(System.nanoTime() - startNanos);
+        s.failed.increment();
+    }
+    
+    // A save that wrote at least one snapshot file, with the bytes it wrote across all shards
+    void saved(long startNanos, long bytes) {
+        succeeded(Operation.SAVE_DATA, startNanos);
+        saveSizes.record(bytes);
+    }
+    
+    void ledgerFlushed(long startNanos, long bytes) {
+        succeeded(Operation.LEDGER_FLUSH, startNanos);
+        ledgerBytes.add(bytes);
+    }
+    
+    void enqueued(ATMDispatcher.Priority priority) {
+        dispatch[priority.ordinal()].queued.increment();
+    }
+    
+    void dequeued(ATMDispatcher.Priority priority, long waitNanos) {
+        DispatchStats d = dispatch[priority.ordinal()];
+        d.queued.decrement();
+        d.wait.record(waitNanos);
+    }
+    
+    void dispatchRejected(ATMDispatcher.Priority priority) {
+        dispatch[priority.ordinal()].rejected.increment();
+    }
+    
+    // Everything recorded since the JVM started
+    String report() {
+        return format("since start", started, snapshot());
+    }
+    
+    private void dump() {
+        Snapshot now = snapshot();
+        boolean active = false;
+        for (int i = 0; i < stats.length; i++) {
+            active |= total(now.counters[i]) != total(lastDump.counters[i]);
+        }
+        for (int i = 0; i < dispatch.length; i++) {
+            active |= now.rejectedRequests[i] != lastDump.rejectedRequests[i];
+        }
+        if (active) {
+            System.out.print(format("last " + DUMP_INTERVAL_SECONDS + " s", lastDump, now));
+        }
+        lastDump = now;
+    }
+    
+    private Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        for (int i = 0; i < stats.length; i++) {
+            Stats s = stats[i];
+            snapshot.buckets[i] = s.latency.counts();
+            snapshot.counters[i][0] = s.succeeded.sum();
+            snapshot.counters[i][1] = s.rejected.sum();
+            snapshot.counters[i][2] = s.failed.sum();
+        }
+        for (int i = 0; i < dispatch.length; i++) {
+            snapshot.waitBuckets[i] = dispatch[i].wait.counts();
+            snapshot.rejectedRequests[i] = dispatch[i].rejected.sum();
+        }
+        snapshot.saveBytes = saveSizes.getSum();
+        snapshot.ledgerBytes = ledgerBytes.sum();
+        return snapshot;
+    }
+    
+    private static long total(long[] counters) {
+        return counters[0] + counters[1] + counters[2];
+    }
+    
+    // One line per operation used in the interval; latencies are the interval's own distribution
+    private String format(String title, Snapshot from, Snapshot to) {
+        double seconds = Math.max(1e-9, (to.takenAt - from.takenAt) / 1e9);
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("ATM metrics, %s:%n", title));
+        report.append(String.format("  %-13s %10s %9s %9s %7s %10s %10s %10s %10s%n",
+                "operation", "count", "rejected", "failed", "ops/s", "p50 us", "p99 us", "p999 us", "max us"));
+        for (Operation operation : Operation.values()) {
+            int i = operation.ordinal();
+            long count = total(to.counters[i]) - total(from.counters[i]);
+            if (count == 0) {
+                continue;
+            }
+            long[] buckets = difference(from.buckets[i], to.buckets[i]);
+            report.append(String.format("  %-13s %10d %9d %9d %7.0f %10.1f %10.1f %10.1f %10.1f%n",
+                    operation.label, count,
+                    to.counters[i][1] - from.counters[i][1], to.counters[i][2] - from.counters[i][2],
+                    count / seconds,
+                    LatencyHistogram.valueAt(buckets, 0.50) / 1e3, LatencyHistogram.valueAt(buckets, 0.99) / 1e3,
+                    LatencyHistogram.valueAt(buckets, 0.999) / 1e3, LatencyHistogram.valueAt(buckets, 1.0) / 1e3));
+        }
+        int save = Operation.SAVE_DATA.ordinal();
+        long saves = to.counters[save][0] - from.counters[save][0];
+        long saveBytes = to.saveBytes - from.saveBytes;
+        report.append(String.format("  snapshots: %d bytes written, %d per save; ledger: %d bytes written%n",
+                saveBytes, saves > 0 ? saveBytes / saves : 0, to.ledgerBytes - from.ledgerBytes));
+        for (ATMDispatcher.Priority priority : ATMDispatcher.Priority.values()) {
+            int i = priority.ordinal();
+            long[] buckets = difference(from.waitBuckets[i], to.waitBuckets[i]);
+            long dispatched = Arrays.stream(buckets).sum();
+            long rejected = to.rejectedRequests[i] - from.rejectedRequests[i];
+            if (dispatched + rejected == 0) {
+                continue;
+            }
+            report.append(String.format("  dispatch %-6s %d dispatched, %d rejected, %d queued now; wait p50 %.1f p99 %.1f max %.1f us%n",
+                    priority.label.toLowerCase(), dispatched, rejected, dispatch[i].queued.sum(),
+                    LatencyHistogram.valueAt(buckets, 0.50) / 1e3, LatencyHistogram.valueAt(buckets, 0.99) / 1e3,
+                    LatencyHistogram.valueAt(buckets, 1.0) / 1e3));
+        }
+        return report.toString();
+    }
+    
+    private static long[] difference(long[] from, long[] to) {
+        long[] buckets = new long[LatencyHistogram.BUCKETS];
+        for (int b = 0; b < buckets.length; b++) {
+            buckets[b] = to[b] - from[b];
+        }
+        return buckets;
+    }
+    
+    // JMX attributes are <operation><stat>, such as transferP99Micros or saveDataFailed, the byte
+    // totals, and dispatch<priority><stat> such as dispatchHighQueueDepth or dispatchLowWaitP99Micros;
+    // the report operation returns the since-start text report
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        switch (attribute) {
+            case "SnapshotBytesWritten":
+                return saveSizes.getSum();
+            case "SnapshotBytesPerSaveP99":
+                return saveSizes.percentile(0.99);
+            case "LedgerBytesWritten":
+                return ledgerBytes.sum();
+            default:
+                break;
+        }
+        for (ATMDispatcher.Priority priority : ATMDispatcher.Priority.values()) {
+            if (attribute.startsWith("dispatch" + priority.label)) {
+                Object value = dispatchStat(dispatch[priority.ordinal()], attribute.substring(8 + priority.label.length()));
+                if (value != null) {
+                    return value;
+                }
+            }
+        }
+        for (Operation operation : Operation.values()) {
+            if (attribute.startsWith(operation.label)) {
+                Object value = stat(stats[operation.ordinal()], attribute.substring(operation.label.length()));
+                if (value != null) {
+                    return value;
+                }
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+    
+    private static Object stat(Stats s, String name) {
+        LatencyHistogram latency = s.latency;
+        switch (name) {
+            case "Count":
+                return latency.getCount();
+            case "Succeeded":
+                return s.succeeded.sum();
+            case "Rejected":
+                return s.rejected.sum();
+            case "Failed":
+                return s.failed.sum();
+            case "MeanMicros":
+                long count = latency.getCount();
+                return count > 0 ? latency.getSum() / 1e3 / count : 0.0;
+            case "P50Micros":
+                return latency.percentile(0.50) / 1e3;
+            case "P99Micros":
+                return latency.percentile(0.99) / 1e3;
+            case "P999Micros":
+                return latency.percentile(0.999) / 1e3;
+            case "MaxMicros":
+                return latency.getMax() / 1e3;
+            default:
+                return null;
+        }
+    }
+    
+    private static Object dispatchStat(DispatchStats d, String name) {
+        switch (name) {
+            case "QueueDepth":
+                return d.queued.sum();
+            case "Dispatched":
+                return d.wait.getCount();
+            case "Rejected":
+                return d.rejected.sum();
+            case "WaitMeanMicros":
+                long count = d.wait.getCount();
+                return count > 0 ? d.wait.getSum() / 1e3 / count : 0.0;
+            case "WaitP99Micros":
+                return d.wait.percentile(0.99) / 1e3;
+            case "WaitMaxMicros":
+                return d.wait.getMax() / 1e3;
+            default:
+                return null;
+        }
+    }
+    
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList values = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                values.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Left out of the list, as the DynamicMBean contract allows
+            }
+        }
+        return values;
+    }
+    
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+    
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList(); // Every attribute is read-only
+    }
+    
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        if ("report".equals(actionName)) {
+            return report();
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+    
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        ArrayList<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Operation operation : Operation.values()) {
+            for (String stat : STAT_NAMES) {
+                boolean latency = stat.endsWith("Micros");
+                attributes.add(new MBeanAttributeInfo(operation.label + stat, latency ? "double" : "long",
+                        operation.label + " " + stat, true, false, false));
+            }
+        }
+        attributes.add(new MBeanAttributeInfo("SnapshotBytesWritten", "long", "Snapshot bytes written", true, false, false));
+        attributes.add(new MBeanAttributeInfo("SnapshotBytesPerSaveP99", "long", "p99 bytes written per save", true, false, false));
+        attributes.add(new MBeanAttributeInfo("LedgerBytesWritten", "long", "Ledger bytes written", true, false, false));
+        for (ATMDispatcher.Priority priority : ATMDispatcher.Priority.values()) {
+            for (String stat : DISPATCH_STAT_NAMES) {
+                boolean latency = stat.endsWith("Micros");
+                attributes.add(new MBeanAttributeInfo("dispatch" + priority.label + stat, latency ? "double" : "long",
+                        priority.label + " priority dispatch " + stat, true, false, false));
+            }
+        }
+        MBeanOperationInfo[] operations = {
+            new MBeanOperationInfo("report", "Text report of everything recorded since start",
+                    new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO)
+        };
+        return new MBeanInfo(getClass().getName(), "ATM operation latencies and counters",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, operations, null);
+    }
+}
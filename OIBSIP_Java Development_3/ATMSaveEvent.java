@@ -0,0 +1,32 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// Java Flight Recorder events, so a recording shows the ATM's own slow spots next to the JVM's
+// GC and I/O events (java -XX:StartFlightRecording ..., then JDK Mission Control or "jfr print
+// --events atm.SaveData"). While no recording is running they cost next to nothing.
+@Name("atm.SaveData")
+@Label("ATM Save Data")
+@Category({"ATM", "Persistence"})
+@Description("Snapshot of every changed shard, with what it wrote")
+class ATMSaveEvent extends Event {
+    @Label("Shards Written")
+    int shards;
+    
+    @Label("Accounts Written")
+    long accounts;
+    
+    @Label("Bytes Written")
+    @DataAmount
+    long bytesWritten;
+    
+    // Called by each shard's writer, which may run in parallel
+    synchronized void addShard(long accountCount, long bytes) {
+        shards++;
+        accounts += accountCount;
+        bytesWritten += bytes;
+    }
+}
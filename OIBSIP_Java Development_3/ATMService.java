@@ -0,0 +1,134 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Headless front end to the ATM: what a terminal offers a customer, with the checks the dialogs
+// used to make themselves. The Swing GUI and ATMLoadGenerator both go through it. Changes are
+// applied at once; commitAsync() makes them durable.
+class ATMService {
+    // Outcome of a request, with the message a terminal shows for it
+    enum Result {
+        OK("Success"),
+        INVALID_AMOUNT("Amount must be positive!"),
+        INSUFFICIENT_FUNDS("Insufficient balance!"),
+        NO_SUCH_ACCOUNT("Recipient account not found!"),
+        SAME_ACCOUNT("Cannot transfer to your own account!"),
+        NOT_APPLIED("Not paid: another payment in the batch was refused");
+        
+        final String message;
+        
+        Result(String message) {
+            this.message = message;
+        }
+    }
+    
+    private static final ATMMetrics metrics = ATMMetrics.get();
+    
+    private final ATMManager manager;
+    
+    ATMService(ATMManager manager) {
+        this.manager = manager;
+    }
+    
+    // The customer's account, or null if the user ID and PIN do not match
+    public Account authenticate(String userId, String pin) {
+        return manager.authenticate(userId, pin);
+    }
+    
+    public double balance(Account account) {
+        return account.getBalance();
+    }
+    
+    public Result deposit(Account account, double amount) {
+        return deposit(account, amount, null);
+    }
+    
+    // The request ID variants run a request once: a terminal retrying after a timeout passes the
+    // same ID and gets the first attempt's result, with nothing applied twice. IDs are per account.
+    public Result deposit(Account account, double amount, String requestId) {
+        return manager.getRequests().execute(account.getUserId(), requestId, () -> {
+            long start = System.nanoTime();
+            if (!(amount > 0)) {
+                return record(ATMMetrics.Operation.DEPOSIT, start, Result.INVALID_AMOUNT);
+            }
+            account.deposit(amount, requestId);
+            return record(ATMMetrics.Operation.DEPOSIT, start, Result.OK);
+        });
+    }
+    
+    public Result withdraw(Account account, double amount) {
+        return withdraw(account, amount, null);
+    }
+    
+    public Result withdraw(Account account, double amount, String requestId) {
+        return manager.getRequests().execute(account.getUserId(), requestId, () -> {
+            long start = System.nanoTime();
+            if (!(amount > 0)) {
+                return record(ATMMetrics.Operation.WITHDRAW, start, Result.INVALID_AMOUNT);
+            }
+            Result result = account.withdraw(amount, requestId) ? Result.OK : Result.INSUFFICIENT_FUNDS;
+            return record(ATMMetrics.Operation.WITHDRAW, start, result);
+        });
+    }
+    
+    // Checks a recipient before the amount is asked for
+    public Result checkRecipient(Account from, String recipientId) {
+        if (recipientId.equals(from.getUserId())) {
+            return Result.SAME_ACCOUNT;
+        }
+        return manager.getAccountByUserId(recipientId) != null ? Result.OK : Result.NO_SUCH_ACCOUNT;
+    }
+    
+    // Throws UncheckedIOException if a transfer between shards cannot be made durable;
+    // neither balance changes then
+    public Result transfer(Account from, String recipientId, double amount) {
+        return transfer(from, recipientId, amount, null);
+    }
+    
+    // A transfer that threw can be retried with the same request ID; it is run again then
+    public Result transfer(Account from, String recipientId, double amount, String requestId) {
+        return manager.getRequests().execute(from.getUserId(), requestId, () -> {
+            long start = System.nanoTime();
+            try {
+                return record(ATMMetrics.Operation.TRANSFER, start, tryTransfer(from, recipientId, amount, requestId));
+            } catch (RuntimeException e) {
+                metrics.failed(ATMMetrics.Operation.TRANSFER, start);
+                throw e;
+            }
+        });
+    }
+    
+    private Result tryTransfer(Account from, String recipientId, double amount, String requestId) {
+        Result recipientCheck = checkRecipient(from, recipientId);
+        if (recipientCheck != Result.OK) {
+            return recipientCheck;
+        }
+        if (!(amount > 0)) {
+            return Result.INVALID_AMOUNT;
+        }
+        Account recipient = manager.getAccountByUserId(recipientId);
+        return from.transfer(recipient, amount, requestId) ? Result.OK : Result.INSUFFICIENT_FUNDS;
+    }
+    
+    // One page of the history as display text, counterparties shown by name
+    public ArrayList<String> history(Account account, int offset, int limit, boolean newestFirst) {
+        return account.getTransactionHistory(offset, limit, newestFirst, manager::getAccountName);
+    }
+    
+    // Display name for an account, or null if there is none with that user ID
+    public String accountName(String userId) {
+        return manager.getAccountName(userId);
+    }
+    
+    public CompletableFuture<Void> commitAsync() {
+        return manager.commitAsync();
+    }
+    
+    private static Result record(ATMMetrics.Operation operation, long startNanos, Result result) {
+        if (result == Result.OK) {
+            metrics.succeeded(operation, startNanos);
+        } else {
+            metrics.rejected(operation, startNanos);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,216 @@
+import java.awt.GraphicsEnvironment;
+import java.io.*;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import javax.swing.SwingUtilities;
+
+// Warm standby for an ATM primary started with -Datm.replication.port=N. It copies the primary's
+// data files into its own directory, loads them, then applies every batch of ledger records the
+// primary ships, so it holds the same accounts in memory and on disk. If the primary goes away it
+// reconnects and starts over with a fresh copy, or with --failover takes over at once: the ATM
+// opens on the accounts already in memory, with nothing to load.
+//   javac ATMInterface.java ATMStandby.java
+//   java -Datm.replication.port=7070 ATMInterface
+//   java ATMStandby --primary localhost:7070 --dir standby --failover
+// Options:
+//   --primary HOST:PORT  where the primary listens (default localhost:7070)
+//   --dir DIR            the standby's own data directory (default standby)
+//   --failover           take over when the primary is lost instead of reconnecting
+//   --report-seconds N   how often replication lag is printed (default 5, 0 for never)
+// Lag in milliseconds compares the primary's clock with the standby's, so across machines it
+// is only as good as their clock sync.
+public class ATMStandby {
+    private static final long RECONNECT_MILLIS = 1000;
+    
+    private final File directory;
+    private final long reportMillis;
+    private ATMManager manager;
+    private long[] primarySequences = new long[0]; // Durable on the primary, as of the last message
+    private long[] appliedSequences = new long[0];
+    private long lagMillis; // From the primary's flush of the last batch applied to applying it
+    private long recordsApplied;
+    private long lastReport;
+    
+    private ATMStandby(File directory, long reportMillis) {
+        this.directory = directory;
+        this.reportMillis = reportMillis;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        String host = "localhost";
+        int port = 7070;
+        File directory = new File("standby");
+        boolean failover = false;
+        long reportSeconds = 5;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--primary":
+                    String[] address = args[++i].split(":");
+                    host = address[0];
+                    port = Integer.parseInt(address[1]);
+                    break;
+                case "--dir":
+                    directory = new File(args[++i]);
+                    break;
+                case "--failover":
+                    failover = true;
+                    break;
+                case "--report-seconds":
+                    reportSeconds = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.err.println("Cannot create " + directory);
+            return;
+        }
+        
+        ATMStandby standby = new ATMStandby(directory, TimeUnit.SECONDS.toMillis(reportSeconds));
+        while (true) {
+            try {
+                standby.follow(host, port);
+            } catch (EOFException e) {
+                System.err.println("Lost the primary at " + host + ":" + port + ": connection closed");
+            } catch (IOException e) {
+                System.err.println("Lost the primary at " + host + ":" + port + ": " + e.getMessage());
+            }
+            if (failover && standby.manager != null) {
+                standby.takeOver();
+                return;
+            }
+            if (standby.manager != null) {
+                standby.manager.shutdown(); // Starts over from a fresh copy
+                standby.manager = null;
+            }
+            Thread.sleep(RECONNECT_MILLIS);
+        }
+    }
+    
+    // Returns only by throwing, when the connection is lost
+    private void follow(String host, int port) throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            if (in.readInt() != ReplicationServer.MAGIC || in.readInt() != ReplicationServer.VERSION) {
+                throw new IOException("not an ATM primary, or a different version");
+            }
+            String dataFileName = in.readUTF();
+            int shardCount = in.readInt();
+            useSnapshotFormat(in.readBoolean());
+            copyFiles(in, dataFileName);
+            
+            long start = System.nanoTime();
+            manager = new ATMManager(new File(directory, dataFileName).getPath(), shardCount);
+            primarySequences = new long[shardCount];
+            appliedSequences = manager.getDurableSequences();
+            System.out.printf("Following the primary at %s:%d: %d accounts loaded in %.0f ms%n",
+                    host, port, manager.getAllAccounts().size(), (System.nanoTime() - start) / 1e6);
+            
+            while (true) {
+                byte type = in.readByte();
+                long sentAt = in.readLong();
+                for (int i = 0; i < shardCount; i++) {
+                    primarySequences[i] = in.readLong();
+                }
+                if (type == ReplicationServer.BATCH) {
+                    int shard = in.readInt();
+                    long flushedAt = in.readLong();
+                    byte[] frames = new byte[in.readInt()];
+                    in.readFully(frames);
+                    manager.applyReplicated(shard, frames);
+                    long before = appliedSequences[shard];
+                    appliedSequences[shard] = manager.getLastSequence(shard);
+                    recordsApplied += appliedSequences[shard] - before;
+                    lagMillis = System.currentTimeMillis() - flushedAt;
+                } else if (type != ReplicationServer.HEARTBEAT) {
+                    throw new IOException("unexpected message " + type);
+                } else if (behind() == 0) {
+                    lagMillis = Math.max(0, System.currentTimeMillis() - sentAt);
+                }
+                report();
+            }
+        }
+    }
+    
+    // Snapshots must be read in the format the primary writes them
+    private static void useSnapshotFormat(boolean binary) throws IOException {
+        String wanted = binary ? "binary" : "json";
+        String current = System.getProperty("atm.snapshot");
+        if (current == null) {
+            System.setProperty("atm.snapshot", wanted); // Read when ATMManager is first used
+        } else if (binary != "binary".equalsIgnoreCase(current)) {
+            throw new IOException("the primary keeps " + wanted + " snapshots; run the standby with -Datm.snapshot=" + wanted);
+        }
+    }
+    
+    // Replaces whatever an earlier run left in the directory with the primary's files
+    private void copyFiles(DataInputStream in, String dataFileName) throws IOException {
+        String prefix = dataFileName.endsWith(".json") ? dataFileName.substring(0, dataFileName.length() - 5) : dataFileName;
+        File[] stale = directory.listFiles((dir, name) -> name.startsWith(prefix + "."));
+        if (stale != null) {
+            for (File file : stale) {
+                if (!file.delete()) {
+                    throw new IOException("cannot delete " + file);
+                }
+            }
+        }
+        long bytes = 0;
+        int count = 0;
+        byte type;
+        while ((type = in.readByte()) == ReplicationServer.FILE) {
+            String name = new File(in.readUTF()).getName(); // Never outside the directory
+            byte[] contents = new byte[in.readInt()];
+            in.readFully(contents);
+            try (FileOutputStream out = new FileOutputStream(new File(directory, name))) {
+                out.write(contents);
+                out.getChannel().force(true);
+            }
+            bytes += contents.length;
+            count++;
+        }
+        if (type != ReplicationServer.READY) {
+            throw new IOException("unexpected message " + type);
+        }
+        System.out.println("Copied " + count + " files (" + bytes + " bytes) from the primary.");
+    }
+    
+    // Records durable on the primary that are not applied here yet
+    private long behind() {
+        long behind = 0;
+        for (int i = 0; i < primarySequences.length; i++) {
+            behind += Math.max(0, primarySequences[i] - appliedSequences[i]);
+        }
+        return behind;
+    }
+    
+    private void report() {
+        long now = System.currentTimeMillis();
+        if (reportMillis <= 0 || now - lastReport < reportMillis) {
+            return;
+        }
+        lastReport = now;
+        System.out.printf("Replication lag: %d records, %d ms; %d records applied%n", behind(), lagMillis, recordsApplied);
+    }
+    
+    // The accounts are already in memory and the ledgers open, so this only opens the ATM
+    private void takeOver() {
+        long start = System.nanoTime();
+        ATMManager promoted = manager;
+        promoted.discardUncommitted();
+        long cents = 0;
+        for (Account account : promoted.getAllAccounts().values()) {
+            cents += account.getBalanceCents();
+        }
+        System.out.printf("Took over as primary in %.1f ms: %d accounts holding %d cents.%n",
+                (System.nanoTime() - start) / 1e6, promoted.getAllAccounts().size(), cents);
+        if (GraphicsEnvironment.isHeadless()) {
+            System.out.println("No display to open the ATM on; saving and exiting.");
+            promoted.shutdown();
+        } else {
+            SwingUtilities.invokeLater(() -> new ATMInterface(promoted));
+        }
+    }
+}
@@ -0,0 +1,824 @@
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.io.*;
+
+// Account class to store user account information
+class Account {
+    private String userId;
+    private String pin;
+    private String name;
+    private volatile long balanceCents; // Volatile so balance reads never take the lock
+    private TransactionHistory transactionHistory; // Null until decoded when loaded from a binary snapshot
+    private BinarySnapshot.HistoryBlock mappedHistory;
+    private long lastSequence; // Ledger sequence of the last change applied to this account
+    private volatile long lastActivity; // Time of the newest history entry, readable without the lock
+    // Entries moved to the history archive, and the time of the newest one; the hot history then
+    // starts with a CARRIED_FORWARD entry. The segments are looked up on first use.
+    private volatile long archivedCount;
+    private volatile long archivedThrough;
+    private HistoryArchive archive;
+    private HistoryArchive.Segment[] archivedSegments;
+    private TransactionListener listener;
+    private final ReentrantLock lock = new ReentrantLock(); // Guards every change to this account
+    // Set while a transfer between shards waits on the disk with the lock released; changes and
+    // consistent reads wait for it to settle. Guarded by the lock.
+    private boolean inDoubt;
+    private final java.util.concurrent.locks.Condition settled = lock.newCondition();
+    private volatile Credit pendingCredits; // Stack of credits waiting for the lock, newest first
+    
+    // A deposit or incoming transfer that found this account locked. Rather than queue on the lock,
+    // it is pushed here, and whichever thread holds the lock applies every waiting credit before it
+    // lets go (flat combining). A hot account, such as a merchant most terminals pay, then changes
+    // hands once per batch of credits instead of once per credit, and its listener hears once.
+    private static final class Credit {
+        static final int PENDING = 0;
+        static final int APPLIED = 1;
+        static final int INSUFFICIENT_FUNDS = 2;
+        static final int RETRY = 3; // The sender was busy and comes before this account in lock order
+        static final int FAILED = 4;
+        
+        final Account sender; // Null for a deposit
+        final long cents;
+        final String requestId;
+        final Thread waiter = Thread.currentThread();
+        Credit next;
+        RuntimeException failure;
+        volatile int outcome = PENDING; // Set last, publishing the fields above to the waiter
+        
+        Credit(Account sender, long cents, String requestId) {
+            this.sender = sender;
+            this.cents = cents;
+            this.requestId = requestId;
+        }
+    }
+    
+    private static final java.util.concurrent.atomic.AtomicReferenceFieldUpdater<Account, Credit> PENDING_CREDITS =
+            java.util.concurrent.atomic.AtomicReferenceFieldUpdater.newUpdater(Account.class, Credit.class, "pendingCredits");
+    private static final int CREDIT_SPINS = 100; // Busy-waits before a waiting credit parks
+    // On one CPU the lock is only ever contended because its holder was preempted, and combining
+    // would just add a wake-up per credit, so credits queue on the lock there as before
+    private static final boolean COMBINE_CREDITS = Runtime.getRuntime().availableProcessors() > 1;
+    
+    public Account(String userId, String pin, String name, double initialBalance) {
+        this(LedgerRecord.create(userId, pin, name, toCents(initialBalance)));
+    }
+    
+    // Rebuilds an account from its creation record (new accounts and ledger replay)
+    Account(LedgerRecord created) {
+        this.userId = created.userId;
+        this.pin = created.pin;
+        this.name = created.name;
+        this.balanceCents = created.amountCents;
+        this.transactionHistory = new TransactionHistory();
+        this.lastSequence = created.sequence;
+        addTransaction(TransactionHistory.CREATED, created.amountCents, null, created.timestamp);
+    }
+    
+    public Account(JSONObject json) {
+        this.userId = json.getString("userId");
+        this.pin = json.getString("pin");
+        this.name = json.getString("name");
+        this.balanceCents = toCents(json.getDouble("balance"));
+        this.lastSequence = json.optLong("lastSequence", 0);
+        this.transactionHistory = new TransactionHistory();
+        if (json.has("history")) {
+            JSONArray history = json.getJSONArray("history");
+            for (int i = 0; i < history.length(); i++) {
+                JSONArray entry = history.getJSONArray(i);
+                transactionHistory.add(entry.getLong(0), TransactionHistory.typeOf(entry.getString(1)),
+                        entry.getLong(2), entry.getLong(3), entry.length() > 4 ? entry.getString(4) : null);
+            }
+        } else {
+            JSONArray history = json.getJSONArray("transactionHistory");
+            for (int i = 0; i < history.length(); i++) {
+                transactionHistory.addLegacy(history.getString(i));
+            }
+        }
+        this.lastActivity = transactionHistory.getLastTime();
+        noteArchivedEntries();
+    }
+    
+    // Index entry of a binary snapshot; the history stays in the mapped file until first used
+    Account(String userId, String pin, String name, double balance, long lastSequence, BinarySnapshot.HistoryBlock mappedHistory) {
+        this.userId = userId;
+        this.pin = pin;
+        this.name = name;
+        this.balanceCents = toCents(balance);
+        this.lastSequence = lastSequence;
+        this.mappedHistory = mappedHistory;
+        this.lastActivity = mappedHistory.getLastTime();
+        this.archivedCount = mappedHistory.getArchivedCount();
+        this.archivedThrough = mappedHistory.getArchivedThrough();
+    }
+    
+    // Builds the account straight from the token stream, without an intermediate JSONObject
+    Account(JSONReader reader) throws IOException {
+        this.transactionHistory = new TransactionHistory();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "userId":
+                    this.userId = reader.nextString();
+                    break;
+                case "pin":
+                    this.pin = reader.nextString();
+                    break;
+                case "name":
+                    this.name = reader.nextString();
+                    break;
+                case "balance":
+                    this.balanceCents = toCents(reader.nextDouble());
+                    break;
+                case "lastSequence":
+                    this.lastSequence = reader.nextLong();
+                    break;
+                case "history":
+                    transactionHistory.readJSON(reader);
+                    break;
+                case "transactionHistory": // Formatted strings written before the structured history
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        transactionHistory.addLegacy(reader.nextString());
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        this.lastActivity = transactionHistory.getLastTime();
+        noteArchivedEntries();
+    }
+    
+    private void noteArchivedEntries() {
+        if (transactionHistory.size() > 0 && transactionHistory.getType(0) == TransactionHistory.CARRIED_FORWARD) {
+            archivedCount = transactionHistory.getAmountCents(0);
+            archivedThrough = transactionHistory.getTime(0);
+        }
+    }
+    
+    // Money is kept in whole cents so concurrent updates add up exactly
+    static long toCents(double amount) {
+        return Math.round(amount * 100);
+    }
+    
+    static double toDollars(long cents) {
+        return cents / 100.0;
+    }
+    
+    public JSONObject toJSON() {
+        lock.lock();
+        try {
+            awaitSettled();
+            JSONObject json = new JSONObject();
+            json.put("userId", userId);
+            json.put("pin", pin);
+            json.put("name", name);
+            json.put("balance", toDollars(balanceCents));
+            json.put("lastSequence", lastSequence);
+            json.put("history", history().toJSON());
+            return json;
+        } finally {
+            unlock();
+        }
+    }
+    
+    // Streams the account to the writer; holds the account lock only for its own history
+    public void writeJSON(JSONWriter writer) throws IOException {
+        lock.lock();
+        try {
+            awaitSettled();
+            writer.beginObject();
+            writer.name("userId").value(userId);
+            writer.name("pin").value(pin);
+            writer.name("name").value(name);
+            writer.name("balance").value(toDollars(balanceCents));
+            writer.name("lastSequence").value(lastSequence);
+            writer.name("history");
+            history().writeJSON(writer);
+            writer.endObject();
+        } finally {
+            unlock();
+        }
+    }
+    
+    public String getUserId() {
+        return userId;
+    }
+    
+    public String getPin() {
+        return pin;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public double getBalance() {
+        return toDollars(balanceCents);
+    }
+    
+    long getBalanceCents() {
+        return balanceCents;
+    }
+    
+    long getLastActivity() {
+        return lastActivity;
+    }
+    
+    long getLastSequence() {
+        lock.lock();
+        try {
+            return lastSequence;
+        } finally {
+            unlock();
+        }
+    }
+    
+    void setTransactionListener(TransactionListener listener) {
+        this.listener = listener;
+    }
+    
+    public void deposit(double amount) {
+        deposit(amount, null);
+    }
+    
+    // The request ID, if any, is logged with the change so a retried request is recognised after a restart
+    void deposit(double amount, String requestId) {
+        credit(null, toCents(amount), requestId);
+    }
+    
+    public boolean withdraw(double amount) {
+        return withdraw(amount, null);
+    }
+    
+    boolean withdraw(double amount, String requestId) {
+        long cents = toCents(amount);
+        lock.lock();
+        try {
+            awaitSettled();
+            if (cents > balanceCents) {
+                return false;
+            }
+            LedgerRecord record = LedgerRecord.withdraw(userId, cents);
+            record.requestId = requestId;
+            publish(record);
+            applyWithdraw(record);
+            applied();
+            return true;
+        } finally {
+            unlock();
+        }
+    }
+    
+    // Credited through the recipient's combining path, so terminals paying one hot account do not
+    // convoy on its lock
+    public boolean transfer(Account recipient, double amount) {
+        return transfer(recipient, amount, null);
+    }
+    
+    boolean transfer(Account recipient, double amount, String requestId) {
+        TransactionListener.TwoPhaseCommit twoPhase = listener != null ? listener.twoPhaseCommit(userId, recipient.userId) : null;
+        if (twoPhase != null) {
+            return transferInTwoPhases(recipient, toCents(amount), requestId, twoPhase);
+        }
+        int outcome = recipient.credit(this, toCents(amount), requestId);
+        return outcome == Credit.RETRY ? transferBlocking(recipient, amount, requestId) : outcome == Credit.APPLIED;
+    }
+    
+    // The plain path: both locks taken in order, then the transfer applied
+    boolean transferBlocking(Account recipient, double amount) {
+        return transferBlocking(recipient, amount, null);
+    }
+    
+    private boolean transferBlocking(Account recipient, double amount, String requestId) {
+        long cents = toCents(amount);
+        TransactionListener.TwoPhaseCommit twoPhase = listener != null ? listener.twoPhaseCommit(userId, recipient.userId) : null;
+        if (twoPhase != null) {
+            return transferInTwoPhases(recipient, cents, requestId, twoPhase);
+        }
+        lockBothSettled(this, recipient);
+        try {
+            if (cents > balanceCents) {
+                return false;
+            }
+            LedgerRecord record = LedgerRecord.transfer(userId, recipient.userId, cents);
+            record.requestId = requestId;
+            publish(record);
+            recipient.applyTransferIn(record);
+            applyTransferOut(record);
+            recipient.applied();
+            applied();
+            return true;
+        } finally {
+            unlockBoth(this, recipient);
+        }
+    }
+    
+    // A transfer whose two sides go to different ledgers. The PREPARE records are written under
+    // both locks; the accounts are then left in doubt and the locks released while the records
+    // are made durable and committed, so the waits on the disk hold up no one else's lock. Other
+    // changes to either account wait until it settles, so the transfer is applied to the balances
+    // it was checked against and no record lands between its PREPARE and COMMIT on either side.
+    private boolean transferInTwoPhases(Account recipient, long cents, String requestId, TransactionListener.TwoPhaseCommit twoPhase) {
+        LedgerRecord record;
+        lockBothSettled(this, recipient);
+        try {
+            if (cents > balanceCents) {
+                return false;
+            }
+            record = LedgerRecord.transfer(userId, recipient.userId, cents);
+            record.requestId = requestId;
+            twoPhase.prepare(record);
+            inDoubt = true;
+            recipient.inDoubt = true;
+        } finally {
+            unlockBoth(this, recipient);
+        }
+        boolean committed = false;
+        try {
+            twoPhase.commit();
+            committed = true;
+        } finally {
+            lockBoth(this, recipient);
+            try {
+                if (committed) {
+                    recipient.applyTransferIn(record);
+                    applyTransferOut(record);
+                    recipient.applied();
+                    applied();
+                }
+                settle();
+                recipient.settle();
+            } finally {
+                unlockBoth(this, recipient);
+            }
+        }
+        return true;
+    }
+    
+    // Waits, with the lock held, for a transfer in doubt on this account to settle
+    private void awaitSettled() {
+        while (inDoubt) {
+            settled.awaitUninterruptibly();
+        }
+    }
+    
+    private void waitUntilSettled() {
+        lock.lock();
+        try {
+            awaitSettled();
+        } finally {
+            unlock();
+        }
+    }
+    
+    private void settle() {
+        inDoubt = false;
+        settled.signalAll();
+    }
+    
+    // Applies a credit to this account, combining it with others if the lock is busy. Returns a
+    // Credit outcome; rethrows what applying it threw, as the plain path would.
+    private int credit(Account sender, long cents, String requestId) {
+        boolean locked = lock.tryLock();
+        if (!locked && !COMBINE_CREDITS) {
+            lock.lock();
+            locked = true;
+        }
+        if (locked) {
+            int outcome;
+            try {
+                awaitSettled();
+                outcome = applyCredit(sender, cents, requestId);
+                if (outcome == Credit.APPLIED) {
+                    applyPendingCredits(false);
+                    applied();
+                } else {
+                    applyPendingCredits(true);
+                }
+            } finally {
+                unlock();
+            }
+            return outcome;
+        }
+        Credit credit = new Credit(sender, cents, requestId);
+        Credit head;
+        do {
+            head = pendingCredits;
+            credit.next = head;
+        } while (!PENDING_CREDITS.compareAndSet(this, head, credit));
+        // Wait for a lock holder to apply it, taking the lock to do so ourselves when it comes free;
+        // unlock() wakes a waiter whenever it leaves credits behind. The park is bounded anyway.
+        for (int spins = 0; credit.outcome == Credit.PENDING; spins++) {
+            if (lock.tryLock()) {
+                try {
+                    awaitSettled();
+                    applyPendingCredits(true);
+                } finally {
+                    unlock();
+                }
+            } else if (spins < CREDIT_SPINS) {
+                Thread.onSpinWait();
+            } else {
+                java.util.concurrent.locks.LockSupport.parkNanos(this, 1_000_000);
+            }
+        }
+        if (credit.outcome == Credit.FAILED) {
+            throw credit.failure;
+        }
+        return credit.outcome;
+    }
+    
+    // Applies every waiting credit in arrival order; callers hold the lock. The listener is told
+    // once for the whole batch, unless the caller is about to tell it anyway.
+    private void applyPendingCredits(boolean notify) {
+        Credit stack = pendingCredits == null ? null : PENDING_CREDITS.getAndSet(this, null);
+        Credit ordered = null;
+        while (stack != null) {
+            Credit next = stack.next;
+            stack.next = ordered;
+            ordered = stack;
+            stack = next;
+        }
+        boolean changed = false;
+        for (Credit credit = ordered; credit != null; credit = credit.next) {
+            int outcome;
+            try {
+                outcome = applyCredit(credit.sender, credit.cents, credit.requestId);
+            } catch (RuntimeException e) {
+                credit.failure = e;
+                outcome = Credit.FAILED;
+            }
+            changed |= outcome == Credit.APPLIED;
+            credit.outcome = outcome;
+            java.util.concurrent.locks.LockSupport.unpark(credit.waiter);
+        }
+        if (changed && notify) {
+            applied();
+        }
+    }
+    
+    // One deposit or incoming transfer, with this account locked. The sender is locked too: it
+    // comes after this account in lock order, so waiting for it is safe, or else it is only tried
+    // and the transfer goes back to the plain path if it is busy. The recipient's listener is
+    // left to the caller, which tells it once per batch.
+    private int applyCredit(Account sender, long cents, String requestId) {
+        if (sender == null) {
+            LedgerRecord record = LedgerRecord.deposit(userId, cents);
+            record.requestId = requestId;
+            publish(record);
+            applyDeposit(record);
+            return Credit.APPLIED;
+        }
+        if (userId.compareTo(sender.userId) < 0) {
+            sender.lock.lock();
+        } else if (!sender.lock.tryLock()) {
+            return Credit.RETRY;
+        }
+        try {
+            if (sender.inDoubt) {
+                return Credit.RETRY; // Waited out on the plain path, which holds no other lock meanwhile
+            }
+            if (cents > sender.balanceCents) {
+                return Credit.INSUFFICIENT_FUNDS;
+            }
+            LedgerRecord record = LedgerRecord.transfer(sender.userId, userId, cents);
+            record.requestId = requestId;
+            sender.publish(record);
+            applyTransferIn(record);
+            sender.applyTransferOut(record);
+            sender.applied();
+            return Credit.APPLIED;
+        } finally {
+            sender.unlock();
+        }
+    }
+    
+    // Every release of the lock goes through here, so credits left waiting always get a thread to apply them
+    private void unlock() {
+        lock.unlock();
+        Credit waiting = pendingCredits;
+        if (waiting != null) {
+            java.util.concurrent.locks.LockSupport.unpark(waiting.waiter);
+        }
+    }
+    
+    // Locks two accounts in user ID order, so transfers in opposite directions cannot deadlock
+    static void lockBoth(Account a, Account b) {
+        Account first = a.userId.compareTo(b.userId) <= 0 ? a : b;
+        Account second = first == a ? b : a;
+        first.lock.lock();
+        second.lock.lock();
+    }
+    
+    static void unlockBoth(Account a, Account b) {
+        a.unlock();
+        b.unlock();
+    }
+    
+    // lockBoth for a change: if either account is in doubt, both are released while it settles
+    static void lockBothSettled(Account a, Account b) {
+        while (true) {
+            lockBoth(a, b);
+            Account waiting = a.inDoubt ? a : b.inDoubt ? b : null;
+            if (waiting == null) {
+                return;
+            }
+            unlockBoth(a, b);
+            waiting.waitUntilSettled();
+        }
+    }
+    
+    // Locks any number of accounts, which must come in user ID order like lockBoth's
+    static void lockAll(Collection<Account> sorted) {
+        for (Account account : sorted) {
+            account.lock.lock();
+        }
+    }
+    
+    static void unlockAll(Collection<Account> accounts) {
+        for (Account account : accounts) {
+            account.unlock();
+        }
+    }
+    
+    // lockAll for a change, waiting out any account in doubt with no other lock held
+    static void lockAllSettled(Collection<Account> sorted) {
+        while (true) {
+            lockAll(sorted);
+            Account waiting = null;
+            for (Account account : sorted) {
+                if (account.inDoubt) {
+                    waiting = account;
+                    break;
+                }
+            }
+            if (waiting == null) {
+                return;
+            }
+            unlockAll(sorted);
+            waiting.waitUntilSettled();
+        }
+    }
+    
+    // Returns the history as display text, with transfer counterparties shown by user ID
+    public ArrayList<String> getTransactionHistory() {
+        return getTransactionHistory(null);
+    }
+    
+    // Renders a copy of the history, archived entries included, so callers can read it while other
+    // terminals keep transacting. The lookup turns counterparty user IDs into names.
+    public ArrayList<String> getTransactionHistory(java.util.function.Function<String, String> counterpartyNames) {
+        HistoryView history = getHistoryView();
+        int size = history.size();
+        ArrayList<String> lines = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            lines.add(history.format(i, counterpartyNames));
+        }
+        return lines;
+    }
+    
+    // One page of the history as display text: up to limit entries starting offset entries from
+    // the oldest end, or from the newest end when newestFirst is set. Only that page is formatted.
+    public ArrayList<String> getTransactionHistory(int offset, int limit, boolean newestFirst,
+            java.util.function.Function<String, String> counterpartyNames) {
+        HistoryView history = getHistoryView();
+        int size = history.size();
+        int count = Math.max(0, Math.min(limit, size - offset));
+        ArrayList<String> lines = new ArrayList<>(count);
+        for (int k = 0; k < count; k++) {
+            lines.add(history.format(newestFirst ? size - 1 - offset - k : offset + k, counterpartyNames));
+        }
+        return lines;
+    }
+    
+    // Balance as of the instant, counting every transaction made at or before it; 0 before the
+    // account was opened. A binary search over the history's timestamps, O(log n); an archived
+    // segment is read from disk only if the instant falls inside it.
+    public double balanceAt(java.time.Instant instant) {
+        return toDollars(getHistoryView().balanceBefore(instant.toEpochMilli() + 1));
+    }
+    
+    // Transactions made at or after from and before to, oldest first, as display text
+    public ArrayList<String> transactionsBetween(java.time.Instant from, java.time.Instant to) {
+        return transactionsBetween(from, to, null);
+    }
+    
+    public ArrayList<String> transactionsBetween(java.time.Instant from, java.time.Instant to,
+            java.util.function.Function<String, String> counterpartyNames) {
+        HistoryView history = getHistoryView();
+        int first = history.firstAtOrAfter(from.toEpochMilli());
+        int end = Math.max(first, history.firstAtOrAfter(to.toEpochMilli()));
+        ArrayList<String> lines = new ArrayList<>(end - first);
+        for (int i = first; i < end; i++) {
+            lines.add(history.format(i, counterpartyNames));
+        }
+        return lines;
+    }
+    
+    // The hot history, starting with a CARRIED_FORWARD entry once older entries are archived;
+    // entries below its size() can be read without the account lock
+    TransactionHistory getHistory() {
+        lock.lock();
+        try {
+            return history();
+        } finally {
+            unlock();
+        }
+    }
+    
+    // The history if it is decoded, or null while it is still in a mapped snapshot. Only for
+    // loading, before the account is shared.
+    TransactionHistory decodedHistory() {
+        return transactionHistory;
+    }
+    
+    // The whole history, archived entries first
+    HistoryView getHistoryView() {
+        lock.lock();
+        try {
+            TransactionHistory history = history();
+            return new HistoryView(archive, archivedSegments(), history, history.size());
+        } finally {
+            unlock();
+        }
+    }
+    
+    // Callers hold the lock. Empty if nothing is archived, or if the archive has lost the segments;
+    // the view then shows the carried-forward entry in their place.
+    private HistoryArchive.Segment[] archivedSegments() {
+        if (archivedSegments == null && archivedCount > 0) {
+            archivedSegments = archive != null ? archive.chain(userId, archivedCount) : null;
+            if (archivedSegments == null) {
+                System.err.println("Archived history of " + userId + " is missing from the archive file");
+                archivedSegments = new HistoryArchive.Segment[0];
+            }
+        }
+        return archivedSegments != null ? archivedSegments : new HistoryArchive.Segment[0];
+    }
+    
+    long getArchivedCount() {
+        return archivedCount;
+    }
+    
+    void setArchive(HistoryArchive archive) {
+        lock.lock();
+        try {
+            this.archive = archive;
+        } finally {
+            unlock();
+        }
+    }
+    
+    long getArchivedThrough() {
+        return archivedThrough;
+    }
+    
+    // Entries before the cutoff that can move to the archive, copied without the lock since entries
+    // below size() never change; null if there are fewer than minEntries of them
+    TransactionHistory archivableBefore(long cutoff, int minEntries) {
+        TransactionHistory history = getHistory();
+        int from = archivedCount > 0 ? 1 : 0;
+        int end = history.firstAtOrAfter(cutoff, history.size());
+        if (end - from < minEntries) {
+            return null;
+        }
+        TransactionHistory archivable = new TransactionHistory(end - from);
+        archivable.addFrom(history, from, end);
+        return archivable;
+    }
+    
+    // Once the segment holding them is durable, drops the archived entries from the hot history and
+    // puts a CARRIED_FORWARD entry for them first. No other thread replaces the history meanwhile:
+    // terminals only append to it, and the archiver runs one pass at a time.
+    void commitArchived(HistoryArchive archive, TransactionHistory archived, HistoryArchive.Segment segment) {
+        lock.lock();
+        try {
+            this.archive = archive;
+            TransactionHistory history = history();
+            int from = archivedCount > 0 ? 1 : 0;
+            int end = from + archived.size();
+            int size = history.size();
+            long count = archivedCount + archived.size();
+            long through = archived.getLastTime();
+            TransactionHistory hot = new TransactionHistory(size - end + 8);
+            hot.add(through, TransactionHistory.CARRIED_FORWARD, count, segment.endBalance, null);
+            hot.addFrom(history, end, size);
+            transactionHistory = hot;
+            archivedSegments = null; // Looked up again, now ending with the new segment
+            archivedCount = count;
+            archivedThrough = through;
+        } finally {
+            unlock();
+        }
+    }
+    
+    // Every transaction, archived ones included
+    public int getTransactionCount() {
+        lock.lock();
+        try {
+            int hot = transactionHistory != null ? transactionHistory.size() : mappedHistory.getCount();
+            return archivedCount > 0 ? (int) (archivedCount + hot - 1) : hot;
+        } finally {
+            unlock();
+        }
+    }
+    
+    // The history and balance at one instant, read under the lock; the position's entries stay
+    // readable afterwards, while the account keeps transacting
+    static final class Position {
+        final String userId;
+        final TransactionHistory history;
+        final int size;
+        final long balanceCents;
+        
+        Position(String userId, TransactionHistory history, int size, long balanceCents) {
+            this.userId = userId;
+            this.history = history;
+            this.size = size;
+            this.balanceCents = balanceCents;
+        }
+    }
+    
+    Position position() {
+        lock.lock();
+        try {
+            awaitSettled();
+            TransactionHistory history = history();
+            return new Position(userId, history, history.size(), balanceCents);
+        } finally {
+            unlock();
+        }
+    }
+    
+    // Writes the history block of a binary snapshot, copying it unchanged if never decoded
+    void writeHistoryBlock(DataOutputStream out) throws IOException {
+        lock.lock();
+        try {
+            awaitSettled();
+            if (transactionHistory == null && mappedHistory.isCurrentFormat()) {
+                mappedHistory.copyTo(out);
+            } else {
+                BinarySnapshot.HistoryBlock.write(out, history());
+            }
+        } finally {
+            unlock();
+        }
+    }
+    
+    // Decodes a mapped history on first use; callers hold the lock
+    private TransactionHistory history() {
+        if (transactionHistory == null) {
+            transactionHistory = mappedHistory.decode();
+            mappedHistory = null;
+        }
+        return transactionHistory;
+    }
+    
+    // The apply methods change state without publishing, so ledger replay can reuse them.
+    // Callers hold this account's lock, except during single-threaded replay.
+    void applyDeposit(LedgerRecord record) {
+        balanceCents += record.amountCents;
+        addTransaction(TransactionHistory.DEPOSIT, record.amountCents, null, record.timestamp);
+        lastSequence = record.sequence;
+    }
+    
+    void applyWithdraw(LedgerRecord record) {
+        balanceCents -= record.amountCents;
+        addTransaction(TransactionHistory.WITHDRAWAL, record.amountCents, null, record.timestamp);
+        lastSequence = record.sequence;
+    }
+    
+    void applyTransferIn(LedgerRecord record) {
+        balanceCents += record.amountCents;
+        addTransaction(TransactionHistory.TRANSFER_IN, record.amountCents, record.userId, record.timestamp);
+        lastSequence = record.recipientSequence();
+    }
+    
+    void applyTransferOut(LedgerRecord record) {
+        balanceCents -= record.amountCents;
+        addTransaction(TransactionHistory.TRANSFER_OUT, record.amountCents, record.counterparty, record.timestamp);
+        lastSequence = record.sequence;
+    }
+    
+    private void publish(LedgerRecord record) {
+        if (listener != null) {
+            listener.transactionRecorded(record);
+        }
+    }
+    
+    // Tells the listener the account changed; for changes applied directly, once per account
+    void applied() {
+        if (listener != null) {
+            listener.transactionApplied(this);
+        }
+    }
+    
+    // Records the balance after the change alongside it, so no text is built per transaction
+    private void addTransaction(byte type, long amountCents, String counterparty, long timestamp) {
+        history().add(timestamp, type, amountCents, balanceCents, counterparty);
+        lastActivity = timestamp;
+    }
+}
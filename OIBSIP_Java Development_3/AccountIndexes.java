@@ -0,0 +1,158 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Secondary indexes over the account store, for admin searches that would otherwise scan
+// every account: balance ranges, name and user ID prefixes and accounts inactive since a
+// given time. Balance and activity live in sorted skip lists and are re-keyed each time a
+// change is applied; names and IDs never change, so their sorted indexes are only written
+// when an account opens. A prefix is a contiguous range of such an index, which gives the
+// same lookups as a trie at a fraction of the memory.
+class AccountIndexes {
+    private static final String HIGHEST_USER_ID = "\uFFFF"; // Sorts after every real user ID
+    
+    // One index entry: the indexed value with the user ID as tie-breaker
+    private static final class Key implements Comparable<Key> {
+        final long value;
+        final String userId;
+        
+        Key(long value, String userId) {
+            this.value = value;
+            this.userId = userId;
+        }
+        
+        @Override
+        public int compareTo(Key other) {
+            int result = Long.compare(value, other.value);
+            return result != 0 ? result : userId.compareTo(other.userId);
+        }
+    }
+    
+    // A name or user ID entry
+    private static final class NameKey implements Comparable<NameKey> {
+        final String name; // Lower case, so prefix searches ignore case
+        final String userId;
+        
+        NameKey(String name, String userId) {
+            this.name = name;
+            this.userId = userId;
+        }
+        
+        @Override
+        public int compareTo(NameKey other) {
+            int result = name.compareTo(other.name);
+            return result != 0 ? result : userId.compareTo(other.userId);
+        }
+    }
+    
+    private final AccountStore accounts;
+    private final ConcurrentSkipListSet<Key> byBalance = new ConcurrentSkipListSet<>();
+    private final ConcurrentSkipListSet<Key> byActivity = new ConcurrentSkipListSet<>();
+    private final ConcurrentSkipListSet<NameKey> byName = new ConcurrentSkipListSet<>();
+    private final ConcurrentSkipListSet<NameKey> byUserId = new ConcurrentSkipListSet<>();
+    private final ConcurrentHashMap<String, Key[]> current = new ConcurrentHashMap<>(); // userId -> {balance, activity}
+    
+    // Builds the indexes from keys sorted up front; appending in order is far cheaper than
+    // inserting at random positions
+    AccountIndexes(AccountStore accounts) {
+        this.accounts = accounts;
+        Account[] all = accounts.asMap().values().toArray(new Account[0]);
+        Key[] balances = new Key[all.length];
+        Key[] activities = new Key[all.length];
+        NameKey[] names = new NameKey[all.length];
+        NameKey[] userIds = new NameKey[all.length];
+        for (int i = 0; i < all.length; i++) {
+            String userId = all[i].getUserId();
+            balances[i] = new Key(all[i].getBalanceCents(), userId);
+            activities[i] = new Key(all[i].getLastActivity(), userId);
+            names[i] = new NameKey(all[i].getName().toLowerCase(Locale.ROOT), userId);
+            userIds[i] = new NameKey(userId.toLowerCase(Locale.ROOT), userId);
+            current.put(userId, new Key[] {balances[i], activities[i]});
+        }
+        Arrays.sort(balances);
+        Arrays.sort(activities);
+        Arrays.sort(names);
+        Arrays.sort(userIds);
+        byBalance.addAll(Arrays.asList(balances));
+        byActivity.addAll(Arrays.asList(activities));
+        byName.addAll(Arrays.asList(names));
+        byUserId.addAll(Arrays.asList(userIds));
+    }
+    
+    void add(Account account) {
+        byName.add(new NameKey(account.getName().toLowerCase(Locale.ROOT), account.getUserId()));
+        byUserId.add(new NameKey(account.getUserId().toLowerCase(Locale.ROOT), account.getUserId()));
+        update(account);
+    }
+    
+    // Re-keys the account from its current balance and activity. Updates to one account are
+    // serialized by compute(), and each reads the values at the time it runs, so whichever
+    // runs last leaves the index matching the account.
+    void update(Account account) {
+        current.compute(account.getUserId(), (userId, old) -> {
+            long balance = account.getBalanceCents();
+            long activity = account.getLastActivity();
+            if (old != null && old[0].value == balance && old[1].value == activity) {
+                return old;
+            }
+            Key[] keys = {new Key(balance, userId), new Key(activity, userId)};
+            if (old != null) {
+                byBalance.remove(old[0]);
+                byActivity.remove(old[1]);
+            }
+            byBalance.add(keys[0]);
+            byActivity.add(keys[1]);
+            return keys;
+        });
+    }
+    
+    // Accounts with minCents <= balance <= maxCents, lowest balance first
+    ArrayList<Account> balanceBetween(long minCents, long maxCents, int offset, int limit) {
+        return page(byBalance.subSet(new Key(minCents, ""), true, new Key(maxCents, HIGHEST_USER_ID), true), offset, limit);
+    }
+    
+    // Accounts whose name starts with the prefix (ignoring case), in name order
+    ArrayList<Account> namePrefix(String prefix, int offset, int limit) {
+        return prefixPage(byName, prefix, offset, limit);
+    }
+    
+    // Accounts whose user ID starts with the prefix (ignoring case), in user ID order
+    ArrayList<Account> userIdPrefix(String prefix, int offset, int limit) {
+        return prefixPage(byUserId, prefix, offset, limit);
+    }
+    
+    private ArrayList<Account> prefixPage(NavigableSet<NameKey> index, String prefix, int offset, int limit) {
+        String lower = prefix.toLowerCase(Locale.ROOT);
+        ArrayList<Account> page = new ArrayList<>();
+        int skipped = 0;
+        for (NameKey key : index.tailSet(new NameKey(lower, ""))) {
+            if (!key.name.startsWith(lower) || page.size() >= limit) {
+                break;
+            }
+            Account account = accounts.get(key.userId);
+            if (account != null && skipped++ >= offset) {
+                page.add(account);
+            }
+        }
+        return page;
+    }
+    
+    // Accounts with no activity since the time, longest inactive first
+    ArrayList<Account> inactiveSince(long time, int offset, int limit) {
+        return page(byActivity.headSet(new Key(time, ""), false), offset, limit);
+    }
+    
+    private ArrayList<Account> page(NavigableSet<Key> range, int offset, int limit) {
+        ArrayList<Account> page = new ArrayList<>();
+        int skipped = 0;
+        for (Key key : range) {
+            if (page.size() >= limit) {
+                break;
+            }
+            Account account = accounts.get(key.userId);
+            if (account != null && skipped++ >= offset) {
+                page.add(account);
+            }
+        }
+        return page;
+    }
+}
@@ -0,0 +1,6 @@
+// Notified by ATMManager when accounts are opened or changed, from whichever thread did it
+interface AccountListener {
+    void accountAdded(Account account);
+    
+    void accountChanged(Account account);
+}
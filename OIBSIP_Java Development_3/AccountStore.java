@@ -0,0 +1,35 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Concurrent account store. Lookups and ID listings go through a ConcurrentHashMap and
+// never block; each Account carries its own lock, so terminals working on different
+// accounts never contend and only transfers take two locks (in a fixed global order).
+class AccountStore {
+    private final ConcurrentHashMap<String, Account> accounts = new ConcurrentHashMap<>();
+    
+    Account get(String userId) {
+        return accounts.get(userId);
+    }
+    
+    boolean containsKey(String userId) {
+        return accounts.containsKey(userId);
+    }
+    
+    // Adds the account unless its user ID is already taken
+    boolean putIfAbsent(Account account) {
+        return accounts.putIfAbsent(account.getUserId(), account) == null;
+    }
+    
+    ArrayList<String> userIds() {
+        return new ArrayList<>(accounts.keySet());
+    }
+    
+    int size() {
+        return accounts.size();
+    }
+    
+    // Live, weakly consistent view; iteration never throws ConcurrentModificationException
+    Map<String, Account> asMap() {
+        return accounts;
+    }
+}
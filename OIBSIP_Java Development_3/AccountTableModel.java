@@ -0,0 +1,231 @@
+import javax.swing.*;
+import javax.swing.table.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Admin account browser model. It keeps only references to the accounts, in display order,
+// and reads each cell when JTable asks for it, so only the visible rows are ever formatted.
+// Sorting and filtering rebuild that row index from the manager's account indexes: a filter
+// reads one name and one user ID prefix range, and sorting by user ID, name or balance walks
+// the index in order. Only the PIN and Transactions columns have no index and are sorted here.
+// Account changes repaint just their rows.
+class AccountTableModel extends AbstractTableModel implements AccountListener {
+    private static final long serialVersionUID = 1L;
+    static final String[] COLUMNS = {"#", "User ID", "PIN", "Name", "Balance", "Transactions"};
+    static final int USER_ID_COLUMN = 1;
+    static final int NAME_COLUMN = 3;
+    static final int BALANCE_COLUMN = 4;
+    
+    private final ATMManager atmManager;
+    private Account[] accounts = new Account[0]; // Every account, in store order
+    private Account[] rows = new Account[0]; // Filtered and sorted view shown by the table
+    private IdentityHashMap<Account, Integer> rowOf; // Built on the first change after the view is rebuilt
+    private int sortColumn = -1; // Store order until a column header is clicked
+    private boolean ascending = true;
+    private String filter = ""; // User ID or name prefix
+    
+    // Changes arrive on terminal threads and are applied on the EDT in one batch per event
+    private final Set<Account> pendingChanges = ConcurrentHashMap.newKeySet();
+    private final Queue<Account> pendingAdds = new ConcurrentLinkedQueue<>();
+    private final java.util.concurrent.atomic.AtomicBoolean flushScheduled = new java.util.concurrent.atomic.AtomicBoolean();
+    
+    AccountTableModel(ATMManager atmManager) {
+        this.atmManager = atmManager;
+        reload();
+    }
+    
+    // Takes a fresh copy of the account store and rebuilds the view
+    void reload() {
+        accounts = atmManager.getAllAccounts().values().toArray(new Account[0]);
+        rebuildRows();
+    }
+    
+    // Clicking the same column again reverses the order
+    void sortBy(int column) {
+        if (column == 0) {
+            return; // Row numbers follow the current order
+        }
+        ascending = column != sortColumn || !ascending;
+        sortColumn = column;
+        rebuildRows();
+    }
+    
+    // Keeps accounts whose user ID or name starts with the text, ignoring case
+    void setFilter(String text) {
+        filter = text.trim();
+        rebuildRows();
+    }
+    
+    int getTotalAccounts() {
+        return accounts.length;
+    }
+    
+    Account getAccountAt(int row) {
+        return rows[row];
+    }
+    
+    private void rebuildRows() {
+        ArrayList<Account> visible;
+        int indexOrder; // The column the rows are already ordered by, or -1
+        if (!filter.isEmpty()) {
+            visible = atmManager.findAccountsByNamePrefix(filter, 0, Integer.MAX_VALUE);
+            ArrayList<Account> byUserId = atmManager.findAccountsByUserIdPrefix(filter, 0, Integer.MAX_VALUE);
+            indexOrder = byUserId.isEmpty() ? NAME_COLUMN : visible.isEmpty() ? USER_ID_COLUMN : -1;
+            if (!byUserId.isEmpty()) {
+                Set<Account> byName = Collections.newSetFromMap(new IdentityHashMap<>());
+                byName.addAll(visible);
+                for (Account account : byUserId) {
+                    if (!byName.contains(account)) {
+                        visible.add(account);
+                    }
+                }
+            }
+        } else if (sortColumn == USER_ID_COLUMN) {
+            visible = atmManager.findAccountsByUserIdPrefix("", 0, Integer.MAX_VALUE);
+            indexOrder = USER_ID_COLUMN;
+        } else if (sortColumn == NAME_COLUMN) {
+            visible = atmManager.findAccountsByNamePrefix("", 0, Integer.MAX_VALUE);
+            indexOrder = NAME_COLUMN;
+        } else if (sortColumn == BALANCE_COLUMN) {
+            visible = atmManager.findAccountsByBalance(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, 0, Integer.MAX_VALUE);
+            indexOrder = BALANCE_COLUMN;
+        } else {
+            visible = new ArrayList<>(Arrays.asList(accounts));
+            indexOrder = -1;
+        }
+        if (sortColumn >= 0) {
+            if (sortColumn != indexOrder) {
+                visible.sort(comparator());
+            }
+            if (!ascending) {
+                Collections.reverse(visible);
+            }
+        }
+        rows = visible.toArray(new Account[0]);
+        rowOf = null;
+        fireTableDataChanged();
+    }
+    
+    private boolean matches(Account account) {
+        return filter.isEmpty() || startsWithIgnoreCase(account.getUserId()) || startsWithIgnoreCase(account.getName());
+    }
+    
+    private boolean startsWithIgnoreCase(String text) {
+        return text.regionMatches(true, 0, filter, 0, filter.length());
+    }
+    
+    private Comparator<Account> comparator() {
+        switch (sortColumn) {
+            case 2:
+                return Comparator.comparing(Account::getPin);
+            case NAME_COLUMN:
+                return Comparator.comparing(Account::getName, String.CASE_INSENSITIVE_ORDER);
+            case BALANCE_COLUMN:
+                return Comparator.comparingLong(Account::getBalanceCents);
+            case 5:
+                return Comparator.comparingInt(Account::getTransactionCount);
+            default:
+                return Comparator.comparing(Account::getUserId);
+        }
+    }
+    
+    @Override
+    public int getRowCount() {
+        return rows.length;
+    }
+    
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+    
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column] + (column == sortColumn ? (ascending ? " \u25B2" : " \u25BC") : "");
+    }
+    
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return column == 0 || column == 5 ? Integer.class : String.class;
+    }
+    
+    @Override
+    public Object getValueAt(int row, int column) {
+        Account account = rows[row];
+        switch (column) {
+            case 0:
+                return row + 1;
+            case USER_ID_COLUMN:
+                return account.getUserId();
+            case 2:
+                return account.getPin();
+            case NAME_COLUMN:
+                return account.getName();
+            case BALANCE_COLUMN:
+                return "$" + String.format("%.2f", account.getBalance());
+            default:
+                return account.getTransactionCount();
+        }
+    }
+    
+    @Override
+    public void accountAdded(Account account) {
+        pendingAdds.add(account);
+        scheduleFlush();
+    }
+    
+    @Override
+    public void accountChanged(Account account) {
+        pendingChanges.add(account);
+        scheduleFlush();
+    }
+    
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::flush);
+        }
+    }
+    
+    // New accounts are appended to the view (a re-sort puts them in place);
+    // changed accounts only repaint their own row and keep their position
+    private void flush() {
+        flushScheduled.set(false);
+        Account added;
+        while ((added = pendingAdds.poll()) != null) {
+            accounts = Arrays.copyOf(accounts, accounts.length + 1);
+            accounts[accounts.length - 1] = added;
+            // The indexes list an account before it is announced, so a view rebuilt in between has it already
+            if (matches(added) && !rowIndex().containsKey(added)) {
+                rows = Arrays.copyOf(rows, rows.length + 1);
+                rows[rows.length - 1] = added;
+                rowOf.put(added, rows.length - 1);
+                fireTableRowsInserted(rows.length - 1, rows.length - 1);
+            }
+        }
+        // Drained first: terminals keep adding, and one that arrives later schedules another flush
+        ArrayList<Account> changed = new ArrayList<>();
+        for (Iterator<Account> it = pendingChanges.iterator(); it.hasNext(); ) {
+            changed.add(it.next());
+            it.remove();
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+        for (Account account : changed) {
+            Integer row = rowIndex().get(account);
+            if (row != null) {
+                fireTableRowsUpdated(row, row);
+            }
+        }
+    }
+    
+    private IdentityHashMap<Account, Integer> rowIndex() {
+        if (rowOf == null) {
+            rowOf = new IdentityHashMap<>(rows.length * 2);
+            for (int i = 0; i < rows.length; i++) {
+                rowOf.put(rows[i], i);
+            }
+        }
+        return rowOf;
+    }
+}
@@ -0,0 +1,679 @@
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Tamper-evident audit log, atm_data.audit: every ledger record once it is durable, and the SHA-256
+// digest of every snapshot written, hashed into one chain (each link covers the previous one).
+// Every 1,024 entries, and whenever a snapshot is written, the entries since the last block are
+// closed into a block: its RFC 6962 Merkle root, the chain head, and the root of a Merkle tree over
+// every block so far. A transaction's inclusion proof is then a path inside its block plus a path
+// between blocks, O(log n) hashes in all. An auditor keeps a Checkpoint - the chain head and the
+// tree's right-hand frontier - so the next audit hashes only what was added since.
+// Frames: [E][length][payload] per entry, [B][index][count][firstTime][lastTime][root][chain][treeRoot] per block.
+class AuditLog implements Closeable {
+    static final int BLOCK_SIZE = 1024;
+    static final byte RECORD = 1;   // Payload: shard, shard count, the ledger record as encoded
+    static final byte SNAPSHOT = 2; // Payload: shard, ledger sequence, time, file name, SHA-256 of the file
+    static final byte FINDING = 3;  // A snapshot that failed its check at startup; as SNAPSHOT, then what was found
+    private static final byte ENTRY_FRAME = 'E';
+    private static final byte BLOCK_FRAME = 'B';
+    private static final int HASH_BYTES = 32;
+    private static final int BLOCK_FRAME_BYTES = 1 + 8 + 4 + 8 + 8 + 3 * HASH_BYTES;
+    // A crash can only tear the last buffered write; anything longer that does not parse is damage
+    private static final int MAX_TORN_BYTES = 2 << 16;
+    
+    // A closed block as its frame records it
+    static final class Block {
+        final long index;
+        final long position; // File offset of its first entry
+        final int count;
+        final long firstTime;
+        final long lastTime;
+        final byte[] root;
+        final byte[] chain;
+        final byte[] treeRoot;
+        final long end; // File offset just past its frame
+        
+        Block(long index, long position, int count, long firstTime, long lastTime, byte[] root, byte[] chain, byte[] treeRoot, long end) {
+            this.index = index;
+            this.position = position;
+            this.count = count;
+            this.firstTime = firstTime;
+            this.lastTime = lastTime;
+            this.root = root;
+            this.chain = chain;
+            this.treeRoot = treeRoot;
+            this.end = end;
+        }
+    }
+    
+    // The last SNAPSHOT entry for a shard's snapshot file, and the one before it
+    static final class LoggedSnapshot {
+        final long sequence;
+        final byte[] digest;
+        final LoggedSnapshot previous;
+        
+        LoggedSnapshot(long sequence, byte[] digest, LoggedSnapshot previous) {
+            this.sequence = sequence;
+            this.digest = digest;
+            this.previous = previous;
+        }
+        
+        // A snapshot is logged before it replaces the file, so after a crash in between the
+        // file still holds the one before
+        boolean matches(long sequence, byte[] digest) {
+            return this.sequence == sequence && Arrays.equals(this.digest, digest)
+                    || previous != null && previous.sequence == sequence && Arrays.equals(previous.digest, digest);
+        }
+    }
+    
+    // Right-hand edge of an append-only Merkle tree: the roots of its perfect subtrees, largest
+    // first. Enough to add leaves and compute the root without the leaves themselves.
+    static final class Frontier {
+        final ArrayList<byte[]> hashes = new ArrayList<>();
+        final ArrayList<Integer> heights = new ArrayList<>();
+        
+        void add(byte[] leaf) {
+            byte[] hash = leaf;
+            int height = 0;
+            while (!heights.isEmpty() && heights.get(heights.size() - 1) == height) {
+                hash = nodeHash(hashes.remove(hashes.size() - 1), hash);
+                heights.remove(heights.size() - 1);
+                height++;
+            }
+            hashes.add(hash);
+            heights.add(height);
+        }
+        
+        // The same root as RFC 6962's, which splits at the largest power of two
+        byte[] root() {
+            if (hashes.isEmpty()) {
+                return sha256().digest();
+            }
+            byte[] root = hashes.get(hashes.size() - 1);
+            for (int i = hashes.size() - 2; i >= 0; i--) {
+                root = nodeHash(hashes.get(i), root);
+            }
+            return root;
+        }
+        
+        Frontier copy() {
+            Frontier copy = new Frontier();
+            copy.hashes.addAll(hashes);
+            copy.heights.addAll(heights);
+            return copy;
+        }
+    }
+    
+    // How far an auditor has checked the log: the position just past the last block it accepted,
+    // with the chain head and block tree frontier there. Kept by the auditor between audits.
+    static final class Checkpoint {
+        private static final int MAGIC = 0x41544D43; // "ATMC"
+        
+        final long position;
+        final long blockCount;
+        final long entryCount;
+        final byte[] chain;
+        final Frontier frontier;
+        
+        Checkpoint(long position, long blockCount, long entryCount, byte[] chain, Frontier frontier) {
+            this.position = position;
+            this.blockCount = blockCount;
+            this.entryCount = entryCount;
+            this.chain = chain;
+            this.frontier = frontier;
+        }
+        
+        // Nothing checked yet
+        static Checkpoint start() {
+            return new Checkpoint(0, 0, 0, new byte[HASH_BYTES], new Frontier());
+        }
+        
+        byte[] root() {
+            return frontier.root();
+        }
+        
+        static Checkpoint read(File file) throws IOException {
+            if (!file.exists()) {
+                return start();
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException(file.getName() + " is not an audit checkpoint");
+                }
+                long position = in.readLong();
+                long blockCount = in.readLong();
+                long entryCount = in.readLong();
+                byte[] chain = readHash(in);
+                Frontier frontier = new Frontier();
+                for (int peaks = in.readInt(); peaks > 0; peaks--) {
+                    frontier.heights.add(in.readInt());
+                    frontier.hashes.add(readHash(in));
+                }
+                return new Checkpoint(position, blockCount, entryCount, chain, frontier);
+            }
+        }
+        
+        void write(File file) throws IOException {
+            File tempFile = new File(file.getPath() + ".tmp");
+            try (FileOutputStream stream = new FileOutputStream(tempFile)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+                out.writeInt(MAGIC);
+                out.writeLong(position);
+                out.writeLong(blockCount);
+                out.writeLong(entryCount);
+                out.write(chain);
+                out.writeInt(frontier.hashes.size());
+                for (int i = 0; i < frontier.hashes.size(); i++) {
+                    out.writeInt(frontier.heights.get(i));
+                    out.write(frontier.hashes.get(i));
+                }
+                out.flush();
+                stream.getChannel().force(true);
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+    
+    private final File file;
+    private final boolean startedEmpty;
+    private final FileChannel channel;
+    private final DataOutputStream out;
+    private final ArrayList<Block> blocks = new ArrayList<>();
+    private final Frontier frontier = new Frontier();
+    private final ArrayList<byte[]> openLeaves = new ArrayList<>(); // Entries not yet closed into a block
+    private long openPosition;
+    private long openFirstTime;
+    private long openLastTime;
+    private byte[] chain = new byte[HASH_BYTES];
+    private long size;
+    private final HashMap<Integer, Long> lastSequences = new HashMap<>(); // Per shard index
+    private final HashMap<String, LoggedSnapshot> snapshots = new HashMap<>(); // Latest per snapshotKey
+    
+    // Reads the whole log once to restore the chain head, the block tree and the open block. A
+    // frame torn by a crash is cut off: its entries were durable in the ledger, and the ledger
+    // tail is appended again on replay. Damage further back is refused rather than cut off.
+    AuditLog(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long length = channel.size();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+        long position = 0;
+        try {
+            while (position < length) {
+                byte frame = in.readByte();
+                if (frame == ENTRY_FRAME) {
+                    int payloadLength = in.readInt();
+                    if (payloadLength <= 0 || position + 5 + payloadLength > length) {
+                        break;
+                    }
+                    byte[] payload = new byte[payloadLength];
+                    in.readFully(payload);
+                    added(payload, position);
+                    position += 5 + payloadLength;
+                } else if (frame == BLOCK_FRAME && position + BLOCK_FRAME_BYTES <= length) {
+                    long index = in.readLong();
+                    int count = in.readInt();
+                    long firstTime = in.readLong();
+                    long lastTime = in.readLong();
+                    byte[] root = readHash(in);
+                    byte[] blockChain = readHash(in);
+                    byte[] treeRoot = readHash(in);
+                    position += BLOCK_FRAME_BYTES;
+                    frontier.add(blockLeaf(root, blockChain));
+                    blocks.add(new Block(index, openPosition, count, firstTime, lastTime, root, blockChain, treeRoot, position));
+                    openLeaves.clear();
+                } else {
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            // Torn frame at the end
+        }
+        if (length - position > MAX_TORN_BYTES) {
+            channel.close();
+            throw new IOException(file.getName() + " is damaged at byte " + position + "; it is left as it is for inspection");
+        }
+        if (position < length) {
+            System.err.println("Cutting off an incomplete entry at the end of " + file.getName());
+            channel.truncate(position);
+        }
+        size = position;
+        startedEmpty = position == 0;
+        channel.position(position);
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+    }
+    
+    // The frames of a batch one shard's ledger just made durable: [length][record][crc32] each
+    synchronized void appendRecords(int shard, int shardCount, byte[] frames) {
+        ByteBuffer buffer = ByteBuffer.wrap(frames);
+        while (buffer.remaining() >= 4) {
+            int length = buffer.getInt();
+            append(recordPayload(shard, shardCount, frames, buffer.position(), length));
+            buffer.position(buffer.position() + length + 4);
+        }
+    }
+    
+    synchronized void appendRecord(int shard, int shardCount, LedgerRecord record) {
+        byte[] encoded = record.encode();
+        append(recordPayload(shard, shardCount, encoded, 0, encoded.length));
+    }
+    
+    private static byte[] recordPayload(int shard, int shardCount, byte[] record, int offset, int length) {
+        ByteBuffer payload = ByteBuffer.allocate(9 + length);
+        payload.put(RECORD).putInt(shard).putInt(shardCount).put(record, offset, length);
+        return payload.array();
+    }
+    
+    // Records the digest of a snapshot written but not yet in place under its name, then closes
+    // the block and forces the log; only then may it replace the file
+    void appendSnapshot(int shard, long sequence, File written, String name) throws IOException {
+        byte[] digest = digest(written); // Outside the lock, so flushes are not held up
+        appendForced(snapshotPayload(SNAPSHOT, shard, sequence, name, digest, null));
+    }
+    
+    // Records a snapshot that failed its check at startup, so the finding outlives the run
+    void appendFinding(int shard, long sequence, String name, byte[] digest, String finding) throws IOException {
+        appendForced(snapshotPayload(FINDING, shard, sequence, name, digest, finding));
+    }
+    
+    private synchronized void appendForced(byte[] payload) throws IOException {
+        append(payload);
+        checkpoint();
+    }
+    
+    private static byte[] snapshotPayload(byte kind, int shard, long sequence, String name, byte[] digest, String finding) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeByte(kind);
+        payload.writeInt(shard);
+        payload.writeLong(sequence);
+        payload.writeLong(System.currentTimeMillis());
+        payload.writeUTF(name);
+        payload.write(digest);
+        if (finding != null) {
+            payload.writeUTF(finding);
+        }
+        return bytes.toByteArray();
+    }
+    
+    private void append(byte[] payload) {
+        try {
+            out.writeByte(ENTRY_FRAME);
+            out.writeInt(payload.length);
+            out.write(payload);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error writing audit log", e);
+        }
+        added(payload, size);
+        size += 5 + payload.length;
+        if (openLeaves.size() >= BLOCK_SIZE) {
+            closeBlock();
+        }
+    }
+    
+    // Folds an entry into the chain and the open block, and notes what it records
+    private void added(byte[] payload, long position) {
+        byte[] leaf = leafHash(payload);
+        chain = chainHash(chain, leaf);
+        if (openLeaves.isEmpty()) {
+            openPosition = position;
+            openFirstTime = Long.MAX_VALUE;
+            openLastTime = Long.MIN_VALUE;
+        }
+        openLeaves.add(leaf);
+        long time = entryTime(payload);
+        openFirstTime = Math.min(openFirstTime, time);
+        openLastTime = Math.max(openLastTime, time);
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            byte kind = in.readByte();
+            int shard = in.readInt();
+            if (kind == RECORD) {
+                in.readInt();
+                lastSequences.merge(shard, in.readLong(), Math::max);
+            } else if (kind == SNAPSHOT) {
+                long sequence = in.readLong();
+                in.readLong();
+                String key = snapshotKey(in.readUTF());
+                LoggedSnapshot last = snapshots.get(key);
+                snapshots.put(key, new LoggedSnapshot(sequence, readHash(in),
+                        last != null ? new LoggedSnapshot(last.sequence, last.digest, null) : null));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // A byte array never throws
+        }
+    }
+    
+    // Closes the open block, if it has any entries
+    private void closeBlock() {
+        if (openLeaves.isEmpty()) {
+            return;
+        }
+        byte[] root = merkleRoot(openLeaves, 0, openLeaves.size());
+        frontier.add(blockLeaf(root, chain));
+        byte[] treeRoot = frontier.root();
+        try {
+            out.writeByte(BLOCK_FRAME);
+            out.writeLong(blocks.size());
+            out.writeInt(openLeaves.size());
+            out.writeLong(openFirstTime);
+            out.writeLong(openLastTime);
+            out.write(root);
+            out.write(chain);
+            out.write(treeRoot);
+            out.flush(); // Readers go to the file for closed blocks
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error writing audit log", e);
+        }
+        size += BLOCK_FRAME_BYTES;
+        blocks.add(new Block(blocks.size(), openPosition, openLeaves.size(), openFirstTime, openLastTime, root, chain, treeRoot, size));
+        openLeaves.clear();
+    }
+    
+    // Closes the open block and makes everything so far durable
+    synchronized void checkpoint() throws IOException {
+        closeBlock();
+        out.flush();
+        channel.force(false);
+    }
+    
+    // Writes buffered entries to the file, so a copy of it is complete
+    synchronized void flush() throws IOException {
+        out.flush();
+    }
+    
+    // Highest ledger sequence logged for the shard, 0 if none
+    synchronized long lastSequence(int shard) {
+        return lastSequences.getOrDefault(shard, 0L);
+    }
+    
+    // The last snapshot logged for the shard this file belongs to, in either format, or null if none was
+    synchronized LoggedSnapshot loggedSnapshot(String fileName) {
+        return snapshots.get(snapshotKey(fileName));
+    }
+    
+    // Whether the log had no entries when opened, as when it is first turned on for existing data
+    boolean startedEmpty() {
+        return startedEmpty;
+    }
+    
+    // atm_data.json and atm_data.bin are the same shard's snapshot in two formats
+    private static String snapshotKey(String fileName) {
+        return fileName.replaceFirst("\\.(json|bin)$", "");
+    }
+    
+    // Checks every entry added after the checkpoint: each one's link in the chain, each block's
+    // Merkle root and chain head, and the block tree's root after each one. The open block is
+    // closed first, so the newest transactions are covered too. Hashes only the new entries;
+    // problems go to the list, and the returned checkpoint is the last good block.
+    Checkpoint verify(Checkpoint from, java.util.List<String> problems) throws IOException {
+        long end;
+        synchronized (this) {
+            closeBlock();
+            end = blocks.isEmpty() ? 0 : blocks.get(blocks.size() - 1).end;
+        }
+        if (from.position > end) {
+            problems.add("The log is shorter than at the last audit: it was truncated or replaced");
+            return from;
+        }
+        Checkpoint good = from;
+        byte[] linked = from.chain;
+        Frontier tree = from.frontier.copy();
+        long entries = from.entryCount;
+        ArrayList<byte[]> leaves = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            in.skipNBytes(from.position);
+            long position = from.position;
+            while (position < end) {
+                byte frame = in.readByte();
+                if (frame == ENTRY_FRAME) {
+                    byte[] payload = new byte[in.readInt()];
+                    in.readFully(payload);
+                    position += 5 + payload.length;
+                    byte[] leaf = leafHash(payload);
+                    linked = chainHash(linked, leaf);
+                    leaves.add(leaf);
+                    if (payload[0] == FINDING) {
+                        problems.add("Logged at startup: " + finding(payload));
+                    }
+                    continue;
+                }
+                if (frame != BLOCK_FRAME) {
+                    problems.add("Unreadable frame at byte " + position);
+                    break;
+                }
+                long index = in.readLong();
+                int count = in.readInt();
+                in.readLong();
+                in.readLong();
+                byte[] root = readHash(in);
+                byte[] blockChain = readHash(in);
+                byte[] treeRoot = readHash(in);
+                position += BLOCK_FRAME_BYTES;
+                String block = "Block " + index;
+                if (index != good.blockCount || count != leaves.size()) {
+                    problems.add(block + ": expected block " + good.blockCount + " with " + leaves.size() + " entries");
+                    break;
+                }
+                if (!Arrays.equals(root, merkleRoot(leaves, 0, leaves.size()))) {
+                    problems.add(block + ": an entry was changed, added or removed (Merkle root does not match)");
+                    break;
+                }
+                if (!Arrays.equals(blockChain, linked)) {
+                    problems.add(block + ": the hash chain is broken (history before it was rewritten)");
+                    break;
+                }
+                tree.add(blockLeaf(root, blockChain));
+                if (!Arrays.equals(treeRoot, tree.root())) {
+                    problems.add(block + ": the block tree root does not match");
+                    break;
+                }
+                entries += count;
+                leaves.clear();
+                good = new Checkpoint(position, index + 1, entries, linked, tree.copy());
+            }
+        } catch (EOFException e) {
+            problems.add("The log ends inside a block it claims to have");
+        }
+        return good;
+    }
+    
+    // Inclusion proof for the first entry, in a block covering the time, that the filter accepts;
+    // null if there is none. The open block is closed first, so every entry can be proven.
+    AuditProof prove(long time, java.util.function.Predicate<LedgerRecord> filter) throws IOException {
+        ArrayList<Block> candidates = new ArrayList<>();
+        ArrayList<byte[]> blockLeaves = new ArrayList<>();
+        synchronized (this) {
+            closeBlock();
+            for (Block block : blocks) {
+                blockLeaves.add(blockLeaf(block.root, block.chain));
+                if (block.firstTime <= time && time <= block.lastTime) {
+                    candidates.add(block);
+                }
+            }
+        }
+        for (Block block : candidates) {
+            ArrayList<byte[]> leaves = new ArrayList<>(block.count);
+            int found = -1;
+            byte[] match = null;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                in.skipNBytes(block.position);
+                for (int i = 0; i < block.count; i++) {
+                    in.readByte();
+                    byte[] payload = new byte[in.readInt()];
+                    in.readFully(payload);
+                    leaves.add(leafHash(payload));
+                    if (found < 0 && payload[0] == RECORD) {
+                        LedgerRecord record = LedgerRecord.decode(Arrays.copyOfRange(payload, 9, payload.length));
+                        if (record.timestamp == time && filter.test(record)) {
+                            found = i;
+                            match = payload;
+                        }
+                    }
+                }
+            }
+            if (found >= 0) {
+                ArrayList<byte[]> entryPath = new ArrayList<>();
+                path(leaves, found, 0, leaves.size(), entryPath);
+                ArrayList<byte[]> blockPath = new ArrayList<>();
+                path(blockLeaves, (int) block.index, 0, blockLeaves.size(), blockPath);
+                return new AuditProof(match, found, block.count, entryPath, block.chain, block.index,
+                        blockLeaves.size(), blockPath, merkleRoot(blockLeaves, 0, blockLeaves.size()));
+            }
+        }
+        return null;
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        checkpoint();
+        channel.close();
+    }
+    
+    // What a FINDING entry says was found
+    private static String finding(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        in.skipNBytes(1 + 4 + 8 + 8);
+        in.readUTF();
+        readHash(in);
+        return in.readUTF();
+    }
+    
+    // Time of an entry, for the block's time range
+    private static long entryTime(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        // RECORD: kind, shard, shard count, then the record's sequence and timestamp
+        // SNAPSHOT and FINDING: kind, shard, sequence, then the time
+        return payload[0] == RECORD ? buffer.getLong(1 + 4 + 4 + 8) : buffer.getLong(1 + 4 + 8);
+    }
+    
+    // One digest per thread, as looking one up costs more than hashing a record; each use ends
+    // with digest(), which resets it
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every Java platform must provide SHA-256
+        }
+    });
+    
+    static MessageDigest sha256() {
+        return SHA_256.get();
+    }
+    
+    static byte[] digest(File file) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[1 << 16];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest.digest();
+    }
+    
+    // Leaves and inner nodes are hashed with different prefixes, as in RFC 6962, so neither can
+    // pass for the other; chain links use a third
+    static byte[] leafHash(byte[] payload) {
+        MessageDigest digest = sha256();
+        digest.update((byte) 0);
+        return digest.digest(payload);
+    }
+    
+    static byte[] nodeHash(byte[] left, byte[] right) {
+        MessageDigest digest = sha256();
+        digest.update((byte) 1);
+        digest.update(left);
+        return digest.digest(right);
+    }
+    
+    static byte[] chainHash(byte[] previous, byte[] leaf) {
+        MessageDigest digest = sha256();
+        digest.update((byte) 2);
+        digest.update(previous);
+        return digest.digest(leaf);
+    }
+    
+    // A block's leaf in the tree over blocks commits to its entries and to the chain up to it
+    static byte[] blockLeaf(byte[] root, byte[] chain) {
+        MessageDigest digest = sha256();
+        digest.update((byte) 0);
+        digest.update(root);
+        return digest.digest(chain);
+    }
+    
+    // RFC 6962 Merkle tree hash of leaves [from, to), which must not be empty
+    static byte[] merkleRoot(java.util.List<byte[]> leaves, int from, int to) {
+        if (to - from == 1) {
+            return leaves.get(from);
+        }
+        int split = from + Integer.highestOneBit(to - from - 1);
+        return nodeHash(merkleRoot(leaves, from, split), merkleRoot(leaves, split, to));
+    }
+    
+    // RFC 6962 audit path for the leaf at index among [from, to), nearest sibling first
+    static void path(java.util.List<byte[]> leaves, int index, int from, int to, java.util.List<byte[]> path) {
+        if (to - from == 1) {
+            return;
+        }
+        int split = from + Integer.highestOneBit(to - from - 1);
+        if (index < split) {
+            path(leaves, index, from, split, path);
+            path.add(merkleRoot(leaves, split, to));
+        } else {
+            path(leaves, index, split, to, path);
+            path.add(merkleRoot(leaves, from, split));
+        }
+    }
+    
+    // The root an audit path leads to from the leaf at index in a tree of size leaves (RFC 9162,
+    // 2.1.3.2), or null if the path does not fit the tree
+    static byte[] rootFromPath(byte[] leaf, long index, long size, java.util.List<byte[]> path) {
+        if (index < 0 || index >= size) {
+            return null;
+        }
+        long fn = index;
+        long sn = size - 1;
+        byte[] hash = leaf;
+        for (byte[] sibling : path) {
+            if (sn == 0) {
+                return null;
+            }
+            if ((fn & 1) == 1 || fn == sn) {
+                hash = nodeHash(sibling, hash);
+                while ((fn & 1) == 0 && fn != 0) {
+                    fn >>= 1;
+                    sn >>= 1;
+                }
+            } else {
+                hash = nodeHash(hash, sibling);
+            }
+            fn >>= 1;
+            sn >>= 1;
+        }
+        return sn == 0 ? hash : null;
+    }
+    
+    private static byte[] readHash(DataInputStream in) throws IOException {
+        byte[] hash = new byte[HASH_BYTES];
+        in.readFully(hash);
+        return hash;
+    }
+    
+    static String hex(byte[] hash) {
+        StringBuilder text = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            text.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,54 @@
+import java.util.*;
+import java.io.*;
+
+// Proof that one audited transaction is in the log: its entry, the path to its block's Merkle
+// root, and the path from that block to the root of the tree over all blocks. Anyone holding a
+// published root can check it with verify(), without the log.
+class AuditProof {
+    final byte[] entry;
+    final int entryIndex;
+    final int blockSize;
+    final java.util.List<byte[]> entryPath;
+    final byte[] chain;
+    final long blockIndex;
+    final long blockCount;
+    final java.util.List<byte[]> blockPath;
+    final byte[] root;
+    
+    AuditProof(byte[] entry, int entryIndex, int blockSize, java.util.List<byte[]> entryPath, byte[] chain,
+            long blockIndex, long blockCount, java.util.List<byte[]> blockPath, byte[] root) {
+        this.entry = entry;
+        this.entryIndex = entryIndex;
+        this.blockSize = blockSize;
+        this.entryPath = entryPath;
+        this.chain = chain;
+        this.blockIndex = blockIndex;
+        this.blockCount = blockCount;
+        this.blockPath = blockPath;
+        this.root = root;
+    }
+    
+    // The ledger record the proof is about
+    LedgerRecord getRecord() throws IOException {
+        return LedgerRecord.decode(Arrays.copyOfRange(entry, 9, entry.length));
+    }
+    
+    // Whether the entry leads to the given root of the block tree
+    boolean verify(byte[] expectedRoot) {
+        byte[] blockRoot = AuditLog.rootFromPath(AuditLog.leafHash(entry), entryIndex, blockSize, entryPath);
+        if (blockRoot == null) {
+            return false;
+        }
+        byte[] treeRoot = AuditLog.rootFromPath(AuditLog.blockLeaf(blockRoot, chain), blockIndex, blockCount, blockPath);
+        return treeRoot != null && Arrays.equals(treeRoot, expectedRoot);
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("Entry %d of %d in block %d of %d; %d + %d hashes%n",
+                entryIndex, blockSize, blockIndex, blockCount, entryPath.size(), blockPath.size()));
+        text.append("Root: ").append(AuditLog.hex(root)).append(String.format("%n"));
+        return text.toString();
+    }
+}
@@ -0,0 +1,40 @@
+
+// What an audit found: how much new log it checked, the block tree root it reached, and any
+// sign of tampering in the log or in the snapshots loaded at startup
+class AuditReport {
+    final long blocksChecked;
+    final long entriesChecked;
+    final long elapsedNanos;
+    final byte[] root;
+    final long blockCount;
+    final java.util.List<String> problems;
+    
+    AuditReport(long blocksChecked, long entriesChecked, long elapsedNanos, byte[] root, long blockCount, java.util.List<String> problems) {
+        this.blocksChecked = blocksChecked;
+        this.entriesChecked = entriesChecked;
+        this.elapsedNanos = elapsedNanos;
+        this.root = root;
+        this.blockCount = blockCount;
+        this.problems = problems;
+    }
+    
+    boolean isClean() {
+        return problems.isEmpty();
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("Audited %d new entries in %d blocks in %.0f ms%n", entriesChecked, blocksChecked, elapsedNanos / 1e6));
+        text.append(String.format("Root over %d blocks: %s%n", blockCount, AuditLog.hex(root)));
+        if (problems.isEmpty()) {
+            text.append("No tampering found.");
+        } else {
+            text.append(problems.size()).append(problems.size() == 1 ? " problem:" : " problems:");
+            for (String problem : problems) {
+                text.append(String.format("%n  ")).append(problem);
+            }
+        }
+        return text.toString();
+    }
+}
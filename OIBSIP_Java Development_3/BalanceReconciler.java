@@ -0,0 +1,259 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Verifies the whole ledger against itself while terminals keep running: every account's history
+// must be an unbroken running balance ending at its current balance, and every transfer must
+// appear once as TRANSFER_OUT in the sender's history and once as TRANSFER_IN in the recipient's.
+// Accounts are checked in parallel on the fork-join pool. Transfer pairing folds each transfer
+// into a 64-bit fingerprint sum per bucket of account pairs - outgoing entries add, incoming ones
+// subtract - so a consistent ledger cancels to zero without holding its transfers in memory.
+// Only buckets that do not cancel are scanned a second time to name the unmatched entries.
+class BalanceReconciler {
+    private static final int BUCKET_BITS = 12;
+    private static final int BUCKETS = 1 << BUCKET_BITS;
+    
+    private final Map<String, Account> accounts;
+    
+    BalanceReconciler(Map<String, Account> accounts) {
+        this.accounts = accounts;
+    }
+    
+    ReconciliationReport run() {
+        long started = System.nanoTime();
+        // A transfer is applied to both accounts under both locks, and each position is read under
+        // its account's lock once any transfer between shards in doubt on it has settled, so every
+        // transfer stamped before this instant is in both positions.
+        // Later ones may have reached only one side yet; they are balance-checked but not paired.
+        long cutoff = System.currentTimeMillis();
+        Account[] all = accounts.values().toArray(new Account[0]);
+        Account.Position[] positions = new Account.Position[all.length];
+        int leafSize = Math.max(64, all.length / (ForkJoinPool.getCommonPoolParallelism() * 8));
+        Partial result = ForkJoinPool.commonPool().invoke(new CheckTask(all, positions, 0, all.length, cutoff, leafSize));
+        
+        ReconciliationReport report = result.report;
+        report.cutoff = cutoff;
+        if (result.fingerprints != null) {
+            boolean[] unbalanced = new boolean[BUCKETS];
+            boolean any = false;
+            for (int b = 0; b < BUCKETS; b++) {
+                unbalanced[b] = result.fingerprints[b] != 0 || result.counts[b] != 0;
+                any |= unbalanced[b];
+            }
+            if (any) {
+                findUnmatched(positions, cutoff, unbalanced, report);
+            }
+        }
+        report.elapsedNanos = System.nanoTime() - started;
+        return report;
+    }
+    
+    // Per-task results, merged up the fork-join tree
+    private static final class Partial {
+        final ReconciliationReport report = new ReconciliationReport();
+        long[] fingerprints; // Allocated on the first transfer
+        long[] counts;
+        
+        void addTransfer(int bucket, long fingerprint, int direction) {
+            if (fingerprints == null) {
+                fingerprints = new long[BUCKETS];
+                counts = new long[BUCKETS];
+            }
+            fingerprints[bucket] += direction * fingerprint;
+            counts[bucket] += direction;
+        }
+        
+        Partial merge(Partial other) {
+            report.merge(other.report);
+            if (fingerprints == null) {
+                fingerprints = other.fingerprints;
+                counts = other.counts;
+            } else if (other.fingerprints != null) {
+                for (int b = 0; b < BUCKETS; b++) {
+                    fingerprints[b] += other.fingerprints[b];
+                    counts[b] += other.counts[b];
+                }
+            }
+            return this;
+        }
+    }
+    
+    private final class CheckTask extends RecursiveTask<Partial> {
+        private static final long serialVersionUID = 1L;
+        private final Account[] all;
+        private final Account.Position[] positions;
+        private final int from;
+        private final int to;
+        private final long cutoff;
+        private final int leafSize;
+        
+        CheckTask(Account[] all, Account.Position[] positions, int from, int to, long cutoff, int leafSize) {
+            this.all = all;
+            this.positions = positions;
+            this.from = from;
+            this.to = to;
+            this.cutoff = cutoff;
+            this.leafSize = leafSize;
+        }
+        
+        @Override
+        protected Partial compute() {
+            if (to - from > leafSize) {
+                int middle = (from + to) >>> 1;
+                CheckTask left = new CheckTask(all, positions, from, middle, cutoff, leafSize);
+                left.fork();
+                Partial right = new CheckTask(all, positions, middle, to, cutoff, leafSize).compute();
+                return left.join().merge(right);
+            }
+            Partial partial = new Partial();
+            for (int i = from; i < to; i++) {
+                positions[i] = all[i].position();
+                check(all[i].getUserId(), positions[i], partial);
+            }
+            return partial;
+        }
+        
+        private void check(String userId, Account.Position position, Partial partial) {
+            ReconciliationReport report = partial.report;
+            TransactionHistory history = position.history;
+            int size = position.size;
+            report.accounts++;
+            report.entries += size;
+            report.totalBalanceCents += position.balanceCents;
+            long running = 0;
+            for (int i = 0; i < size; i++) {
+                byte type = history.getType(i);
+                long amount = history.getAmountCents(i);
+                switch (type) {
+                    case TransactionHistory.NOTE:
+                        continue; // Legacy text without amounts
+                    case TransactionHistory.CREATED:
+                        if (i > 0 && history.getType(i - 1) != TransactionHistory.NOTE) {
+                            report.add(ReconciliationReport.Kind.MISPLACED_CREATION, userId, i, 0, amount);
+                        }
+                        running = amount;
+                        break;
+                    case TransactionHistory.CARRIED_FORWARD:
+                        // Its amount counts archived entries; the balance they left is taken as given
+                        if (i > 0) {
+                            report.add(ReconciliationReport.Kind.MISPLACED_CREATION, userId, i, 0, amount);
+                        }
+                        running = history.getBalanceCents(i);
+                        continue;
+                    case TransactionHistory.DEPOSIT:
+                    case TransactionHistory.TRANSFER_IN:
+                        running += amount;
+                        break;
+                    default:
+                        running -= amount;
+                }
+                if (amount < 0 || (amount == 0 && type != TransactionHistory.CREATED)) {
+                    report.add(ReconciliationReport.Kind.INVALID_AMOUNT, userId, i, 0, amount);
+                }
+                long recorded = history.getBalanceCents(i);
+                if (recorded != running) {
+                    report.add(ReconciliationReport.Kind.BROKEN_RUNNING_BALANCE, userId, i, running, recorded);
+                    running = recorded; // Carry on from what was recorded, so one error is reported once
+                }
+                if (type == TransactionHistory.TRANSFER_OUT || type == TransactionHistory.TRANSFER_IN) {
+                    pair(userId, history, i, type, amount, partial);
+                }
+            }
+            if (running != position.balanceCents) {
+                report.add(ReconciliationReport.Kind.BALANCE_NOT_EXPLAINED, userId, -1, running, position.balanceCents);
+            }
+        }
+        
+        private void pair(String userId, TransactionHistory history, int i, byte type, long amount, Partial partial) {
+            ReconciliationReport report = partial.report;
+            long time = history.getTime(i);
+            if (time >= cutoff) {
+                report.transfersAfterCutoff++;
+                return;
+            }
+            String counterparty = history.getCounterparty(i);
+            String legacyName = TransactionHistory.legacyName(counterparty);
+            if (legacyName != null) {
+                // Imported from the old text format with a name that matched no single account
+                report.add(ReconciliationReport.Kind.LEGACY_UNPAIRABLE, userId, i, 0, amount, "to " + legacyName);
+                return;
+            }
+            if (counterparty == null || !accounts.containsKey(counterparty)) {
+                report.add(ReconciliationReport.Kind.UNKNOWN_COUNTERPARTY, userId, i, 0, amount);
+                return;
+            }
+            if (time <= accounts.get(counterparty).getArchivedThrough()) {
+                return; // The other side is archived; hot entries are always newer than this side's archive
+            }
+            boolean outgoing = type == TransactionHistory.TRANSFER_OUT;
+            String sender = outgoing ? userId : counterparty;
+            String recipient = outgoing ? counterparty : userId;
+            partial.addTransfer(bucketOf(sender, recipient), fingerprint(sender, recipient, time, amount), outgoing ? 1 : -1);
+            if (outgoing) {
+                report.transfersPaired++;
+            }
+        }
+    }
+    
+    // Exact matching, limited to the transfers whose buckets did not cancel
+    private void findUnmatched(Account.Position[] positions, long cutoff, boolean[] unbalanced, ReconciliationReport report) {
+        HashMap<java.util.List<Object>, Integer> open = new HashMap<>();
+        for (int p = 0; p < positions.length; p++) {
+            Account.Position position = positions[p];
+            TransactionHistory history = position.history;
+            String userId = position.userId;
+            for (int i = 0; i < position.size; i++) {
+                byte type = history.getType(i);
+                if (type != TransactionHistory.TRANSFER_OUT && type != TransactionHistory.TRANSFER_IN) {
+                    continue;
+                }
+                String counterparty = history.getCounterparty(i);
+                long time = history.getTime(i);
+                if (time >= cutoff || counterparty == null || !accounts.containsKey(counterparty)
+                        || time <= accounts.get(counterparty).getArchivedThrough()) {
+                    continue;
+                }
+                boolean outgoing = type == TransactionHistory.TRANSFER_OUT;
+                String sender = outgoing ? userId : counterparty;
+                String recipient = outgoing ? counterparty : userId;
+                if (unbalanced[bucketOf(sender, recipient)]) {
+                    open.merge(Arrays.<Object>asList(sender, recipient, time, history.getAmountCents(i)), outgoing ? 1 : -1, Integer::sum);
+                }
+            }
+        }
+        for (Map.Entry<java.util.List<Object>, Integer> entry : open.entrySet()) {
+            int excess = entry.getValue();
+            if (excess == 0) {
+                continue;
+            }
+            java.util.List<Object> key = entry.getKey();
+            long amount = (Long) key.get(3);
+            // More outgoing entries than incoming: the recipient is missing the credit, and vice versa
+            String userId = (String) (excess > 0 ? key.get(1) : key.get(0));
+            ReconciliationReport.Kind kind = excess > 0
+                    ? ReconciliationReport.Kind.MISSING_TRANSFER_IN : ReconciliationReport.Kind.MISSING_TRANSFER_OUT;
+            for (int n = 0; n < Math.abs(excess); n++) {
+                report.add(kind, userId, -1, 0, amount, "transfer " + key.get(0) + " -> " + key.get(1)
+                        + " at " + key.get(2));
+            }
+        }
+    }
+    
+    private static int bucketOf(String sender, String recipient) {
+        return (int) (mix(((long) sender.hashCode() << 32) ^ (recipient.hashCode() & 0xFFFFFFFFL)) >>> (64 - BUCKET_BITS));
+    }
+    
+    private static long fingerprint(String sender, String recipient, long time, long amount) {
+        long h = mix(((long) sender.hashCode() << 32) ^ (recipient.hashCode() & 0xFFFFFFFFL));
+        h = mix(h ^ time);
+        return mix(h + amount);
+    }
+    
+    // The 64-bit finalizer of MurmurHash3
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+}
@@ -0,0 +1,60 @@
+import java.util.*;
+
+// Payments from one account for ATMManager.transferBatch, with a result per payment once submitted:
+//   BatchTransfer payroll = new BatchTransfer().add("123456", 2500.0).add("654321", 3100.0);
+//   if (!manager.transferBatch(employer, payroll)) { ... payroll.getResult(i) ... }
+class BatchTransfer {
+    private final ArrayList<String> recipientIds = new ArrayList<>();
+    private long[] amountsCents = new long[16];
+    private ATMService.Result[] results;
+    private boolean applied;
+    
+    BatchTransfer add(String recipientId, double amount) {
+        int i = recipientIds.size();
+        if (i == amountsCents.length) {
+            amountsCents = Arrays.copyOf(amountsCents, i + (i >> 1));
+        }
+        amountsCents[i] = Account.toCents(amount);
+        recipientIds.add(recipientId);
+        results = null;
+        return this;
+    }
+    
+    int size() {
+        return recipientIds.size();
+    }
+    
+    String getRecipientId(int i) {
+        return recipientIds.get(i);
+    }
+    
+    long getAmountCents(int i) {
+        return amountsCents[i];
+    }
+    
+    boolean isApplied() {
+        return applied;
+    }
+    
+    // OK for every item of an applied batch. Otherwise the refused items say why, and the rest
+    // are NOT_APPLIED; null until the batch has been submitted.
+    ATMService.Result getResult(int i) {
+        return results != null ? results[i] : null;
+    }
+    
+    // Marks an item refused and returns false, so validation can fold it into its verdict
+    boolean refuse(int i, ATMService.Result result) {
+        if (results == null) {
+            results = new ATMService.Result[size()];
+            Arrays.fill(results, ATMService.Result.NOT_APPLIED);
+        }
+        results[i] = result;
+        return false;
+    }
+    
+    void applied() {
+        results = new ATMService.Result[size()];
+        Arrays.fill(results, ATMService.Result.OK);
+        applied = true;
+    }
+}
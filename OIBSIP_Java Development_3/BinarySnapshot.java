@@ -0,0 +1,258 @@
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Binary snapshot format, loaded through a MappedByteBuffer:
+//   header  : magic "ATMB", version, ledger sequence, account count, index offset, user ID allocator state
+//   history : one block per account - [entry count][byte length][fixed-width entries]
+//   index   : per account - userId, pin, name, balance, last sequence, history block offset
+// Only the index is decoded at startup; each history block is decoded the first time
+// its account is used, and unchanged blocks are copied as raw bytes on the next save.
+class BinarySnapshot {
+    private static final int MAGIC = 0x41544D42; // "ATMB"
+    static final int VERSION = 3; // Version 1 stored history as formatted strings; 3 added the allocator state
+    private static final int HEADER_SIZE = 48;
+    
+    static void write(File file, long sequence, Collection<Account> accounts) throws IOException {
+        write(file, sequence, accounts, null);
+    }
+    
+    static void write(File file, long sequence, Collection<Account> accounts, UserIdAllocator userIds) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(HEADER_SIZE);
+            CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), HEADER_SIZE);
+            DataOutputStream out = new DataOutputStream(counter);
+            
+            // The index is built in memory as compact bytes while history blocks stream out
+            ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+            DataOutputStream index = new DataOutputStream(indexBytes);
+            int count = 0;
+            for (Account account : accounts) {
+                long blockOffset = counter.getCount();
+                account.writeHistoryBlock(out);
+                writeString(index, account.getUserId());
+                writeString(index, account.getPin());
+                writeString(index, account.getName());
+                index.writeDouble(account.getBalance());
+                index.writeLong(account.getLastSequence());
+                index.writeLong(blockOffset);
+                count++;
+            }
+            long indexOffset = counter.getCount();
+            indexBytes.writeTo(out);
+            out.flush();
+            if (counter.getCount() > Integer.MAX_VALUE) {
+                throw new IOException("Binary snapshot exceeds 2 GB; use the JSON format");
+            }
+            
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(sequence).putInt(count).putLong(indexOffset);
+            header.put(userIds != null ? (byte) 1 : (byte) 0);
+            header.putLong(userIds != null ? userIds.getKey() : 0).putLong(userIds != null ? userIds.getNext() : 0);
+            header.rewind();
+            channel.write(header, 0);
+            channel.force(true);
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    // Maps the file and decodes only the account index; returns the ledger sequence it covers
+    static long read(File file, Map<String, Account> accounts) throws IOException {
+        return read(file, accounts, null);
+    }
+    
+    static long read(File file, Map<String, Account> accounts, UserIdAllocator userIds) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // Stays valid after close
+        }
+        if (mapped.capacity() < HEADER_SIZE || mapped.getInt(0) != MAGIC) {
+            throw new IOException(file.getName() + " is not an ATM binary snapshot");
+        }
+        int version = mapped.getInt(4);
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported binary snapshot version " + version);
+        }
+        long sequence = mapped.getLong(8);
+        int count = mapped.getInt(16);
+        if (version >= 3 && userIds != null && mapped.get(28) == 1) {
+            userIds.restore(mapped.getLong(29), mapped.getLong(37));
+        }
+        ByteBuffer index = mapped.duplicate();
+        index.position((int) mapped.getLong(20));
+        
+        for (int i = 0; i < count; i++) {
+            String userId = readString(index);
+            String pin = readString(index);
+            String name = readString(index);
+            double balance = index.getDouble();
+            long lastSequence = index.getLong();
+            int blockOffset = (int) index.getLong();
+            HistoryBlock history = new HistoryBlock(mapped, blockOffset, version);
+            accounts.put(userId, new Account(userId, pin, name, balance, lastSequence, history));
+        }
+        return sequence;
+    }
+    
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    // A length-prefixed history block inside the mapped file: [count][byteLength][entries].
+    // Version 2 entries are [time][type][amountCents][balanceCents][counterparty or -1].
+    static class HistoryBlock {
+        private final ByteBuffer mapped;
+        private final int offset;
+        private final int version;
+        
+        HistoryBlock(ByteBuffer mapped, int offset, int version) {
+            this.mapped = mapped;
+            this.offset = offset;
+            this.version = version;
+        }
+        
+        int getCount() {
+            return mapped.getInt(offset);
+        }
+        
+        // Time of the newest entry, found by skipping through the block without decoding it
+        long getLastTime() {
+            int count = getCount();
+            if (count == 0) {
+                return 0;
+            }
+            if (version == 1) {
+                return decode().getLastTime();
+            }
+            int position = offset + 8;
+            long time = 0;
+            for (int i = 0; i < count; i++) {
+                time = mapped.getLong(position);
+                position += 8 + 1 + 8 + 8; // Time, type, amount, balance
+                int length = mapped.getInt(position);
+                position += 4 + Math.max(length, 0);
+            }
+            return time;
+        }
+        
+        // Read from the first entry when it is a CARRIED_FORWARD marker, 0 otherwise
+        long getArchivedCount() {
+            return startsWithMarker() ? mapped.getLong(offset + 8 + 8 + 1) : 0;
+        }
+        
+        long getArchivedThrough() {
+            return startsWithMarker() ? mapped.getLong(offset + 8) : 0;
+        }
+        
+        private boolean startsWithMarker() {
+            return version >= 2 && getCount() > 0 && mapped.get(offset + 8 + 8) == TransactionHistory.CARRIED_FORWARD;
+        }
+        
+        // Blocks in an older format are decoded and rewritten rather than copied
+        boolean isCurrentFormat() {
+            return version >= 2;
+        }
+        
+        TransactionHistory decode() {
+            ByteBuffer in = mapped.duplicate();
+            in.position(offset + 8);
+            int count = getCount();
+            TransactionHistory history = new TransactionHistory(count + 8);
+            for (int i = 0; i < count; i++) {
+                if (version == 1) {
+                    history.addLegacy(readString(in));
+                    continue;
+                }
+                long time = in.getLong();
+                byte type = in.get();
+                long amount = in.getLong();
+                long balance = in.getLong();
+                String counterparty = null;
+                int length = in.getInt();
+                if (length >= 0) {
+                    byte[] bytes = new byte[length];
+                    in.get(bytes);
+                    counterparty = new String(bytes, StandardCharsets.UTF_8);
+                }
+                history.add(time, type, amount, balance, counterparty);
+            }
+            return history;
+        }
+        
+        void copyTo(DataOutputStream out) throws IOException {
+            ByteBuffer in = mapped.duplicate();
+            in.position(offset);
+            in.limit(offset + 8 + mapped.getInt(offset + 4));
+            byte[] chunk = new byte[8192];
+            while (in.hasRemaining()) {
+                int length = Math.min(chunk.length, in.remaining());
+                in.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+        
+        static void write(DataOutputStream out, TransactionHistory history) throws IOException {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            DataOutputStream entries = new DataOutputStream(block);
+            int count = history.size();
+            for (int i = 0; i < count; i++) {
+                entries.writeLong(history.getTime(i));
+                entries.writeByte(history.getType(i));
+                entries.writeLong(history.getAmountCents(i));
+                entries.writeLong(history.getBalanceCents(i));
+                String counterparty = history.getCounterparty(i);
+                if (counterparty == null) {
+                    entries.writeInt(-1);
+                } else {
+                    writeString(entries, counterparty);
+                }
+            }
+            out.writeInt(count);
+            out.writeInt(block.size());
+            block.writeTo(out);
+        }
+    }
+    
+    // Tracks the file offset of everything written through it
+    static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+        
+        CountingOutputStream(OutputStream out, long start) {
+            super(out);
+            this.count = start;
+        }
+        
+        long getCount() {
+            return count;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
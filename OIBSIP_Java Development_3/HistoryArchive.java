@@ -0,0 +1,189 @@
+import java.util.*;
+import java.util.zip.CRC32;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+// Append-only file of archived history segments, shared by every account. Each segment holds a run
+// of one account's oldest entries, Deflater-compressed, behind a header that lets history views
+// find the right segment by time without inflating any:
+//   [magic][userId][startIndex][count][firstTime][lastTime][endBalance][compressedLength][crc32][bytes]
+// Segments are only ever appended, and a segment a crash left unreferenced is simply never read.
+class HistoryArchive implements Closeable {
+    private static final int MAGIC = 0x41544D53; // "ATMS"
+    
+    static final class Segment {
+        final String userId;
+        final long startIndex; // Position of the first entry among the account's archived entries
+        final int count;
+        final long firstTime;
+        final long lastTime;
+        final long endBalance; // Balance after the segment's last entry
+        final long position; // File offset of the compressed bytes
+        final int compressedLength;
+        final int crc;
+        private volatile java.lang.ref.SoftReference<TransactionHistory> decoded;
+        
+        Segment(String userId, long startIndex, int count, long firstTime, long lastTime, long endBalance,
+                long position, int compressedLength, int crc) {
+            this.userId = userId;
+            this.startIndex = startIndex;
+            this.count = count;
+            this.firstTime = firstTime;
+            this.lastTime = lastTime;
+            this.endBalance = endBalance;
+            this.position = position;
+            this.compressedLength = compressedLength;
+            this.crc = crc;
+        }
+        
+        long endIndex() {
+            return startIndex + count;
+        }
+    }
+    
+    private final File file;
+    private final FileChannel channel;
+    private final HashMap<String, ArrayList<Segment>> segments = new HashMap<>();
+    private long size;
+    
+    // Reads every segment header; a segment torn by a crash while it was appended is cut off
+    HistoryArchive(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long length = channel.size();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+        long position = 0;
+        try {
+            while (position < length) {
+                if (in.readInt() != MAGIC) {
+                    break;
+                }
+                String userId = in.readUTF();
+                long startIndex = in.readLong();
+                int count = in.readInt();
+                long firstTime = in.readLong();
+                long lastTime = in.readLong();
+                long endBalance = in.readLong();
+                int compressedLength = in.readInt();
+                int crc = in.readInt();
+                long payload = position + 4 + 2 + userId.getBytes(StandardCharsets.UTF_8).length + 8 + 4 + 8 + 8 + 8 + 4 + 4;
+                if (compressedLength < 0 || payload + compressedLength > length) {
+                    break;
+                }
+                in.skipNBytes(compressedLength);
+                add(new Segment(userId, startIndex, count, firstTime, lastTime, endBalance, payload, compressedLength, crc));
+                position = payload + compressedLength;
+            }
+        } catch (EOFException e) {
+            // Torn header at the end
+        }
+        if (position < length) {
+            System.err.println("Cutting off an incomplete segment at the end of " + file.getName());
+            channel.truncate(position);
+        }
+        size = position;
+    }
+    
+    private void add(Segment segment) {
+        segments.computeIfAbsent(segment.userId, id -> new ArrayList<>()).add(segment);
+    }
+    
+    // Compresses and appends the entries; they are durable after the next force()
+    synchronized Segment append(String userId, long startIndex, TransactionHistory history) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new java.util.zip.DeflaterOutputStream(block))) {
+            BinarySnapshot.HistoryBlock.write(out, history);
+        }
+        byte[] compressed = block.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(compressed);
+        
+        int count = history.size();
+        long endBalance = history.balanceBefore(Long.MAX_VALUE, count);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(header);
+        out.writeInt(MAGIC);
+        out.writeUTF(userId);
+        out.writeLong(startIndex);
+        out.writeInt(count);
+        out.writeLong(history.getTime(0));
+        out.writeLong(history.getLastTime());
+        out.writeLong(endBalance);
+        out.writeInt(compressed.length);
+        out.writeInt((int) crc.getValue());
+        
+        ByteBuffer record = ByteBuffer.allocate(header.size() + compressed.length);
+        record.put(header.toByteArray()).put(compressed).flip();
+        long position = size;
+        while (record.hasRemaining()) {
+            channel.write(record, position + record.position());
+        }
+        size = position + record.limit();
+        Segment segment = new Segment(userId, startIndex, count, history.getTime(0), history.getLastTime(), endBalance,
+                position + header.size(), compressed.length, (int) crc.getValue());
+        segment.decoded = new java.lang.ref.SoftReference<>(history);
+        add(segment);
+        return segment;
+    }
+    
+    void force() throws IOException {
+        channel.force(true);
+    }
+    
+    // The segments holding an account's first archivedCount entries, oldest first, or null if some
+    // are missing. Where a crash left a segment the snapshot never referenced, a later one covering
+    // the same entries was written after it, so the newest segment ending at each point wins.
+    synchronized Segment[] chain(String userId, long archivedCount) {
+        ArrayList<Segment> written = segments.getOrDefault(userId, new ArrayList<>());
+        ArrayDeque<Segment> chain = new ArrayDeque<>();
+        long end = archivedCount;
+        for (int i = written.size() - 1; i >= 0 && end > 0; i--) {
+            Segment segment = written.get(i);
+            if (segment.endIndex() == end) {
+                chain.addFirst(segment);
+                end = segment.startIndex;
+            }
+        }
+        return end == 0 ? chain.toArray(new Segment[0]) : null;
+    }
+    
+    // Reads a segment back, keeping it while memory allows so paging through a history is cheap
+    TransactionHistory read(Segment segment) {
+        java.lang.ref.SoftReference<TransactionHistory> cached = segment.decoded;
+        TransactionHistory history = cached != null ? cached.get() : null;
+        if (history != null) {
+            return history;
+        }
+        try {
+            ByteBuffer compressed = ByteBuffer.allocate(segment.compressedLength);
+            while (compressed.hasRemaining()) {
+                if (channel.read(compressed, segment.position + compressed.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(compressed.array());
+            if ((int) crc.getValue() != segment.crc) {
+                throw new IOException("Checksum mismatch");
+            }
+            byte[] bytes;
+            try (InputStream in = new java.util.zip.InflaterInputStream(new ByteArrayInputStream(compressed.array()))) {
+                bytes = in.readAllBytes();
+            }
+            history = new BinarySnapshot.HistoryBlock(ByteBuffer.wrap(bytes), 0, BinarySnapshot.VERSION).decode();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Archived history of " + segment.userId + " in " + file.getName() + " is unreadable", e);
+        }
+        segment.decoded = new java.lang.ref.SoftReference<>(history);
+        return history;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
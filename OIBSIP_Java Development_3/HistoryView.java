@@ -0,0 +1,119 @@
+import java.util.*;
+
+// An account's whole history as one sequence: the archived segments, then the hot entries after the
+// carried-forward entry. Segment headers answer most time lookups, so a query inflates at most one.
+class HistoryView {
+    private final HistoryArchive archive;
+    private final HistoryArchive.Segment[] segments;
+    private final TransactionHistory hot;
+    private final int hotSize;
+    private final int hotFrom; // Skips the carried-forward entry when the segments take its place
+    private final long archived;
+    
+    HistoryView(HistoryArchive archive, HistoryArchive.Segment[] segments, TransactionHistory hot, int hotSize) {
+        this.archive = archive;
+        this.segments = segments;
+        this.hot = hot;
+        this.hotSize = hotSize;
+        this.hotFrom = segments.length > 0 ? 1 : 0;
+        this.archived = segments.length > 0 ? segments[segments.length - 1].endIndex() : 0;
+    }
+    
+    int size() {
+        return (int) (archived + hotSize - hotFrom);
+    }
+    
+    long getTime(int i) {
+        if (i >= archived) {
+            return hot.getTime(hotIndex(i));
+        }
+        HistoryArchive.Segment segment = segmentOf(i);
+        return archive.read(segment).getTime((int) (i - segment.startIndex));
+    }
+    
+    byte getType(int i) {
+        if (i >= archived) {
+            return hot.getType(hotIndex(i));
+        }
+        HistoryArchive.Segment segment = segmentOf(i);
+        return archive.read(segment).getType((int) (i - segment.startIndex));
+    }
+    
+    String format(int i, java.util.function.Function<String, String> counterpartyNames) {
+        if (i >= archived) {
+            return hot.format(hotIndex(i), counterpartyNames);
+        }
+        HistoryArchive.Segment segment = segmentOf(i);
+        return archive.read(segment).format((int) (i - segment.startIndex), counterpartyNames);
+    }
+    
+    // Same contract as TransactionHistory.firstAtOrAfter, over the whole history
+    int firstAtOrAfter(long time) {
+        if (archived > 0 && time <= segments[segments.length - 1].lastTime) {
+            int low = 0;
+            int high = segments.length - 1;
+            while (low < high) { // First segment whose last entry is at or after the time
+                int middle = (low + high) >>> 1;
+                if (segments[middle].lastTime < time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            HistoryArchive.Segment segment = segments[low];
+            if (segment.firstTime >= time) {
+                return (int) segment.startIndex;
+            }
+            return (int) (segment.startIndex + archive.read(segment).firstAtOrAfter(time, segment.count));
+        }
+        return (int) (archived + Math.max(hotFrom, hot.firstAtOrAfter(time, hotSize)) - hotFrom);
+    }
+    
+    // Same contract as TransactionHistory.balanceBefore, over the whole history
+    long balanceBefore(long time) {
+        int i = hot.firstAtOrAfter(time, hotSize) - 1;
+        while (i >= hotFrom && hot.getType(i) == TransactionHistory.NOTE) {
+            i--;
+        }
+        if (i >= hotFrom) {
+            return hot.getBalanceCents(i);
+        }
+        for (int k = segments.length - 1; k >= 0; k--) {
+            HistoryArchive.Segment segment = segments[k];
+            if (segment.firstTime < time) {
+                return segment.lastTime < time ? segment.endBalance : archive.read(segment).balanceBefore(time, segment.count);
+            }
+        }
+        return 0;
+    }
+    
+    // Indexes of the entries in [from, to) whose type bit (1 << type) is set in the mask
+    int[] indexesOfTypes(int from, int to, int typeMask) {
+        int[] indexes = new int[Math.max(0, to - from)];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if ((typeMask & (1 << getType(i))) != 0) {
+                indexes[count++] = i;
+            }
+        }
+        return Arrays.copyOf(indexes, count);
+    }
+    
+    private int hotIndex(int i) {
+        return (int) (i - archived + hotFrom);
+    }
+    
+    private HistoryArchive.Segment segmentOf(int i) {
+        int low = 0;
+        int high = segments.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (segments[middle].endIndex() <= i) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return segments[low];
+    }
+}
@@ -0,0 +1,85 @@
+import java.util.*;
+import java.io.*;
+
+class JSONArray {
+    private ArrayList<Object> list;
+    
+    public JSONArray() {
+        list = new ArrayList<>();
+    }
+    
+    public JSONArray(ArrayList<?> arrayList) {
+        list = new ArrayList<>(arrayList);
+    }
+    
+    public JSONArray(String jsonString) {
+        list = new ArrayList<>();
+        try {
+            readElements(new JSONReader(new StringReader(jsonString)));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+    
+    // Reads the array at the reader's current position
+    JSONArray(JSONReader reader) throws IOException {
+        list = new ArrayList<>();
+        readElements(reader);
+    }
+    
+    private void readElements(JSONReader reader) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            list.add(reader.readValue());
+        }
+        reader.endArray();
+    }
+    
+    public void put(Object value) {
+        list.add(value);
+    }
+    
+    public String getString(int index) {
+        return list.get(index).toString();
+    }
+    
+    public long getLong(int index) {
+        Object value = list.get(index);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return Long.parseLong(value.toString());
+    }
+    
+    public JSONObject getJSONObject(int index) {
+        return (JSONObject) list.get(index);
+    }
+    
+    public JSONArray getJSONArray(int index) {
+        return (JSONArray) list.get(index);
+    }
+    
+    public int length() {
+        return list.size();
+    }
+    
+    public String toString(int indent) {
+        StringWriter out = new StringWriter();
+        try {
+            JSONWriter writer = new JSONWriter(out, indent);
+            writer.value(this);
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringWriter never throws
+        }
+        return out.toString();
+    }
+    
+    void writeTo(JSONWriter writer) throws IOException {
+        writer.beginArray();
+        for (Object value : list) {
+            writer.value(value);
+        }
+        writer.endArray();
+    }
+}
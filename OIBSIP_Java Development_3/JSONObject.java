@@ -0,0 +1,93 @@
+import java.util.*;
+import java.io.*;
+
+// JSON library - minimal implementation
+class JSONObject {
+    private HashMap<String, Object> map;
+    
+    public JSONObject() {
+        map = new HashMap<>();
+    }
+    
+    public JSONObject(String jsonString) {
+        map = new HashMap<>();
+        try {
+            JSONReader reader = new JSONReader(new StringReader(jsonString));
+            readMembers(reader);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+    
+    // Reads the object at the reader's current position
+    JSONObject(JSONReader reader) throws IOException {
+        map = new HashMap<>();
+        readMembers(reader);
+    }
+    
+    private void readMembers(JSONReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            map.put(key, reader.readValue());
+        }
+        reader.endObject();
+    }
+    
+    public void put(String key, Object value) {
+        map.put(key, value);
+    }
+    
+    public String getString(String key) {
+        Object value = map.get(key);
+        return value != null ? value.toString() : null;
+    }
+    
+    public double getDouble(String key) {
+        Object value = map.get(key);
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        return Double.parseDouble(value.toString());
+    }
+    
+    public long optLong(String key, long defaultValue) {
+        Object value = map.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return Long.parseLong(value.toString());
+    }
+    
+    public JSONArray getJSONArray(String key) {
+        return (JSONArray) map.get(key);
+    }
+    
+    public boolean has(String key) {
+        return map.containsKey(key);
+    }
+    
+    public String toString(int indent) {
+        StringWriter out = new StringWriter();
+        try {
+            JSONWriter writer = new JSONWriter(out, indent);
+            writer.value(this);
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringWriter never throws
+        }
+        return out.toString();
+    }
+    
+    void writeTo(JSONWriter writer) throws IOException {
+        writer.beginObject();
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            writer.name(entry.getKey());
+            writer.value(entry.getValue());
+        }
+        writer.endObject();
+    }
+}
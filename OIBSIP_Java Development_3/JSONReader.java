@@ -0,0 +1,498 @@
+import java.util.*;
+import java.io.*;
+
+// Single-pass pull tokenizer. The input is read once through a fixed char buffer and
+// values are decoded straight out of it, so nested objects are never copied into
+// intermediate strings and memory stays bounded regardless of document size.
+class JSONReader implements Closeable {
+    enum Token { BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT }
+    
+    // What the tokenizer expects next in each open container
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_OBJECT = 2;
+    private static final int DANGLING_NAME = 3;
+    private static final int NONEMPTY_OBJECT = 4;
+    private static final int EMPTY_ARRAY = 5;
+    private static final int NONEMPTY_ARRAY = 6;
+    
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private int pos;
+    private int limit;
+    private int[] stack = new int[32];
+    private int depth = 1;
+    private Token peeked;
+    private final StringBuilder scratch = new StringBuilder();
+    private final String[] names = new String[256]; // Recently seen member names, reused instead of reallocated
+    
+    public JSONReader(Reader in) {
+        this.in = in;
+        stack[0] = EMPTY_DOCUMENT;
+    }
+    
+    public Token peek() throws IOException {
+        if (peeked != null) {
+            return peeked;
+        }
+        int state = stack[depth - 1];
+        int c;
+        switch (state) {
+            case EMPTY_ARRAY:
+                stack[depth - 1] = NONEMPTY_ARRAY;
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    return peeked = Token.END_ARRAY;
+                }
+                if (c == -1) {
+                    throw syntaxError("Unterminated array");
+                }
+                pos--;
+                break;
+            case NONEMPTY_ARRAY:
+                c = nextNonWhitespace();
+                if (c == ']') {
+                    return peeked = Token.END_ARRAY;
+                }
+                if (c != ',') {
+                    throw syntaxError("Expected ',' or ']'");
+                }
+                break;
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT:
+                stack[depth - 1] = DANGLING_NAME;
+                c = nextNonWhitespace();
+                if (c == '}') {
+                    return peeked = Token.END_OBJECT;
+                }
+                if (state == NONEMPTY_OBJECT) {
+                    if (c != ',') {
+                        throw syntaxError("Expected ',' or '}'");
+                    }
+                    c = nextNonWhitespace();
+                }
+                if (c != '"') {
+                    throw syntaxError("Expected member name");
+                }
+                return peeked = Token.NAME;
+            case DANGLING_NAME:
+                stack[depth - 1] = NONEMPTY_OBJECT;
+                if (nextNonWhitespace() != ':') {
+                    throw syntaxError("Expected ':'");
+                }
+                break;
+            case EMPTY_DOCUMENT:
+                stack[depth - 1] = NONEMPTY_DOCUMENT;
+                break;
+            default:
+                if (nextNonWhitespace() != -1) {
+                    throw syntaxError("Unexpected data after document");
+                }
+                return peeked = Token.END_DOCUMENT;
+        }
+        
+        c = nextNonWhitespace();
+        switch (c) {
+            case '{':
+                return peeked = Token.BEGIN_OBJECT;
+            case '[':
+                return peeked = Token.BEGIN_ARRAY;
+            case '"':
+                return peeked = Token.STRING;
+            case 't':
+            case 'f':
+                pos--;
+                return peeked = Token.BOOLEAN;
+            case 'n':
+                pos--;
+                return peeked = Token.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    pos--;
+                    return peeked = Token.NUMBER;
+                }
+                throw syntaxError(c == -1 ? "Unexpected end of input" : "Unexpected character '" + (char) c + "'");
+        }
+    }
+    
+    public boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+    }
+    
+    public void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+    
+    public void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        depth--;
+    }
+    
+    public void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+    
+    public void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        depth--;
+    }
+    
+    public String nextName() throws IOException {
+        expect(Token.NAME);
+        return readString(true);
+    }
+    
+    public String nextString() throws IOException {
+        Token token = peek();
+        if (token == Token.NUMBER) {
+            peeked = null;
+            readNumberChars();
+            return scratch.toString();
+        }
+        expect(Token.STRING);
+        return readString(false);
+    }
+    
+    public long nextLong() throws IOException {
+        expect(Token.NUMBER);
+        readNumberChars();
+        if (!isIntegral()) {
+            return (long) parseDouble();
+        }
+        return parseLong();
+    }
+    
+    public double nextDouble() throws IOException {
+        expect(Token.NUMBER);
+        readNumberChars();
+        return parseDouble();
+    }
+    
+    public boolean nextBoolean() throws IOException {
+        expect(Token.BOOLEAN);
+        if (buffer[pos] == 't') { // peek() left the first letter in the buffer
+            readLiteral("true");
+            return true;
+        }
+        readLiteral("false");
+        return false;
+    }
+    
+    public void nextNull() throws IOException {
+        expect(Token.NULL);
+        readLiteral("null");
+    }
+    
+    // Reads any value into the JSONObject/JSONArray/String/Number/Boolean model
+    public Object readValue() throws IOException {
+        switch (peek()) {
+            case BEGIN_OBJECT:
+                return new JSONObject(this);
+            case BEGIN_ARRAY:
+                return new JSONArray(this);
+            case STRING:
+                return nextString();
+            case NUMBER:
+                expect(Token.NUMBER);
+                readNumberChars();
+                if (!isIntegral()) {
+                    return parseDouble();
+                }
+                long value = parseLong();
+                if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                    return (int) value;
+                }
+                return value;
+            case BOOLEAN:
+                return nextBoolean();
+            case NULL:
+                nextNull();
+                return null;
+            default:
+                throw syntaxError("Expected a value");
+        }
+    }
+    
+    public void skipValue() throws IOException {
+        int level = 0;
+        do {
+            switch (peek()) {
+                case BEGIN_OBJECT:
+                    beginObject();
+                    level++;
+                    break;
+                case BEGIN_ARRAY:
+                    beginArray();
+                    level++;
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    level--;
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    level--;
+                    break;
+                case NAME:
+                    nextName();
+                    break;
+                case STRING:
+                    expect(Token.STRING);
+                    skipString();
+                    break;
+                case NUMBER:
+                    expect(Token.NUMBER);
+                    readNumberChars();
+                    break;
+                case BOOLEAN:
+                    nextBoolean();
+                    break;
+                case NULL:
+                    nextNull();
+                    break;
+                default:
+                    throw syntaxError("Expected a value");
+            }
+        } while (level > 0);
+    }
+    
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+    
+    private void expect(Token token) throws IOException {
+        if (peek() != token) {
+            throw syntaxError("Expected " + token + " but was " + peeked);
+        }
+        peeked = null;
+    }
+    
+    private void push(int state) {
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+        }
+        stack[depth++] = state;
+    }
+    
+    private boolean fill() throws IOException {
+        pos = 0;
+        limit = in.read(buffer, 0, buffer.length);
+        if (limit <= 0) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+    
+    private int nextNonWhitespace() throws IOException {
+        while (true) {
+            if (pos == limit && !fill()) {
+                return -1;
+            }
+            char c = buffer[pos++];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+        }
+    }
+    
+    private int read() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buffer[pos++];
+    }
+    
+    // Reads the rest of a string literal whose opening quote was consumed by peek()
+    private String readString(boolean name) throws IOException {
+        boolean spilled = false;
+        scratch.setLength(0);
+        while (true) {
+            int start = pos;
+            while (pos < limit) {
+                char c = buffer[pos++];
+                if (c == '"') {
+                    int length = pos - start - 1;
+                    if (!spilled) {
+                        return name ? canonicalName(start, length) : new String(buffer, start, length);
+                    }
+                    scratch.append(buffer, start, length);
+                    return scratch.toString();
+                }
+                if (c == '\\') {
+                    scratch.append(buffer, start, pos - start - 1);
+                    scratch.append(readEscape());
+                    spilled = true;
+                    start = pos;
+                }
+            }
+            scratch.append(buffer, start, pos - start);
+            spilled = true;
+            if (!fill()) {
+                throw syntaxError("Unterminated string");
+            }
+        }
+    }
+    
+    private void skipString() throws IOException {
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                readEscape();
+            } else if (c == -1) {
+                throw syntaxError("Unterminated string");
+            }
+        }
+    }
+    
+    private char readEscape() throws IOException {
+        int c = read();
+        switch (c) {
+            case 'n': return '\n';
+            case 't': return '\t';
+            case 'r': return '\r';
+            case 'b': return '\b';
+            case 'f': return '\f';
+            case '"':
+            case '\\':
+            case '/':
+                return (char) c;
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(read(), 16);
+                    if (digit < 0) {
+                        throw syntaxError("Invalid unicode escape");
+                    }
+                    value = (value << 4) | digit;
+                }
+                return (char) value;
+            default:
+                throw syntaxError("Invalid escape sequence");
+        }
+    }
+    
+    // Member names repeat for every account, so identical names share one String
+    private String canonicalName(int start, int length) {
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + buffer[i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (names.length - 1);
+        String cached = names[slot];
+        if (cached != null && cached.length() == length) {
+            boolean same = true;
+            for (int i = 0; i < length && same; i++) {
+                same = cached.charAt(i) == buffer[start + i];
+            }
+            if (same) {
+                return cached;
+            }
+        }
+        String name = new String(buffer, start, length);
+        names[slot] = name;
+        return name;
+    }
+    
+    private void readLiteral(String literal) throws IOException {
+        for (int i = 0; i < literal.length(); i++) {
+            if (read() != literal.charAt(i)) {
+                throw syntaxError("Expected " + literal);
+            }
+        }
+    }
+    
+    private void readNumberChars() throws IOException {
+        scratch.setLength(0);
+        while (pos < limit || fill()) {
+            char c = buffer[pos];
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+                scratch.append(c);
+                pos++;
+            } else {
+                break;
+            }
+        }
+    }
+    
+    private boolean isIntegral() {
+        for (int i = 0; i < scratch.length(); i++) {
+            char c = scratch.charAt(i);
+            if (c == '.' || c == 'e' || c == 'E') {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private long parseLong() throws IOException {
+        if (scratch.length() >= 19) { // May overflow the loop below; Long.parseLong checks the range
+            try {
+                return Long.parseLong(scratch.toString());
+            } catch (NumberFormatException e) {
+                throw syntaxError("Number out of range");
+            }
+        }
+        boolean negative = scratch.length() > 0 && scratch.charAt(0) == '-';
+        long value = 0;
+        for (int i = negative ? 1 : 0; i < scratch.length(); i++) {
+            char c = scratch.charAt(i);
+            if (c < '0' || c > '9') {
+                throw syntaxError("Malformed number");
+            }
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+    
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    
+    // Plain decimals with up to 15 digits are exact as mantissa / 10^scale;
+    // anything else goes through Double.parseDouble
+    private double parseDouble() throws IOException {
+        boolean negative = false;
+        long mantissa = 0;
+        int digits = 0;
+        int scale = -1;
+        boolean simple = scratch.length() > 0;
+        for (int i = 0; i < scratch.length() && simple; i++) {
+            char c = scratch.charAt(i);
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (scale >= 0) {
+                    scale++;
+                }
+            } else if (c == '.' && scale < 0) {
+                scale = 0;
+            } else if (c == '-' && i == 0) {
+                negative = true;
+            } else {
+                simple = false;
+            }
+        }
+        if (simple && digits > 0 && digits <= 15) {
+            double value = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+            return negative ? -value : value;
+        }
+        try {
+            return Double.parseDouble(scratch.toString());
+        } catch (NumberFormatException e) {
+            throw syntaxError("Malformed number");
+        }
+    }
+    
+    private IOException syntaxError(String message) {
+        return new IOException("Malformed JSON: " + message);
+    }
+}
@@ -0,0 +1,177 @@
+import java.util.*;
+import java.io.*;
+
+// Streaming serializer: tokens go straight to the underlying Writer, so a document
+// is never materialized as a String. An indent of 0 writes compact JSON.
+class JSONWriter implements Closeable, Flushable {
+    private final Writer out;
+    private final int indent;
+    private boolean[] hasElements = new boolean[32]; // Per open container: whether a comma is needed
+    private int depth;
+    private boolean afterName;
+    
+    public JSONWriter(Writer out, int indent) {
+        this.out = out;
+        this.indent = indent;
+    }
+    
+    public JSONWriter beginObject() throws IOException {
+        return open('{');
+    }
+    
+    public JSONWriter endObject() throws IOException {
+        return close('}');
+    }
+    
+    public JSONWriter beginArray() throws IOException {
+        return open('[');
+    }
+    
+    public JSONWriter endArray() throws IOException {
+        return close(']');
+    }
+    
+    public JSONWriter name(String name) throws IOException {
+        separate();
+        string(name);
+        out.write(indent > 0 ? ": " : ":");
+        afterName = true;
+        return this;
+    }
+    
+    public JSONWriter value(String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        separate();
+        string(value);
+        return this;
+    }
+    
+    public JSONWriter value(long value) throws IOException {
+        separate();
+        out.write(Long.toString(value));
+        return this;
+    }
+    
+    public JSONWriter value(double value) throws IOException {
+        separate();
+        out.write(Double.toString(value));
+        return this;
+    }
+    
+    public JSONWriter value(boolean value) throws IOException {
+        separate();
+        out.write(value ? "true" : "false");
+        return this;
+    }
+    
+    public JSONWriter nullValue() throws IOException {
+        separate();
+        out.write("null");
+        return this;
+    }
+    
+    // Writes any value of the JSONObject/JSONArray model
+    public JSONWriter value(Object value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        } else if (value instanceof String) {
+            return value((String) value);
+        } else if (value instanceof JSONObject) {
+            ((JSONObject) value).writeTo(this);
+        } else if (value instanceof JSONArray) {
+            ((JSONArray) value).writeTo(this);
+        } else if (value instanceof Double || value instanceof Float) {
+            return value(((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            return value(((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            return value(((Boolean) value).booleanValue());
+        } else {
+            return value(value.toString());
+        }
+        return this;
+    }
+    
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+    
+    private JSONWriter open(char bracket) throws IOException {
+        separate();
+        out.write(bracket);
+        if (depth == hasElements.length) {
+            hasElements = Arrays.copyOf(hasElements, depth * 2);
+        }
+        hasElements[depth++] = false;
+        return this;
+    }
+    
+    private JSONWriter close(char bracket) throws IOException {
+        depth--;
+        if (hasElements[depth]) {
+            newline();
+        }
+        out.write(bracket);
+        return this;
+    }
+    
+    // Comma and line break before a member or array element; nothing after a name
+    private void separate() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth == 0) {
+            return;
+        }
+        if (hasElements[depth - 1]) {
+            out.write(',');
+        }
+        hasElements[depth - 1] = true;
+        newline();
+    }
+    
+    private void newline() throws IOException {
+        if (indent > 0) {
+            out.write('\n');
+            for (int i = 0; i < depth * indent; i++) {
+                out.write(' ');
+            }
+        }
+    }
+    
+    // Writes a string literal, escaping the characters JSONReader decodes; unescaped
+    // runs are passed to the Writer in one call
+    private void string(String value) throws IOException {
+        out.write('"');
+        int run = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String escape;
+            switch (c) {
+                case '"': escape = "\\\""; break;
+                case '\\': escape = "\\\\"; break;
+                case '\n': escape = "\\n"; break;
+                case '\r': escape = "\\r"; break;
+                case '\t': escape = "\\t"; break;
+                default:
+                    escape = c < 0x20 ? String.format("\\u%04x", (int) c) : null;
+            }
+            if (escape != null) {
+                out.write(value, run, i - run);
+                out.write(escape);
+                run = i + 1;
+            }
+        }
+        out.write(value, run, value.length() - run);
+        out.write('"');
+    }
+}
@@ -0,0 +1,89 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Log-linear latency histogram: each power of two is split into 32 linear buckets, so any
+// recorded value is kept to within about 3% in under two thousand counters. Any number of
+// threads can record at once; recording never allocates or locks.
+class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final java.util.concurrent.atomic.LongAccumulator max = new java.util.concurrent.atomic.LongAccumulator(Math::max, 0);
+    
+    void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+    
+    long getCount() {
+        return count.sum();
+    }
+    
+    long getSum() {
+        return sum.sum();
+    }
+    
+    long getMax() {
+        return max.get();
+    }
+    
+    // The value below which the given fraction of recordings fall, to bucket precision
+    long percentile(double fraction) {
+        return Math.min(valueAt(counts(), fraction), max.get());
+    }
+    
+    // A copy of the bucket counts; subtracting an earlier copy gives the recordings in between
+    long[] counts() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+    
+    static long valueAt(long[] counts, double fraction) {
+        long total = 0;
+        for (long bucketCount : counts) {
+            total += bucketCount;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(counts.length - 1);
+    }
+    
+    // Values below SUB_COUNT get a bucket each; above that, bucket group g holds the values
+    // whose top bit is bit g + SUB_BITS - 1, split by the SUB_BITS bits after it
+    static int bucketOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+    }
+    
+    static long upperBound(int bucket) {
+        int group = bucket / SUB_COUNT;
+        if (group == 0) {
+            return bucket;
+        }
+        int shift = group - 1;
+        long sub = bucket % SUB_COUNT + SUB_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+}
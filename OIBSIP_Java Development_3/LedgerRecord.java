@@ -0,0 +1,112 @@
+import java.io.*;
+
+// One fixed-format ledger entry: sequence, timestamp, type, userId, counterparty, amount, name, pin,
+// for the two-phase records of a cross-shard transfer, the transaction ID that ties them together,
+// and last, if the change was made for a client request, its request ID
+class LedgerRecord {
+    static final byte CREATE = 1;
+    static final byte DEPOSIT = 2;
+    static final byte WITHDRAW = 3;
+    static final byte TRANSFER = 4;
+    static final byte PREPARE = 5; // A transfer between shards or in a batch, written to every ledger involved
+    static final byte COMMIT = 6;  // The decision to apply it; a PREPARE with no COMMIT anywhere is rolled back
+    
+    long sequence;
+    final long timestamp;
+    final byte type;
+    final String userId;
+    final String counterparty;
+    final long amountCents;
+    final String name;
+    final String pin;
+    final long transactionId;
+    long recipientSequence; // Sequence in the recipient's shard ledger, if that is a different one
+    String requestId; // Client-supplied ID of the request that made the change, if any
+    
+    LedgerRecord(long sequence, long timestamp, byte type, String userId, String counterparty, long amountCents, String name, String pin) {
+        this(sequence, timestamp, type, userId, counterparty, amountCents, name, pin, 0);
+    }
+    
+    LedgerRecord(long sequence, long timestamp, byte type, String userId, String counterparty, long amountCents, String name, String pin, long transactionId) {
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.type = type;
+        this.userId = userId;
+        this.counterparty = counterparty;
+        this.amountCents = amountCents;
+        this.name = name;
+        this.pin = pin;
+        this.transactionId = transactionId;
+    }
+    
+    static LedgerRecord create(String userId, String pin, String name, long initialCents) {
+        return new LedgerRecord(0, System.currentTimeMillis(), CREATE, userId, "", initialCents, name, pin);
+    }
+    
+    static LedgerRecord deposit(String userId, long amountCents) {
+        return new LedgerRecord(0, System.currentTimeMillis(), DEPOSIT, userId, "", amountCents, "", "");
+    }
+    
+    static LedgerRecord withdraw(String userId, long amountCents) {
+        return new LedgerRecord(0, System.currentTimeMillis(), WITHDRAW, userId, "", amountCents, "", "");
+    }
+    
+    static LedgerRecord transfer(String userId, String recipientId, long amountCents) {
+        return new LedgerRecord(0, System.currentTimeMillis(), TRANSFER, userId, recipientId, amountCents, "", "");
+    }
+    
+    // The PREPARE or COMMIT copy of a transfer for one shard ledger; each ledger numbers its own copy
+    static LedgerRecord phase(byte type, LedgerRecord transfer, long transactionId) {
+        LedgerRecord phase = new LedgerRecord(0, transfer.timestamp, type, transfer.userId, transfer.counterparty,
+                transfer.amountCents, "", "", transactionId);
+        phase.requestId = transfer.requestId;
+        return phase;
+    }
+    
+    // The sequence that the recipient's side of a transfer is recorded under
+    long recipientSequence() {
+        return recipientSequence != 0 ? recipientSequence : sequence;
+    }
+    
+    byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(sequence);
+            out.writeLong(timestamp);
+            out.writeByte(type);
+            out.writeUTF(userId);
+            out.writeUTF(counterparty);
+            out.writeLong(amountCents);
+            out.writeUTF(name);
+            out.writeUTF(pin);
+            if (type == PREPARE || type == COMMIT) {
+                out.writeLong(transactionId);
+            }
+            if (requestId != null) {
+                out.writeUTF(requestId); // Trailing and optional, so older records still decode
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // ByteArrayOutputStream never throws
+        }
+    }
+    
+    static LedgerRecord decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        long sequence = in.readLong();
+        long timestamp = in.readLong();
+        byte type = in.readByte();
+        String userId = in.readUTF();
+        String counterparty = in.readUTF();
+        long amountCents = in.readLong();
+        String name = in.readUTF();
+        String pin = in.readUTF();
+        long transactionId = type == PREPARE || type == COMMIT ? in.readLong() : 0;
+        LedgerRecord record = new LedgerRecord(sequence, timestamp, type, userId, counterparty, amountCents, name, pin, transactionId);
+        if (in.available() > 0) {
+            record.requestId = in.readUTF();
+        }
+        return record;
+    }
+}
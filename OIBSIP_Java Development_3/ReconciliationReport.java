@@ -0,0 +1,146 @@
+import java.util.*;
+
+// Result of a BalanceReconciler run: totals, and the discrepancies found. Only the first
+// MAX_LISTED are kept in detail; the counts per kind cover all of them. Kinds that are not
+// discrepancies are listed too, but leave the report clean.
+class ReconciliationReport {
+    enum Kind {
+        BROKEN_RUNNING_BALANCE("history entry's balance does not follow from the one before"),
+        BALANCE_NOT_EXPLAINED("current balance differs from the end of the history"),
+        MISPLACED_CREATION("creation entry after the start of the history"),
+        INVALID_AMOUNT("entry with a zero or negative amount"),
+        UNKNOWN_COUNTERPARTY("transfer to or from a user ID that is not an account"),
+        MISSING_TRANSFER_IN("transfer sent but never credited to the recipient"),
+        MISSING_TRANSFER_OUT("transfer credited but never debited from the sender"),
+        LEGACY_UNPAIRABLE("legacy transfer naming no single account, so it cannot be paired", false);
+        
+        final String description;
+        final boolean discrepancy;
+        
+        Kind(String description) {
+            this(description, true);
+        }
+        
+        Kind(String description, boolean discrepancy) {
+            this.description = description;
+            this.discrepancy = discrepancy;
+        }
+    }
+    
+    static final int MAX_LISTED = 1000;
+    
+    // One discrepancy; entry is the index in the account's history, or -1 if it is not one entry.
+    // Balance kinds carry the expected and found balances, the others the entry's amount.
+    static final class Discrepancy {
+        final Kind kind;
+        final String userId;
+        final int entry;
+        final long expectedCents;
+        final long actualCents;
+        final String detail;
+        
+        Discrepancy(Kind kind, String userId, int entry, long expectedCents, long actualCents, String detail) {
+            this.kind = kind;
+            this.userId = userId;
+            this.entry = entry;
+            this.expectedCents = expectedCents;
+            this.actualCents = actualCents;
+            this.detail = detail;
+        }
+        
+        @Override
+        public String toString() {
+            String where = entry >= 0 ? userId + " entry " + entry : userId;
+            String text = kind + " " + where + ": " + (detail != null ? detail + ", " : "");
+            if (kind == Kind.BROKEN_RUNNING_BALANCE || kind == Kind.BALANCE_NOT_EXPLAINED) {
+                return text + "expected $" + Account.toDollars(expectedCents) + ", found $" + Account.toDollars(actualCents);
+            }
+            return text + "amount $" + Account.toDollars(actualCents);
+        }
+    }
+    
+    long accounts;
+    long entries;
+    long transfersPaired;
+    long transfersAfterCutoff;
+    long totalBalanceCents;
+    long cutoff;
+    long elapsedNanos;
+    final long[] counts = new long[Kind.values().length];
+    final ArrayList<Discrepancy> listed = new ArrayList<>();
+    
+    void add(Kind kind, String userId, int entry, long expectedCents, long actualCents) {
+        add(kind, userId, entry, expectedCents, actualCents, null);
+    }
+    
+    void add(Kind kind, String userId, int entry, long expectedCents, long actualCents, String detail) {
+        counts[kind.ordinal()]++;
+        if (listed.size() < MAX_LISTED) {
+            listed.add(new Discrepancy(kind, userId, entry, expectedCents, actualCents, detail));
+        }
+    }
+    
+    void merge(ReconciliationReport other) {
+        accounts += other.accounts;
+        entries += other.entries;
+        transfersPaired += other.transfersPaired;
+        transfersAfterCutoff += other.transfersAfterCutoff;
+        totalBalanceCents += other.totalBalanceCents;
+        for (int k = 0; k < counts.length; k++) {
+            counts[k] += other.counts[k];
+        }
+        for (Discrepancy discrepancy : other.listed) {
+            if (listed.size() >= MAX_LISTED) {
+                break;
+            }
+            listed.add(discrepancy);
+        }
+    }
+    
+    long getDiscrepancyCount() {
+        long total = 0;
+        for (Kind kind : Kind.values()) {
+            if (kind.discrepancy) {
+                total += counts[kind.ordinal()];
+            }
+        }
+        return total;
+    }
+    
+    boolean isClean() {
+        return getDiscrepancyCount() == 0;
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("Reconciled %d accounts, %d history entries, %d transfer pairs in %.0f ms%n",
+                accounts, entries, transfersPaired, elapsedNanos / 1e6));
+        text.append(String.format("Total balance: $%.2f%n", Account.toDollars(totalBalanceCents)));
+        if (transfersAfterCutoff > 0) {
+            text.append(transfersAfterCutoff).append(" transfer entries made during the run were not paired\n");
+        }
+        if (isClean()) {
+            text.append("No discrepancies found.\n");
+        } else {
+            text.append(getDiscrepancyCount()).append(" discrepancies:\n");
+        }
+        for (Kind kind : Kind.values()) {
+            if (counts[kind.ordinal()] > 0) {
+                text.append("  ").append(kind).append(": ").append(counts[kind.ordinal()])
+                        .append(" (").append(kind.description).append(")\n");
+            }
+        }
+        for (Discrepancy discrepancy : listed) {
+            text.append(discrepancy).append('\n');
+        }
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (listed.size() < total) {
+            text.append("... first ").append(listed.size()).append(" shown\n");
+        }
+        return text.toString();
+    }
+}
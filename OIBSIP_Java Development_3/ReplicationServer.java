@@ -0,0 +1,187 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+// Primary side of log shipping to warm standbys (ATMStandby). A standby that connects gets a
+// consistent copy of the data files, then every batch of ledger records as soon as it is
+// durable, in the order the ledgers made them durable. Replication is asynchronous: commits
+// never wait for a standby. One that falls more than -Datm.replication.maxQueuedMB (default 64)
+// behind is cut off, and starts over with a fresh copy when it reconnects.
+// Stream: MAGIC, VERSION, data file name, shard count, binary snapshots flag; then FILE messages
+// (name, length, bytes) up to READY; then BATCH (shard, flush time, length, frames) and HEARTBEAT
+// messages. Every message after READY starts with its send time and the primary's durable
+// sequence per shard, so the standby can tell how far behind it is.
+class ReplicationServer implements Closeable {
+    static final int MAGIC = 0x41544D4C; // "ATML"
+    static final int VERSION = 1;
+    static final byte FILE = 'F';
+    static final byte READY = 'R';
+    static final byte BATCH = 'B';
+    static final byte HEARTBEAT = 'H';
+    private static final long HEARTBEAT_MILLIS = 1000;
+    private static final long MAX_QUEUED_BYTES = Long.getLong("atm.replication.maxQueuedMB", 64) << 20;
+    
+    private static final class Batch {
+        final int shard;
+        final long flushedAt = System.currentTimeMillis();
+        final byte[] frames;
+        
+        Batch(int shard, byte[] frames) {
+            this.shard = shard;
+            this.frames = frames;
+        }
+    }
+    
+    // One connected standby, fed by its own sender thread
+    private final class Standby {
+        final Socket socket;
+        final LinkedBlockingQueue<Batch> queue = new LinkedBlockingQueue<>();
+        final java.util.concurrent.atomic.AtomicLong queuedBytes = new java.util.concurrent.atomic.AtomicLong();
+        volatile boolean stopping; // Send what is queued, then hang up
+        
+        Standby(Socket socket) {
+            this.socket = socket;
+        }
+        
+        void offer(Batch batch) {
+            if (queuedBytes.addAndGet(batch.frames.length) > MAX_QUEUED_BYTES) {
+                System.err.println("Standby " + socket.getRemoteSocketAddress() + " fell too far behind; disconnecting it");
+                drop();
+                return;
+            }
+            queue.add(batch);
+        }
+        
+        void drop() {
+            standbys.remove(this);
+            try {
+                socket.close(); // Also stops the sender, whose next write fails
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+        
+        void run() {
+            try {
+                socket.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+                LinkedHashMap<String, byte[]> files = manager.copyForStandby(() -> standbys.add(this));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(manager.getDataFileName());
+                out.writeInt(manager.getShardCount());
+                out.writeBoolean(ATMManager.binarySnapshots());
+                for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                    out.writeByte(FILE);
+                    out.writeUTF(file.getKey());
+                    out.writeInt(file.getValue().length);
+                    out.write(file.getValue());
+                }
+                files = null; // Let the copy go before streaming
+                out.writeByte(READY);
+                out.flush();
+                System.out.println("Standby " + socket.getRemoteSocketAddress() + " connected.");
+                while (true) {
+                    Batch batch = queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                    if (batch == null && stopping) {
+                        break;
+                    }
+                    out.writeByte(batch != null ? BATCH : HEARTBEAT);
+                    out.writeLong(System.currentTimeMillis());
+                    for (long sequence : manager.getDurableSequences()) {
+                        out.writeLong(sequence);
+                    }
+                    if (batch != null) {
+                        queuedBytes.addAndGet(-batch.frames.length);
+                        out.writeInt(batch.shard);
+                        out.writeLong(batch.flushedAt);
+                        out.writeInt(batch.frames.length);
+                        out.write(batch.frames);
+                    }
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!socket.isClosed()) {
+                    System.err.println("Standby " + socket.getRemoteSocketAddress() + " disconnected: " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                drop();
+                senders.remove(Thread.currentThread());
+            }
+        }
+    }
+    
+    private final ATMManager manager;
+    private final ServerSocket server;
+    private final CopyOnWriteArrayList<Standby> standbys = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<Thread> senders = new CopyOnWriteArrayList<>();
+    
+    ReplicationServer(ATMManager manager, int port) throws IOException {
+        this.manager = manager;
+        this.server = new ServerSocket(port);
+        Thread acceptor = new Thread(this::accept, "atm-replication");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+    
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Standby standby = new Standby(server.accept());
+                Thread sender = new Thread(standby::run, "atm-replication-" + standby.socket.getRemoteSocketAddress());
+                sender.setDaemon(true);
+                senders.add(sender);
+                sender.start();
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    System.err.println("Error accepting a standby: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    // The shipper of shard's ledger; runs on its flusher thread
+    void shipped(int shard, byte[] frames) {
+        if (standbys.isEmpty()) {
+            return;
+        }
+        Batch batch = new Batch(shard, frames);
+        for (Standby standby : standbys) {
+            standby.offer(batch);
+        }
+    }
+    
+    int getStandbyCount() {
+        return standbys.size();
+    }
+    
+    // Stops accepting standbys and gives each up to five seconds to receive what is queued
+    @Override
+    public void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            System.err.println("Error closing replication port: " + e.getMessage());
+        }
+        for (Standby standby : standbys) {
+            standby.stopping = true;
+        }
+        for (Thread sender : senders) {
+            try {
+                sender.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (Standby standby : standbys) {
+            standby.drop();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+// Recent client request IDs and their results, so a request retried after a timeout is answered
+// from here instead of running twice. Keyed by account and request ID; entries expire after
+// -Datm.requestTtlSeconds (default a day), and past -Datm.requestCacheSize entries (default
+// 100,000) the oldest go first. Applied requests reach disk with their ledger records and, once a
+// snapshot lets those go, in the shard's .requests file; refused ones are remembered until restart.
+class RequestCache {
+    private static final long TTL_MILLIS = Long.getLong("atm.requestTtlSeconds", 86400) * 1000;
+    private static final int MAX_ENTRIES = Math.max(1, Integer.getInteger("atm.requestCacheSize", 100000));
+    private static final int MAGIC = 0x41544D52; // "ATMR"
+    
+    private static final class Entry {
+        final String userId;
+        final String requestId;
+        final long time;
+        final CompletableFuture<ATMService.Result> result = new CompletableFuture<>();
+        volatile boolean logged; // Its change was written to the ledger, so it outlives a restart
+        
+        Entry(String userId, String requestId, long time) {
+            this.userId = userId;
+            this.requestId = requestId;
+            this.time = time;
+        }
+    }
+    
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry> order = new ConcurrentLinkedQueue<>(); // Oldest first
+    private final java.util.concurrent.atomic.AtomicInteger queued = new java.util.concurrent.atomic.AtomicInteger();
+    
+    // Runs the operation once per request ID. A repeat is answered with the first result, waiting
+    // for it if the first attempt is still running; an attempt that throws is forgotten, so its
+    // retry runs again. Without a request ID the operation just runs.
+    ATMService.Result execute(String userId, String requestId, java.util.function.Supplier<ATMService.Result> operation) {
+        if (requestId == null) {
+            return operation.get();
+        }
+        String key = key(userId, requestId);
+        Entry entry = new Entry(userId, requestId, System.currentTimeMillis());
+        Entry existing = claim(key, entry);
+        if (existing != null) {
+            try {
+                return existing.result.join();
+            } catch (CompletionException e) {
+                throw (RuntimeException) e.getCause();
+            }
+        }
+        try {
+            ATMService.Result result = operation.get();
+            entry.result.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            entries.remove(key, entry);
+            entry.result.completeExceptionally(e);
+            throw e;
+        }
+    }
+    
+    // Called as a change made for a request is written to the ledger, and for each such change
+    // replayed from it; a request seen only here applied successfully
+    void recorded(String userId, String requestId, long time) {
+        String key = key(userId, requestId);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(userId, requestId, time);
+            entry.result.complete(ATMService.Result.OK);
+            if (expired(entry, System.currentTimeMillis()) || claim(key, entry) != null) {
+                return;
+            }
+        }
+        entry.logged = true;
+    }
+    
+    int size() {
+        return entries.size();
+    }
+    
+    // Saves the logged entries of the accounts the filter picks, replacing the file atomically
+    void write(File file, java.util.function.Predicate<String> userIds) throws IOException {
+        long now = System.currentTimeMillis();
+        ArrayList<Entry> saved = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.logged && !expired(entry, now) && userIds.test(entry.userId)) {
+                saved.add(entry);
+            }
+        }
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(tempFile)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(saved.size());
+            for (Entry entry : saved) {
+                out.writeUTF(entry.userId);
+                out.writeUTF(entry.requestId);
+                out.writeLong(entry.time);
+            }
+            out.flush();
+            stream.getChannel().force(true);
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    void read(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file.getName() + " is not an ATM request file");
+            }
+            for (int count = in.readInt(); count > 0; count--) {
+                recorded(in.readUTF(), in.readUTF(), in.readLong());
+            }
+        }
+    }
+    
+    // Inserts the entry unless a live one already holds the key, and returns that one
+    private Entry claim(String key, Entry entry) {
+        while (true) {
+            Entry existing = entries.putIfAbsent(key, entry);
+            if (existing == null || (expired(existing, entry.time) && entries.replace(key, existing, entry))) {
+                break;
+            }
+            if (!expired(existing, entry.time)) {
+                return existing;
+            }
+        }
+        order.add(entry);
+        queued.incrementAndGet();
+        Entry oldest;
+        while ((oldest = order.peek()) != null && (queued.get() > MAX_ENTRIES || expired(oldest, entry.time))) {
+            oldest = order.poll();
+            if (oldest == null) {
+                break;
+            }
+            queued.decrementAndGet();
+            entries.remove(key(oldest.userId, oldest.requestId), oldest);
+        }
+        return null;
+    }
+    
+    private static boolean expired(Entry entry, long now) {
+        return now - entry.time > TTL_MILLIS;
+    }
+    
+    private static String key(String userId, String requestId) {
+        return userId + '/' + requestId;
+    }
+}
@@ -0,0 +1,28 @@
+import java.util.*;
+import java.io.*;
+
+// Converts snapshots between the JSON and binary formats (direction taken from the file extensions).
+// Run while the ATM is stopped, so the snapshot already includes the whole ledger:
+//   java SnapshotConverter atm_data.json atm_data.bin
+class SnapshotConverter {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: java SnapshotConverter <from.json|from.bin> <to.bin|to.json>");
+            return;
+        }
+        File from = new File(args[0]);
+        File to = new File(args[1]);
+        HashMap<String, Account> accounts = new HashMap<>();
+        UserIdAllocator userIds = new UserIdAllocator();
+        long sequence = from.getName().endsWith(".bin")
+                ? BinarySnapshot.read(from, accounts, userIds)
+                : ATMManager.readJsonSnapshot(from, accounts, userIds);
+        UserIdAllocator carried = userIds.isRestored() ? userIds : null;
+        if (to.getName().endsWith(".bin")) {
+            BinarySnapshot.write(to, sequence, accounts.values(), carried);
+        } else {
+            ATMManager.writeJsonSnapshot(to, sequence, accounts.values(), carried, true);
+        }
+        System.out.println("Converted " + accounts.size() + " accounts from " + from + " to " + to);
+    }
+}
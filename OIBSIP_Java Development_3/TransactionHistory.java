@@ -0,0 +1,316 @@
+import java.util.*;
+import java.io.*;
+
+// Transaction history kept as parallel primitive columns instead of formatted Strings:
+// about 33 bytes an entry rather than a ~150-byte String, and no text is built until
+// an entry is displayed. One writer appends under the account lock; readers may read
+// every entry below size() without locking, because size is published last.
+class TransactionHistory {
+    static final byte CREATED = 0;
+    static final byte DEPOSIT = 1;
+    static final byte WITHDRAWAL = 2;
+    static final byte TRANSFER_OUT = 3;
+    static final byte TRANSFER_IN = 4;
+    static final byte NOTE = 5; // Legacy text that could not be parsed, kept verbatim
+    // First entry of a history whose older entries were archived: amount is how many entries the
+    // archive holds, balance and time are those of the newest archived entry
+    static final byte CARRIED_FORWARD = 6;
+    
+    private static final String[] TYPE_NAMES = {"CREATED", "DEPOSIT", "WITHDRAWAL", "TRANSFER_OUT", "TRANSFER_IN", "NOTE", "CARRIED_FORWARD"};
+    private static final java.time.format.DateTimeFormatter TIMESTAMP = java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final java.util.regex.Pattern LEGACY_ENTRY = java.util.regex.Pattern.compile(
+            "(\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}) - (?:"
+            + "Account created with initial balance: \\$([-\\d.E]+)"
+            + "|Deposit: \\+\\$([-\\d.E]+) \\| Balance: \\$([-\\d.E]+)"
+            + "|Withdrawal: -\\$([-\\d.E]+) \\| Balance: \\$([-\\d.E]+)"
+            + "|Transfer: -\\$([-\\d.E]+) to (.*) \\| Balance: \\$([-\\d.E]+))");
+    // Marks a counterparty that is a legacy display name rather than a user ID, which never has a colon
+    private static final String LEGACY_NAME = "name:";
+    
+    // Replaced as a whole when it grows, so a reader always sees matching arrays
+    private static final class Columns {
+        final long[] times;
+        final byte[] types;
+        final long[] amounts;
+        final long[] balances;
+        final String[] counterparties; // Allocated on the first transfer or note
+        
+        Columns(int capacity, boolean withCounterparties) {
+            times = new long[capacity];
+            types = new byte[capacity];
+            amounts = new long[capacity];
+            balances = new long[capacity];
+            counterparties = withCounterparties ? new String[capacity] : null;
+        }
+        
+        Columns copy(int capacity, boolean withCounterparties, int size) {
+            Columns grown = new Columns(capacity, withCounterparties || counterparties != null);
+            System.arraycopy(times, 0, grown.times, 0, size);
+            System.arraycopy(types, 0, grown.types, 0, size);
+            System.arraycopy(amounts, 0, grown.amounts, 0, size);
+            System.arraycopy(balances, 0, grown.balances, 0, size);
+            if (counterparties != null) {
+                System.arraycopy(counterparties, 0, grown.counterparties, 0, size);
+            }
+            return grown;
+        }
+    }
+    
+    private Columns columns;
+    private volatile int size;
+    private boolean legacyNames; // Some transfer was imported with a name in place of the user ID
+    
+    TransactionHistory() {
+        this(8);
+    }
+    
+    TransactionHistory(int capacity) {
+        columns = new Columns(Math.max(capacity, 1), false);
+    }
+    
+    int size() {
+        return size;
+    }
+    
+    long getTime(int i) {
+        return columns.times[i];
+    }
+    
+    byte getType(int i) {
+        return columns.types[i];
+    }
+    
+    long getAmountCents(int i) {
+        return columns.amounts[i];
+    }
+    
+    // Balance right after the entry was applied
+    long getBalanceCents(int i) {
+        return columns.balances[i];
+    }
+    
+    // User ID of the other side of a transfer, or the original text of a note
+    String getCounterparty(int i) {
+        String[] counterparties = columns.counterparties;
+        return counterparties != null ? counterparties[i] : null;
+    }
+    
+    void add(long time, byte type, long amountCents, long balanceCents, String counterparty) {
+        int n = size;
+        Columns c = columns;
+        boolean needsCounterparties = counterparty != null && c.counterparties == null;
+        if (n == c.times.length || needsCounterparties) {
+            int capacity = n == c.times.length ? n + (n >> 1) + 1 : c.times.length;
+            c = c.copy(capacity, needsCounterparties, n);
+            columns = c;
+        }
+        c.times[n] = time;
+        c.types[n] = type;
+        c.amounts[n] = amountCents;
+        c.balances[n] = balanceCents;
+        if (c.counterparties != null) {
+            c.counterparties[n] = counterparty;
+        }
+        size = n + 1; // Publishes the entry, and any grown columns, to lock-free readers
+    }
+    
+    // Appends entries [from, to) of another history
+    void addFrom(TransactionHistory other, int from, int to) {
+        for (int i = from; i < to; i++) {
+            add(other.getTime(i), other.getType(i), other.getAmountCents(i), other.getBalanceCents(i), other.getCounterparty(i));
+        }
+    }
+    
+    // Imports one "yyyy-MM-dd HH:mm:ss - ..." line from a file written before this format.
+    // Legacy transfers only carry the recipient's name, kept as a marked counterparty until
+    // ATMManager resolves it to a user ID once every account is loaded.
+    void addLegacy(String line) {
+        java.util.regex.Matcher m = LEGACY_ENTRY.matcher(line);
+        if (!m.matches()) {
+            add(size > 0 ? getTime(size - 1) : 0, NOTE, 0, 0, line); // Keeps the times in order
+            return;
+        }
+        long time = java.time.LocalDateTime.parse(m.group(1), TIMESTAMP).atZone(java.time.ZoneId.systemDefault()).toInstant().toEpochMilli();
+        if (m.group(2) != null) {
+            long initial = parseCents(m.group(2));
+            add(time, CREATED, initial, initial, null);
+        } else if (m.group(3) != null) {
+            add(time, DEPOSIT, parseCents(m.group(3)), parseCents(m.group(4)), null);
+        } else if (m.group(5) != null) {
+            add(time, WITHDRAWAL, parseCents(m.group(5)), parseCents(m.group(6)), null);
+        } else {
+            add(time, TRANSFER_OUT, parseCents(m.group(7)), parseCents(m.group(9)), LEGACY_NAME + m.group(8));
+            legacyNames = true;
+        }
+    }
+    
+    boolean hasLegacyNames() {
+        return legacyNames;
+    }
+    
+    // The display name a legacy transfer was imported with, or null if the counterparty is a user ID
+    static String legacyName(String counterparty) {
+        return counterparty != null && counterparty.startsWith(LEGACY_NAME) ? counterparty.substring(LEGACY_NAME.length()) : null;
+    }
+    
+    // Rewrites an imported entry once its counterparty is known. Only for loading, before the
+    // history is shared with readers.
+    void relabel(int i, byte type, String counterparty) {
+        if (columns.counterparties == null) {
+            columns = columns.copy(columns.times.length, true, size);
+        }
+        columns.types[i] = type;
+        columns.counterparties[i] = counterparty;
+    }
+    
+    private static long parseCents(String dollars) {
+        return Account.toCents(Double.parseDouble(dollars));
+    }
+    
+    long getLastTime() {
+        int n = size;
+        return n > 0 ? getTime(n - 1) : 0;
+    }
+    
+    // First entry at or after the time among the first size entries. Entries are appended in
+    // time order (legacy notes without a time sort first), so this is a binary search.
+    int firstAtOrAfter(long time, int size) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getTime(middle) < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+    
+    // Balance left by the last entry before the time, among the first size entries, or 0 if the
+    // account did not exist yet. Every entry records the balance after it, so each one is a
+    // checkpoint and the answer is one binary search away, with nothing replayed.
+    long balanceBefore(long time, int size) {
+        int i = firstAtOrAfter(time, size) - 1;
+        while (i >= 0 && getType(i) == NOTE) {
+            i--; // Unparsed legacy text has no balance; the entry before it does
+        }
+        return i >= 0 ? getBalanceCents(i) : 0;
+    }
+    
+    // Indexes of the entries in [from, to) whose type bit (1 << type) is set in the mask
+    int[] indexesOfTypes(int from, int to, int typeMask) {
+        int[] indexes = new int[Math.max(0, to - from)];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if ((typeMask & (1 << getType(i))) != 0) {
+                indexes[count++] = i;
+            }
+        }
+        return Arrays.copyOf(indexes, count);
+    }
+    
+    static String typeName(byte type) {
+        return TYPE_NAMES[type];
+    }
+    
+    static byte typeOf(String name) {
+        for (byte type = 0; type < TYPE_NAMES.length; type++) {
+            if (TYPE_NAMES[type].equals(name)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown transaction type: " + name);
+    }
+    
+    // Renders an entry in the text the ATM has always shown. The lookup maps a counterparty
+    // user ID to a display name; without one (or for unknown IDs) the ID itself is shown.
+    String format(int i, java.util.function.Function<String, String> counterpartyNames) {
+        byte type = getType(i);
+        String counterparty = getCounterparty(i);
+        if (type == NOTE) {
+            return counterparty;
+        }
+        StringBuilder text = new StringBuilder(96);
+        text.append(TIMESTAMP.format(java.time.Instant.ofEpochMilli(getTime(i)).atZone(java.time.ZoneId.systemDefault())));
+        text.append(" - ");
+        double amount = Account.toDollars(getAmountCents(i));
+        switch (type) {
+            case CREATED:
+                return text.append("Account created with initial balance: $").append(amount).toString();
+            case CARRIED_FORWARD:
+                text.append("Balance carried forward from ").append(getAmountCents(i)).append(" archived transactions");
+                break;
+            case DEPOSIT:
+                text.append("Deposit: +$").append(amount);
+                break;
+            case WITHDRAWAL:
+                text.append("Withdrawal: -$").append(amount);
+                break;
+            case TRANSFER_OUT:
+                text.append("Transfer: -$").append(amount).append(" to ").append(displayName(counterparty, counterpartyNames));
+                break;
+            default:
+                text.append("Transfer: +$").append(amount).append(" from ").append(displayName(counterparty, counterpartyNames));
+        }
+        return text.append(" | Balance: $").append(Account.toDollars(getBalanceCents(i))).toString();
+    }
+    
+    private static String displayName(String userId, java.util.function.Function<String, String> counterpartyNames) {
+        String name = legacyName(userId);
+        if (name != null) {
+            return name;
+        }
+        name = counterpartyNames != null ? counterpartyNames.apply(userId) : null;
+        return name != null ? name : userId;
+    }
+    
+    // Each entry is a compact array: [time, "TYPE", amountCents, balanceCents(, counterparty)]
+    void writeJSON(JSONWriter writer) throws IOException {
+        int n = size;
+        writer.beginArray();
+        for (int i = 0; i < n; i++) {
+            writer.beginArray();
+            writer.value(getTime(i)).value(typeName(getType(i))).value(getAmountCents(i)).value(getBalanceCents(i));
+            String counterparty = getCounterparty(i);
+            if (counterparty != null) {
+                writer.value(counterparty);
+            }
+            writer.endArray();
+        }
+        writer.endArray();
+    }
+    
+    void readJSON(JSONReader reader) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            reader.beginArray();
+            long time = reader.nextLong();
+            byte type = typeOf(reader.nextString());
+            long amount = reader.nextLong();
+            long balance = reader.nextLong();
+            String counterparty = reader.hasNext() ? reader.nextString() : null;
+            reader.endArray();
+            add(time, type, amount, balance, counterparty);
+        }
+        reader.endArray();
+    }
+    
+    JSONArray toJSON() {
+        JSONArray entries = new JSONArray();
+        int n = size;
+        for (int i = 0; i < n; i++) {
+            JSONArray entry = new JSONArray();
+            entry.put(getTime(i));
+            entry.put(typeName(getType(i)));
+            entry.put(getAmountCents(i));
+            entry.put(getBalanceCents(i));
+            if (getCounterparty(i) != null) {
+                entry.put(getCounterparty(i));
+            }
+            entries.put(entry);
+        }
+        return entries;
+    }
+}
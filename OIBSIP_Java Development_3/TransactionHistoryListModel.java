@@ -0,0 +1,88 @@
+import javax.swing.*;
+import java.util.*;
+
+// Virtual list over one account's history for the history dialog. The JList asks only for the
+// rows on screen; they are formatted a page at a time and a few recent pages are cached.
+// Date ranges are found by binary search, and a type filter keeps an int index of the matching
+// entries, so no filter ever formats the entries it skips.
+class TransactionHistoryListModel extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L;
+    static final int ALL_TYPES = -1;
+    private static final int PAGE_SIZE = 100;
+    private static final int CACHED_PAGES = 16;
+    
+    private final HistoryView history;
+    private final java.util.function.Function<String, String> counterpartyNames;
+    private final int historySize; // Entries that existed when the dialog opened
+    private boolean newestFirst = true;
+    private int start; // Entries in [start, end) fall inside the date range
+    private int end;
+    private int[] matches; // Entry indexes passing the type filter; null when every type is shown
+    private final LinkedHashMap<Integer, ArrayList<String>> pages = new LinkedHashMap<Integer, ArrayList<String>>(CACHED_PAGES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, ArrayList<String>> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+    
+    TransactionHistoryListModel(Account account, java.util.function.Function<String, String> counterpartyNames) {
+        this.history = account.getHistoryView();
+        this.counterpartyNames = counterpartyNames;
+        this.historySize = history.size();
+        this.end = historySize;
+    }
+    
+    int getTotalSize() {
+        return historySize;
+    }
+    
+    void setNewestFirst(boolean newestFirst) {
+        this.newestFirst = newestFirst;
+        changed();
+    }
+    
+    // Shows entries with fromTime <= time < toTime whose type bit is in the mask
+    void setFilter(long fromTime, long toTime, int typeMask) {
+        start = history.firstAtOrAfter(fromTime);
+        end = Math.max(start, history.firstAtOrAfter(toTime));
+        matches = typeMask == ALL_TYPES ? null : history.indexesOfTypes(start, end, typeMask);
+        changed();
+    }
+    
+    private void changed() {
+        pages.clear();
+        fireContentsChanged(this, 0, Math.max(0, getSize() - 1));
+    }
+    
+    @Override
+    public int getSize() {
+        return matches != null ? matches.length : end - start;
+    }
+    
+    @Override
+    public String getElementAt(int position) {
+        int page = position / PAGE_SIZE;
+        ArrayList<String> lines = pages.get(page);
+        if (lines == null) {
+            lines = loadPage(page * PAGE_SIZE, Math.min(PAGE_SIZE, getSize() - page * PAGE_SIZE));
+            pages.put(page, lines);
+        }
+        return lines.get(position % PAGE_SIZE);
+    }
+    
+    // Archived entries are paged in from disk here, a segment at a time
+    private ArrayList<String> loadPage(int first, int count) {
+        ArrayList<String> lines = new ArrayList<>(count);
+        for (int k = 0; k < count; k++) {
+            int position = first + k;
+            int index;
+            if (matches == null) {
+                index = newestFirst ? end - 1 - position : start + position;
+            } else {
+                index = matches[newestFirst ? matches.length - 1 - position : position];
+            }
+            lines.add(history.format(index, counterpartyNames));
+        }
+        return lines;
+    }
+}
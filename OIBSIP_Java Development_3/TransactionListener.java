@@ -0,0 +1,25 @@
+// Receives every account change before it is applied, so it can be written ahead to the ledger
+interface TransactionListener {
+    void transactionRecorded(LedgerRecord record);
+    
+    // Called once the change is applied, while the account is still locked; must not block
+    default void transactionApplied(Account account) {
+    }
+    
+    // A transfer whose sides go to different ledgers is recorded through the commit returned
+    // here instead of transactionRecorded; null if one record will do
+    default TwoPhaseCommit twoPhaseCommit(String senderId, String recipientId) {
+        return null;
+    }
+    
+    // Records one transfer in two phases
+    interface TwoPhaseCommit {
+        // Writes the PREPARE records; called with both accounts locked
+        void prepare(LedgerRecord transfer);
+        
+        // Waits for them to be durable, then writes and waits for the COMMIT records; called with
+        // the locks released, while both accounts are held in doubt. Throws UncheckedIOException
+        // if a ledger fails, and the transfer is then not applied.
+        void commit();
+    }
+}
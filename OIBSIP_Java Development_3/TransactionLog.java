@@ -0,0 +1,300 @@
+import java.util.*;
+import java.util.zip.CRC32;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Append-only write-ahead ledger with group commit. Appends only copy the record into
+// a memory buffer; a single flusher thread writes and fsyncs whatever has accumulated,
+// so many concurrent commits share one fsync.
+class TransactionLog implements Closeable {
+    private static final long FLUSH_INTERVAL_MILLIS = 10;
+    private static final ATMMetrics metrics = ATMMetrics.get();
+    
+    private final File file;
+    private final Object ioLock = new Object();
+    private FileChannel channel;
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private DataOutputStream out = new DataOutputStream(buffer);
+    private long lastSequence;
+    private long durableSequence;
+    private boolean flushRequested;
+    private boolean closed;
+    private IOException failure;
+    private final Thread flusher;
+    // Handed each batch of frames once it is on disk, in ledger order; see ReplicationServer
+    private volatile java.util.function.Consumer<byte[]> shipper;
+    
+    // Opens the active segment for appending after the given sequence, dropping any torn tail
+    TransactionLog(File file, long lastSequence, long validLength) throws IOException {
+        this.file = file;
+        this.lastSequence = lastSequence;
+        this.durableSequence = lastSequence;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(validLength);
+        channel.position(validLength);
+        
+        flusher = new Thread(this::flushLoop, "atm-ledger-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+    
+    // Assigns the next sequence number and buffers the record; does not wait for the disk
+    long append(LedgerRecord record) {
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Ledger is closed");
+            }
+            record.sequence = ++lastSequence;
+            byte[] payload = record.encode();
+            if (buffer.size() == 0) {
+                notifyAll(); // Wake the flusher to start a new group
+            }
+            writeFrame(out, payload);
+            return record.sequence;
+        }
+    }
+    
+    synchronized long getLastSequence() {
+        return lastSequence;
+    }
+    
+    synchronized long getDurableSequence() {
+        return durableSequence;
+    }
+    
+    // Appends a record shipped from a primary's ledger, which must keep the primary's sequence
+    // number; a standby's ledger starts from a copy of the primary's, so they stay in step
+    long appendReplica(LedgerRecord record) {
+        synchronized (this) {
+            if (record.sequence != lastSequence + 1) {
+                throw new IllegalStateException("Replicated record " + record.sequence + " does not follow " + lastSequence);
+            }
+            return append(record);
+        }
+    }
+    
+    // Called with the frames of each batch after its fsync and before any waiter is told, while
+    // holding the flush lock; must not block
+    void setShipper(java.util.function.Consumer<byte[]> shipper) {
+        this.shipper = shipper;
+    }
+    
+    // Held while a batch is written. Holding it keeps the active segment at exactly the durable
+    // records and holds back the next batch, and with it the next shipment.
+    Object flushLock() {
+        return ioLock;
+    }
+    
+    // Blocks until every record up to the given sequence has been fsynced
+    void awaitDurable(long sequence) throws IOException {
+        synchronized (this) {
+            while (durableSequence < sequence) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (!flushRequested) {
+                    // Only the first waiter wakes the flusher; if every waiter notified, they
+                    // would keep waking each other and starve the flusher of this monitor
+                    flushRequested = true;
+                    notifyAll();
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for ledger flush");
+                }
+            }
+        }
+    }
+    
+    private void flushLoop() {
+        while (true) {
+            synchronized (this) {
+                try {
+                    while (buffer.size() == 0 && !closed) {
+                        wait();
+                    }
+                    if (!flushRequested && !closed) {
+                        wait(FLUSH_INTERVAL_MILLIS); // Let a group of records gather
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed && buffer.size() == 0) {
+                    return;
+                }
+                flushRequested = false;
+            }
+            flushBatch();
+        }
+    }
+    
+    private void flushBatch() {
+        synchronized (ioLock) {
+            ByteArrayOutputStream batch;
+            long batchEnd;
+            synchronized (this) {
+                if (buffer.size() == 0) {
+                    return;
+                }
+                batch = buffer;
+                batchEnd = lastSequence;
+                buffer = new ByteArrayOutputStream(Math.max(32, batch.size()));
+                out = new DataOutputStream(buffer);
+            }
+            long start = System.nanoTime();
+            try {
+                byte[] frames = batch.toByteArray();
+                ByteBuffer bytes = ByteBuffer.wrap(frames);
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                channel.force(false);
+                metrics.ledgerFlushed(start, batch.size());
+                java.util.function.Consumer<byte[]> target = shipper;
+                if (target != null) {
+                    // Before waiters are released, so a COMMIT that follows this batch elsewhere
+                    // is always shipped after it
+                    target.accept(frames);
+                }
+                synchronized (this) {
+                    durableSequence = batchEnd;
+                    notifyAll();
+                }
+            } catch (IOException e) {
+                metrics.failed(ATMMetrics.Operation.LEDGER_FLUSH, start);
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                System.err.println("Error writing ledger: " + e.getMessage());
+            }
+        }
+    }
+    
+    // Closes the active segment and starts a new one. Returns the last sequence in the
+    // closed segment; a snapshot taken after this call covers every record up to it.
+    long roll() throws IOException {
+        synchronized (ioLock) {
+            flushBatch();
+            long sealed;
+            synchronized (this) {
+                if (failure != null) {
+                    throw failure;
+                }
+                sealed = durableSequence;
+            }
+            if (channel.size() > 0) {
+                channel.close();
+                Files.move(file.toPath(), segmentFile(file, sealed).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+            return sealed;
+        }
+    }
+    
+    // Removes sealed segments whose records are all covered by a snapshot
+    void deleteSegmentsThrough(long sequence) {
+        for (File segment : sealedSegments(file)) {
+            if (segmentEnd(segment) <= sequence && !segment.delete()) {
+                System.err.println("Could not delete ledger segment " + segment.getName());
+            }
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushBatch();
+        synchronized (ioLock) {
+            channel.close();
+        }
+    }
+    
+    static File segmentFile(File active, long lastSequence) {
+        return new File(active.getPath() + "." + lastSequence);
+    }
+    
+    static long segmentEnd(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(name.lastIndexOf('.') + 1));
+    }
+    
+    // Sealed segments in sequence order (the active segment is not included)
+    static ArrayList<File> sealedSegments(File active) {
+        ArrayList<File> segments = new ArrayList<>();
+        File dir = active.getAbsoluteFile().getParentFile();
+        String prefix = active.getName() + ".";
+        File[] files = dir.listFiles((d, n) -> n.startsWith(prefix) && n.substring(prefix.length()).matches("\\d+"));
+        if (files != null) {
+            segments.addAll(Arrays.asList(files));
+        }
+        segments.sort(Comparator.comparingLong(TransactionLog::segmentEnd));
+        return segments;
+    }
+    
+    // Feeds every intact record of a segment to the consumer; returns the length of the intact prefix
+    static long replay(File segment, java.util.function.Consumer<LedgerRecord> consumer) throws IOException {
+        if (!segment.exists()) {
+            return 0;
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(segment))) {
+            return replay(in, consumer);
+        }
+    }
+    
+    // The same for frames from any stream, such as a batch shipped by a primary
+    static long replay(InputStream stream, java.util.function.Consumer<LedgerRecord> consumer) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        long validLength = 0;
+        byte[] payload;
+        while ((payload = readFrame(in)) != null) {
+            consumer.accept(LedgerRecord.decode(payload));
+            validLength += payload.length + 8;
+        }
+        return validLength;
+    }
+    
+    // Frame layout: [int length][payload][int crc32 of payload]
+    private static void writeFrame(DataOutputStream out, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        try {
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeInt((int) crc.getValue());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // ByteArrayOutputStream never throws
+        }
+    }
+    
+    // Returns null at end of file or at a torn/corrupt tail
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length <= 0 || length > 1 << 20) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            return in.readInt() == (int) crc.getValue() ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+// Hands out user IDs in O(1) from a space of 900 million, without probing for free ones.
+// A counter is run through a keyed permutation of the space (a small Feistel network with
+// cycle walking), so every index maps to a distinct ID and consecutive accounts get
+// unrelated-looking IDs that reveal nothing about how many accounts exist. The key and
+// counter are saved in the snapshot. This hides the sequence; it is not encryption.
+class UserIdAllocator {
+    static final long FIRST_ID = 100_000_000L; // IDs run USER100000000..USER999999999
+    static final long CAPACITY = 900_000_000L;
+    private static final int HALF_BITS = 15; // 2^30 covers the capacity; cycle walking skips the rest
+    private static final long HALF_MASK = (1L << HALF_BITS) - 1;
+    private static final int ROUNDS = 4;
+    
+    private long key;
+    private final long[] roundKeys = new long[ROUNDS];
+    private final java.util.concurrent.atomic.AtomicLong next = new java.util.concurrent.atomic.AtomicLong();
+    private boolean restored;
+    
+    // Starts with a fresh random key
+    UserIdAllocator() {
+        setState(new java.security.SecureRandom().nextLong(), 0);
+    }
+    
+    // Resumes from a snapshot; called while loading, before any ID is handed out
+    void restore(long key, long next) {
+        setState(key, next);
+        restored = true;
+    }
+    
+    // Whether the state came from a snapshot, i.e. the key is already on disk
+    boolean isRestored() {
+        return restored;
+    }
+    
+    private void setState(long key, long next) {
+        this.key = key;
+        long seed = key;
+        for (int i = 0; i < ROUNDS; i++) {
+            seed += 0x9E3779B97F4A7C15L;
+            roundKeys[i] = mix(seed);
+        }
+        this.next.set(next);
+    }
+    
+    long getKey() {
+        return key;
+    }
+    
+    long getNext() {
+        return next.get();
+    }
+    
+    String nextUserId() {
+        long index = next.getAndIncrement();
+        if (index >= CAPACITY) {
+            throw new IllegalStateException("User ID space exhausted");
+        }
+        return "USER" + (FIRST_ID + permute(index));
+    }
+    
+    // Moves the counter past an ID replayed from the ledger, so it is not handed out again
+    void observe(String userId) {
+        if (userId.length() != 13 || !userId.startsWith("USER")) {
+            return; // Not from this allocator, e.g. a four-digit legacy ID
+        }
+        long value;
+        try {
+            value = Long.parseLong(userId.substring(4)) - FIRST_ID;
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (value >= 0 && value < CAPACITY) {
+            next.accumulateAndGet(unpermute(value) + 1, Math::max);
+        }
+    }
+    
+    // A bijection on [0, CAPACITY): re-encrypt until the result falls inside the range
+    long permute(long index) {
+        long value = index;
+        do {
+            value = encrypt(value);
+        } while (value >= CAPACITY);
+        return value;
+    }
+    
+    long unpermute(long value) {
+        long index = value;
+        do {
+            index = decrypt(index);
+        } while (index >= CAPACITY);
+        return index;
+    }
+    
+    private long encrypt(long value) {
+        long left = value >>> HALF_BITS;
+        long right = value & HALF_MASK;
+        for (int i = 0; i < ROUNDS; i++) {
+            long mixed = left ^ (mix(right + roundKeys[i]) & HALF_MASK);
+            left = right;
+            right = mixed;
+        }
+        return (left << HALF_BITS) | right;
+    }
+    
+    private long decrypt(long value) {
+        long left = value >>> HALF_BITS;
+        long right = value & HALF_MASK;
+        for (int i = ROUNDS - 1; i >= 0; i--) {
+            long mixed = right ^ (mix(left + roundKeys[i]) & HALF_MASK);
+            right = left;
+            left = mixed;
+        }
+        return (left << HALF_BITS) | right;
+    }
+    
+    // SplitMix64 finalizer
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
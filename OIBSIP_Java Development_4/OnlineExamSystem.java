@@ -5,6 +5,12 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.List;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
 
 // Main Class
 public class OnlineExamSystem {
@@ -320,6 +326,51 @@ class QuestionBank {
     }
 }
 
+// Flight Recorder events for the user file and exam submission, shown by JDK Mission Control
+// or "jfr print --events exam.SubmitExam" next to the JVM's own GC and I/O events
+@Name("exam.LoadUsers")
+@Label("Load Users")
+@Category({"Online Exam", "Persistence"})
+class UserLoadEvent extends Event {
+    @Label("Users")
+    int users;
+
+    @Label("Bytes Read")
+    @DataAmount
+    long bytesRead;
+}
+
+@Name("exam.SaveUsers")
+@Label("Save Users")
+@Category({"Online Exam", "Persistence"})
+class UserSaveEvent extends Event {
+    @Label("Users")
+    int users;
+
+    @Label("Bytes Written")
+    @DataAmount
+    long bytesWritten;
+}
+
+// Covers grading and saving the result, not the confirmation dialog before it
+@Name("exam.SubmitExam")
+@Label("Submit Exam")
+@Category({"Online Exam", "Exam"})
+class ExamSubmitEvent extends Event {
+    @Label("Difficulty")
+    String difficulty;
+
+    @Label("Questions")
+    int questions;
+
+    @Label("Correct Answers")
+    int correctAnswers;
+
+    @Label("Grading Time")
+    @Timespan
+    long gradingTime;
+}
+
 // UserManager Class
 class UserManager {
     private static final String DATA_FILE = "exam_users.txt";
@@ -333,6 +384,8 @@ class UserManager {
         File file = new File(DATA_FILE);
         if (!file.exists()) return;
 
+        UserLoadEvent event = new UserLoadEvent();
+        event.begin();
         try (BufferedReader br = new BufferedReader(new FileReader(file))) {
             String line;
             while ((line = br.readLine()) != null) {
@@ -368,9 +421,14 @@ class UserManager {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        event.users = users.size();
+        event.bytesRead = file.length();
+        event.commit();
     }
 
     public static void saveUsers() {
+        UserSaveEvent event = new UserSaveEvent();
+        event.begin();
         try (BufferedWriter bw = new BufferedWriter(new FileWriter(DATA_FILE))) {
             for (User user : users.values()) {
                 bw.write("USER:" + user.getUsername() + "|" + user.getPassword() + "|" +
@@ -392,6 +450,9 @@ class UserManager {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        event.users = users.size();
+        event.bytesWritten = new File(DATA_FILE).length();
+        event.commit();
     }
 
     public static User authenticate(String username, String password) {
@@ -1011,17 +1072,26 @@ class ExamFrame extends JFrame {
 
         timer.stop();
 
+        ExamSubmitEvent event = new ExamSubmitEvent();
+        event.begin();
+        long gradingStart = System.nanoTime();
         int correctAnswers = 0;
         for (int i = 0; i < questions.size(); i++) {
             if (userAnswers[i] == questions.get(i).getCorrectAnswer()) {
                 correctAnswers++;
             }
         }
+        event.gradingTime = System.nanoTime() - gradingStart;
 
         ExamResult examResult = new ExamResult(difficulty, questions.size(), correctAnswers);
         currentUser.addExamResult(examResult);
         UserManager.updateUser(currentUser);
 
+        event.difficulty = difficulty;
+        event.questions = questions.size();
+        event.correctAnswers = correctAnswers;
+        event.commit();
+
         showResults(correctAnswers);
     }
 